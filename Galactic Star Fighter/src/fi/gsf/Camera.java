@@ -1,7 +1,39 @@
 package fi.gsf;
 
+import java.nio.ByteBuffer;
+
+import org.newdawn.slick.Graphics;
+
+import fi.gsf.objects.GameObject;
+
+/**
+ * The view of the player: where it is in the world and how far it's zoomed out.
+ * 
+ * The screen coordinates the camera gives are the ones of the view before the
+ * zoom, the renderers draw with them between applyZoom() and removeZoom().
+ * The world coordinates it gives from the screen are the real ones, for the
+ * mouse. At zoom 1 the two are the same.
+ */
 public class Camera {
 	
+	/** The closest zoom, 1 pixel of the world is 1 pixel of the screen. */
+	public static final double MAX_ZOOM = 1;
+	
+	/** The tactical view, if the view isn't limited further with setViewLimit(). */
+	public static final double MIN_ZOOM = 0.1;
+	
+	/** Below this zoom the crowds of the world are drawn as impostors, see ImpostorGrid. */
+	public static final double IMPOSTOR_ZOOM = 0.5;
+	
+	/** The world the camera looks at. */
+	private World world;
+	
+	/** Screen pixels per world pixel, between minZoom and MAX_ZOOM. */
+	private double zoom = MAX_ZOOM;
+	
+	/** The farthest zoom, at least MIN_ZOOM. */
+	private double minZoom = MIN_ZOOM;
+	
 	/** The x-coordinate of the camera in world coordinates. */
 	private double x;
 	/** The y-coordinate of the camera in world coordinates. */
@@ -9,18 +41,22 @@ public class Camera {
 	
 	/**
 	 * Create a new camera with the world coordinates (0, 0).
+	 * 
+	 * @param world
 	 */
-	public Camera() {
-		this(0, 0);
+	public Camera(World world) {
+		this(world, 0, 0);
 	}
 	
 	/**
 	 * Create a new camera with the world coordinates (x, y).
 	 * 
+	 * @param world
 	 * @param x The x-coordinate of the camera. (world coordinates)
 	 * @param y The y-coordinate of the camera. (world coordinates)
 	 */
-	public Camera(double x, double y) {
+	public Camera(World world, double x, double y) {
+		this.world = world;
 		this.x = x;
 		this.y = y;
 	}
@@ -36,6 +72,135 @@ public class Camera {
 		this.y = y;
 	}
 	
+	/**
+	 * Position the camera to follow an object. The view slides less than the object
+	 * so that the view stays inside the world, or centered on it when it's bigger
+	 * than the world. In an open world the object is kept in the center.
+	 * 
+	 * @param target
+	 * @param viewWidth The width of the view in pixels.
+	 * @param viewHeight The height of the view in pixels.
+	 */
+	public void follow(GameObject target, int viewWidth, int viewHeight) {
+		if (this.world.isOpen()) {
+			this.position(target.getX(), target.getY());
+			return;
+		}
+		int worldWidth = this.world.getWidth();
+		int worldHeight = this.world.getHeight();
+		double slideX = Math.max(0, worldWidth - viewWidth / 2 / this.zoom);
+		double slideY = Math.max(0, worldHeight - viewHeight / 2 / this.zoom);
+		this.position(slideX * target.getX() / worldWidth, slideY * target.getY() / worldHeight);
+	}
+	
+	/**
+	 * Returns true if the world point is in a view of the given size centered at the camera,
+	 * or at most margin pixels outside it. The view is bigger when the camera is zoomed out.
+	 *
+	 * @param x
+	 * @param y
+	 * @param viewWidth The width of the view in pixels.
+	 * @param viewHeight The height of the view in pixels.
+	 * @param margin
+	 * @return
+	 */
+	public boolean sees(double x, double y, int viewWidth, int viewHeight, double margin) {
+		return Math.abs(x - this.x) <= viewWidth / 2 / this.zoom + margin && Math.abs(y - this.y) <= viewHeight / 2 / this.zoom + margin;
+	}
+	
+	/**
+	 * Set how far the view is zoomed out.
+	 * 
+	 * @param zoom Screen pixels per world pixel, clamped between getMinZoom() and MAX_ZOOM.
+	 */
+	public void setZoom(double zoom) {
+		this.zoom = Math.max(this.minZoom, Math.min(MAX_ZOOM, zoom));
+	}
+	
+	/**
+	 * Don't let the view reach further than a distance from the camera, for
+	 * example past the active sectors of an open world, where the enemies
+	 * are frozen and not shown.
+	 * 
+	 * @param distance In world pixels, 0 for no limit.
+	 */
+	public void setViewLimit(double distance) {
+		double screen = Math.max(this.world.getScreenWidth(), this.world.getScreenHeight());
+		this.minZoom = distance > 0 ? Math.min(MAX_ZOOM, Math.max(MIN_ZOOM, screen / 2 / distance)) : MIN_ZOOM;
+		this.setZoom(this.zoom);
+	}
+	
+	/**
+	 * Returns the farthest the view can be zoomed out.
+	 * 
+	 * @return
+	 */
+	public double getMinZoom() {
+		return this.minZoom;
+	}
+	
+	/**
+	 * Returns screen pixels per world pixel.
+	 * 
+	 * @return
+	 */
+	public double getZoom() {
+		return this.zoom;
+	}
+	
+	/**
+	 * Returns true when the view is zoomed out so far that the crowds are
+	 * drawn as impostors.
+	 * 
+	 * @return
+	 */
+	public boolean isTactical() {
+		return this.zoom < IMPOSTOR_ZOOM;
+	}
+	
+	/**
+	 * Start drawing with the zoom: scale everything drawn after this around
+	 * the center of the screen until removeZoom().
+	 * 
+	 * @param g
+	 */
+	public void applyZoom(Graphics g) {
+		float centerX = this.world.getScreenWidth() / 2;
+		float centerY = this.world.getScreenHeight() / 2;
+		g.pushTransform();
+		g.translate(centerX, centerY);
+		g.scale((float) this.zoom, (float) this.zoom);
+		g.translate(-centerX, -centerY);
+	}
+	
+	/**
+	 * Stop drawing with the zoom.
+	 * 
+	 * @param g
+	 */
+	public void removeZoom(Graphics g) {
+		g.popTransform();
+	}
+
+	/**
+	 * Write the position of the camera to a save.
+	 * 
+	 * @param buffer
+	 */
+	public void save(ByteBuffer buffer) {
+		buffer.putDouble(this.x).putDouble(this.y);
+	}
+	
+	/**
+	 * Read the position written by save().
+	 * 
+	 * @param buffer
+	 */
+	public void load(ByteBuffer buffer) {
+		this.x = buffer.getDouble();
+		this.y = buffer.getDouble();
+	}
+	
 	/**
 	 * Returns the x-coordinate of the camera.
 	 * @return
@@ -53,39 +218,39 @@ public class Camera {
 	}
 	
 	/**
-	 * Converts the world x-coordinate to a screen x-coordinate.
+	 * Converts the world x-coordinate to a screen x-coordinate, before the zoom.
 	 * @param x
 	 * @return
 	 */
 	public double getScreenX(double x) {
-		return GSFGame.getScreenWidth() / 2 - this.x + x;
+		return this.world.getScreenWidth() / 2 - this.x + x;
 	}
 	
 	/**
-	 * Converts the world x-coordinate to a screen x-coordinate.
+	 * Converts the world x-coordinate to a screen x-coordinate, before the zoom.
 	 * @param x
 	 * @return
 	 */
 	public int getScreenX(int x) {
-		return (int) (GSFGame.getScreenWidth() / 2 - this.x + x);
+		return (int) (this.world.getScreenWidth() / 2 - this.x + x);
 	}
 
 	/**
-	 * Converts the world y-coordinate to a screen y-coordinate.
+	 * Converts the world y-coordinate to a screen y-coordinate, before the zoom.
 	 * @param y
 	 * @return
 	 */
 	public double getScreenY(double y) {
-		return GSFGame.getScreenHeight() / 2 + this.y - y;
+		return this.world.getScreenHeight() / 2 + this.y - y;
 	}
 	
 	/**
-	 * Converts the world y-coordinate to a screen y-coordinate.
+	 * Converts the world y-coordinate to a screen y-coordinate, before the zoom.
 	 * @param y
 	 * @return
 	 */
 	public int getScreenY(int y) {
-		return (int) (GSFGame.getScreenHeight() / 2 + this.y - y);
+		return (int) (this.world.getScreenHeight() / 2 + this.y - y);
 	}
 	
 	/**
@@ -94,7 +259,7 @@ public class Camera {
 	 * @return
 	 */
 	public double getWorldX(double x) {
-		return this.x + x - GSFGame.getScreenWidth() / 2;
+		return this.x + (x - this.world.getScreenWidth() / 2) / this.zoom;
 	}
 	
 	/**
@@ -103,7 +268,7 @@ public class Camera {
 	 * @return
 	 */
 	public int getWorldX(int x) {
-		return (int) (this.x + x - GSFGame.getScreenWidth() / 2);
+		return (int) (this.x + (x - this.world.getScreenWidth() / 2) / this.zoom);
 	}
 	
 	/**
@@ -112,7 +277,7 @@ public class Camera {
 	 * @return
 	 */
 	public double getWorldY(double y) {
-		return this.y - y + GSFGame.getScreenHeight() / 2;
+		return this.y - (y - this.world.getScreenHeight() / 2) / this.zoom;
 	}
 	
 	/**
@@ -121,6 +286,6 @@ public class Camera {
 	 * @return
 	 */
 	public int getWorldY(int y) {
-		return (int) (this.y - y + GSFGame.getScreenHeight() / 2);
+		return (int) (this.y - (y - this.world.getScreenHeight() / 2) / this.zoom);
 	}
 }
@@ -0,0 +1,252 @@
+package fi.gsf;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Records the events of a simulation with their time, to relate a hitch to
+ * what the game was doing: the ticks with the durations of the systems, the
+ * collision passes, the spawns and the growth of the projectile list.
+ *
+ * The latest events are kept in a ring buffer of plain longs, so recording
+ * doesn't allocate. The recorder is off by default. When it's off an event
+ * costs a check of isEnabled(), the callers only read the clock when it's on.
+ * write() writes the events as text, one per line.
+ *
+ * @author X455u
+ */
+public class EventRecorder {
+
+	//the types of events
+	public static final int TICK = 0;
+	public static final int COLLISIONS = 1;
+	public static final int SPAWN = 2;
+	public static final int POOL_GROWTH = 3;
+
+	//the kinds of spawns
+	public static final int SWARMERS = 0;
+	public static final int FIGHTERS = 1;
+
+	/** How many events are kept if no other amount is given. About a minute and a half at 60 fps. */
+	public static final int DEFAULT_CAPACITY = 16384;
+
+	/** The names of the types of events. */
+	private static final String[] NAMES = { "tick", "collisions", "spawn", "pool-growth" };
+
+	/** The names of the fields of each type of event. */
+	private static final String[][] FIELDS = {
+		{ "tick", "enemies", "projectiles", "spawnNanos", "enemiesNanos", "projectilesNanos", "collisionsNanos" },
+		{ "objects", "projectiles", "pairsTested", "hits" },
+		{ "kind", "count", "swarmers", "fighters" },
+		{ "oldCapacity", "newCapacity" }
+	};
+
+	/** An event is the type, the start, the duration and the fields. */
+	private static final int EVENT_SIZE = 3 + 7;
+
+	/** True if the events are recorded. */
+	private boolean enabled;
+
+	/** How many events are kept. */
+	private int capacity;
+
+	/** The latest events, EVENT_SIZE longs each. Created when the recorder is enabled. */
+	private long[] events;
+
+	/** The amount of events recorded since the start. */
+	private long recorded;
+
+
+	/**
+	 * Create a recorder that is off.
+	 *
+	 * @param capacity How many of the latest events are kept.
+	 */
+	public EventRecorder(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Start or stop recording. The events recorded so far are kept.
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		if (enabled && this.events == null) {
+			this.events = new long[this.capacity * EVENT_SIZE];
+		}
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Returns true if the events are recorded. A caller checks this before
+	 * reading the clock for an event.
+	 *
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Record a tick of the simulation.
+	 *
+	 * @param start When the tick started, System.nanoTime().
+	 * @param tick The number of the tick.
+	 * @param enemies The amount of enemies after the tick.
+	 * @param projectiles The amount of projectiles after the tick.
+	 * @param spawnNanos How long spawning the enemies took.
+	 * @param enemiesNanos How long the enemy system took.
+	 * @param projectilesNanos How long the projectile system took.
+	 * @param collisionsNanos How long the collision system took.
+	 */
+	public void tick(long start, long tick, int enemies, int projectiles, long spawnNanos, long enemiesNanos, long projectilesNanos, long collisionsNanos) {
+		int i = this.next(TICK, start);
+		if (i >= 0) {
+			this.events[i + 3] = tick;
+			this.events[i + 4] = enemies;
+			this.events[i + 5] = projectiles;
+			this.events[i + 6] = spawnNanos;
+			this.events[i + 7] = enemiesNanos;
+			this.events[i + 8] = projectilesNanos;
+			this.events[i + 9] = collisionsNanos;
+		}
+	}
+
+	/**
+	 * Record a pass of the collision system.
+	 *
+	 * @param start When the pass started, System.nanoTime().
+	 * @param objects The amount of objects the projectiles were tested against.
+	 * @param projectiles The amount of projectiles.
+	 * @param pairsTested The amount of projectile-object pairs tested.
+	 * @param hits The amount of hits.
+	 */
+	public void collisions(long start, int objects, int projectiles, int pairsTested, int hits) {
+		int i = this.next(COLLISIONS, start);
+		if (i >= 0) {
+			this.events[i + 3] = objects;
+			this.events[i + 4] = projectiles;
+			this.events[i + 5] = pairsTested;
+			this.events[i + 6] = hits;
+		}
+	}
+
+	/**
+	 * Record a spawn of enemies.
+	 *
+	 * @param start When the spawn started, System.nanoTime().
+	 * @param kind SWARMERS or FIGHTERS.
+	 * @param count The amount of enemies spawned.
+	 * @param swarmers The amount of swarmers after the spawn.
+	 * @param fighters The amount of fighters after the spawn.
+	 */
+	public void spawn(long start, int kind, int count, int swarmers, int fighters) {
+		int i = this.next(SPAWN, start);
+		if (i >= 0) {
+			this.events[i + 3] = kind;
+			this.events[i + 4] = count;
+			this.events[i + 5] = swarmers;
+			this.events[i + 6] = fighters;
+		}
+	}
+
+	/**
+	 * Record the growth of the list of projectiles.
+	 *
+	 * @param start When the growth started, System.nanoTime().
+	 * @param oldCapacity
+	 * @param newCapacity
+	 */
+	public void poolGrowth(long start, int oldCapacity, int newCapacity) {
+		int i = this.next(POOL_GROWTH, start);
+		if (i >= 0) {
+			this.events[i + 3] = oldCapacity;
+			this.events[i + 4] = newCapacity;
+		}
+	}
+
+	/** Start the next event, ending now. Returns its index in the events, -1 if the recorder is off. */
+	private int next(int type, long start) {
+		if (!this.enabled) {
+			return -1;
+		}
+		long end = System.nanoTime();
+		int i = (int) (this.recorded++ % this.capacity) * EVENT_SIZE;
+		this.events[i] = type;
+		this.events[i + 1] = start;
+		this.events[i + 2] = end - start;
+		return i;
+	}
+
+	/**
+	 * Returns the amount of events recorded since the start, including the
+	 * ones that are no longer kept.
+	 *
+	 * @return
+	 */
+	public long getRecorded() {
+		return this.recorded;
+	}
+
+	/**
+	 * Returns the amount of events kept.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return (int) Math.min(this.recorded, this.capacity);
+	}
+
+	/**
+	 * Write the kept events to a file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			this.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the kept events in the order they ended, one per line: the time
+	 * of the start since the earliest start and the duration in microseconds,
+	 * the type and the fields as name=value. An event that contains others,
+	 * like a tick, ends after them.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Writer out) throws IOException {
+		int size = this.getSize();
+		long first = this.recorded - size;
+		long origin = Long.MAX_VALUE;
+		for (long n = first; n < this.recorded; n++) {
+			origin = Math.min(origin, this.events[(int) (n % this.capacity) * EVENT_SIZE + 1]);
+		}
+		StringBuilder line = new StringBuilder();
+		for (long n = first; n < this.recorded; n++) {
+			int i = (int) (n % this.capacity) * EVENT_SIZE;
+			int type = (int) this.events[i];
+			line.setLength(0);
+			line.append((this.events[i + 1] - origin) / 1000).append(' ');
+			line.append(this.events[i + 2] / 1000).append(' ');
+			line.append(NAMES[type]);
+			String[] fields = FIELDS[type];
+			for (int f = 0; f < fields.length; f++) {
+				line.append(' ').append(fields[f]).append('=').append(this.events[i + 3 + f]);
+			}
+			line.append('\n');
+			out.write(line.toString());
+		}
+	}
+
+}
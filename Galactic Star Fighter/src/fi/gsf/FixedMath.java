@@ -0,0 +1,167 @@
+package fi.gsf;
+
+/**
+ * Fixed-point numbers and math that give the same bits on every JVM, for a
+ * deterministic world (see World.setDeterministic()).
+ *
+ * A fixed-point number is a long with 16 bits of fraction. The trigonometry
+ * comes from tables made once with StrictMath, which is the same everywhere;
+ * the lookups only use arithmetic that Java defines exactly. The results are
+ * accurate to about 1/10000, plenty for steering.
+ *
+ * @author X455u
+ */
+public class FixedMath {
+
+	/** The bits of fraction. */
+	public static final int SHIFT = 16;
+
+	/** 1 as a fixed-point number. */
+	public static final long ONE = 1L << SHIFT;
+
+	/** The steps of a whole turn in the sine table, a power of two. */
+	private static final int SINE_STEPS = 4096;
+
+	/** A whole turn is this many angle units, SINE_STEPS with 4 bits to interpolate. */
+	private static final int TURN = SINE_STEPS << 4;
+
+	/** The steps of the arc tangent table from 0 to 1. */
+	private static final int ATAN_STEPS = 4096;
+
+	private static final long PI = Math.round(Math.PI * ONE);
+	private static final long HALF_PI = Math.round(Math.PI / 2 * ONE);
+
+	/** The sine of each step of a turn, fixed point, one extra for the interpolation. */
+	private static final long[] SINE = new long[SINE_STEPS + 1];
+
+	/** The arc tangent of each step from 0 to 1, fixed point. */
+	private static final long[] ATAN = new long[ATAN_STEPS + 1];
+
+	static {
+		for (int i = 0; i <= SINE_STEPS; i++) {
+			SINE[i] = Math.round(StrictMath.sin(2 * StrictMath.PI * i / SINE_STEPS) * ONE);
+		}
+		for (int i = 0; i <= ATAN_STEPS; i++) {
+			ATAN[i] = Math.round(StrictMath.atan((double) i / ATAN_STEPS) * ONE);
+		}
+	}
+
+
+	private FixedMath() {
+	}
+
+	/**
+	 * Returns the nearest fixed-point number.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static long toFixed(double value) {
+		return Math.round(value * ONE);
+	}
+
+	/**
+	 * Returns a fixed-point number as a double. Exact.
+	 *
+	 * @param fixed
+	 * @return
+	 */
+	public static double toDouble(long fixed) {
+		return fixed / (double) ONE;
+	}
+
+	/**
+	 * Returns the product of two fixed-point numbers.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static long multiply(long a, long b) {
+		return (a * b) >> SHIFT;
+	}
+
+	/**
+	 * Returns the square root of a number with 32 bits of fraction, like the
+	 * product of two fixed-point numbers, as a fixed-point number.
+	 *
+	 * @param square At most 2^53.
+	 * @return
+	 */
+	public static long sqrt(long square) {
+		//the double square root is correctly rounded everywhere, the loops fix the last bit
+		long root = (long) Math.sqrt((double) square);
+		while (root * root > square) {
+			root--;
+		}
+		while ((root + 1) * (root + 1) <= square) {
+			root++;
+		}
+		return root;
+	}
+
+	/**
+	 * Returns the sine of an angle.
+	 *
+	 * @param angle Radians.
+	 * @return
+	 */
+	public static double sin(double angle) {
+		return toDouble(sine(Math.round(angle * (TURN / (2 * Math.PI)))));
+	}
+
+	/**
+	 * Returns the cosine of an angle.
+	 *
+	 * @param angle Radians.
+	 * @return
+	 */
+	public static double cos(double angle) {
+		return toDouble(sine(Math.round(angle * (TURN / (2 * Math.PI))) + TURN / 4));
+	}
+
+	/** Returns the sine of an angle in the units of TURN, interpolated between the steps. */
+	private static long sine(long angle) {
+		int step = (int) ((angle >> 4) & (SINE_STEPS - 1));
+		int fraction = (int) (angle & 15);
+		return SINE[step] + (((SINE[step + 1] - SINE[step]) * fraction) >> 4);
+	}
+
+	/**
+	 * Returns the angle of the point (x, y) like Math.atan2().
+	 *
+	 * @param y
+	 * @param x
+	 * @return Radians between -PI and PI.
+	 */
+	public static double atan2(double y, double x) {
+		if (x == 0 && y == 0) {
+			return 0;
+		}
+		double absX = Math.abs(x);
+		double absY = Math.abs(y);
+		long angle;
+		if (absY <= absX) {
+			angle = ATAN[(int) Math.round(absY / absX * ATAN_STEPS)];
+		} else {
+			angle = HALF_PI - ATAN[(int) Math.round(absX / absY * ATAN_STEPS)];
+		}
+		if (x < 0) {
+			angle = PI - angle;
+		}
+		return toDouble(y < 0 ? -angle : angle);
+	}
+
+	/**
+	 * Returns the length of the vector (x, y). A correctly rounded square root,
+	 * the same everywhere, unlike Math.hypot().
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public static double hypot(double x, double y) {
+		return Math.sqrt(x * x + y * y);
+	}
+
+}
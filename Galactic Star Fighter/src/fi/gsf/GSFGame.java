@@ -1,5 +1,8 @@
 package fi.gsf;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.lwjgl.input.Mouse;
 import org.newdawn.slick.BasicGame;
 import org.newdawn.slick.Color;
@@ -9,14 +12,23 @@ import org.newdawn.slick.Image;
 import org.newdawn.slick.Input;
 import org.newdawn.slick.SlickException;
 import org.newdawn.slick.AppGameContainer;
-import org.newdawn.slick.particles.ParticleSystem;
 import org.newdawn.slick.util.Log;
 
+import fi.gsf.graphics.AssetLoader;
+import fi.gsf.graphics.TextureAtlas;
+import fi.gsf.graphics.TextureCache;
+import fi.gsf.input.PlayerInput;
 import fi.gsf.objects.*;
+import fi.gsf.systems.CollisionSystem;
 import fi.gsf.systems.EnemySystem;
 import fi.gsf.systems.IonEmitter;
+import fi.gsf.systems.ParticleEngine;
 import fi.gsf.systems.ProjectileSystem;
+import fi.gsf.systems.SectorSystem;
 import fi.gsf.systems.StarSystem;
+import fi.gsf.systems.TaskGraph;
+import fi.gsf.systems.WaveDirector;
+import fi.gsf.systems.WorkScheduler;
 
 public class GSFGame extends BasicGame {
 	
@@ -36,19 +48,85 @@ public class GSFGame extends BasicGame {
 		
 	private Camera camera;
 	
+	/** The world of the game. Created when the game starts. */
+	private World world;
+	
 	private static int worldHeight = 1000; // -1000 to 1000
 	private static int worldWidth = (int) (worldHeight * screenRatio);
 	
+	/** The world is open, only the 3x3 sectors around the ship are simulated. */
+	private static final int SECTOR_SIZE = 2000;
+	
+	//the rewind buffer: a keyframe every half a second, at most 10 seconds or 32 MB at 60 fps
+	private static final int REWIND_KEYFRAME_INTERVAL = 30;
+	private static final int REWIND_MEMORY = 32 * 1024 * 1024;
+	private static final int REWIND_TICKS = 600;
+	
+	/** The time of a frame at 60 fps. The maintenance work gets what's left of it. */
+	private static final long FRAME_BUDGET = 1000000000L / 60;
+	
+	/** The most worker threads the systems are updated on. */
+	private static final int UPDATE_THREADS = 3;
+	
+	/** How much a step of the mouse wheel zooms. */
+	private static final double ZOOM_STEP = 1.25;
+	
+	/** The file of the quick save (F5) and quick load (F9). */
+	private static final String QUICK_SAVE = "quicksave.gsf";
+	
+	/** The setting (a system property) that names the file the events are written to at exit. Off if not set. */
+	private static final String EVENTS_PROPERTY = "gsf.events";
+	
+	/** The setting (a system property) that arms the ship with beams when it's "beam". Bullets if not set. */
+	private static final String WEAPON_PROPERTY = "gsf.weapon";
+	
+	/** All the sprites of the game. Packed into the texture atlas at startup. */
+	private static final String[] SPRITES = {
+		"images/ships/ship0.png",
+		"images/guns/turret0.png",
+		"images/enemies/swarmer.png",
+		"images/enemies/fighter_temp.png",
+		"images/other/star.png",
+		"images/other/particle.tga",
+		"images/other/blue shield.png"
+	};
+	
 	
 	
 	private Spacecraft spacecraft;
 	
 	private EnemySystem enemies;
 	
+	/** Spawns the waves of enemies, a few per update. */
+	private WaveDirector waves;
+	
 	private ProjectileSystem projectiles;
+	
+	private CollisionSystem collisions;
 
 	private StarSystem stars;
-	private ParticleSystem particles;
+	private ParticleEngine particles;
+	
+	/** Controls the spacecraft with timestamped input events. */
+	private PlayerInput input;
+	
+	/** Loads the sprites in the background. The game starts when it's done. */
+	private AssetLoader loader;
+	
+	/** The latest states of the game, hold backspace to rewind. */
+	private RewindBuffer rewind;
+	
+	/** The amount of updates since the start, minus the rewound ones. */
+	private long tick;
+	
+	/** Runs the work that can wait at the end of a frame. */
+	private WorkScheduler maintenance;
+	
+	/** When the update of the current frame started, System.nanoTime(). */
+	private long frameStart;
+	
+	/** Runs the systems of an update, the independent ones at the same time. */
+	private TaskGraph updates;
 	
 	
 	
@@ -58,74 +136,255 @@ public class GSFGame extends BasicGame {
     
     @Override
     public void init(GameContainer container) throws SlickException {    	
-    	camera = new Camera();
+    	loader = new AssetLoader(TextureAtlas.get(), SPRITES);
+    	loader.setCache(new TextureCache(new File(TextureCache.DEFAULT_DIRECTORY)));
+    	loader.start();
+    }
+    
+    /**
+     * Create the game objects. Called when all the sprites have been loaded.
+     * 
+     * @throws SlickException
+     */
+    private void start() throws SlickException {
+    	TextureAtlas atlas = TextureAtlas.get();
+    	Log.info("Textures: " + loader.getCache().getHits() + " from the cache, " + loader.getCache().getMisses() + " decoded");
+    	
+    	world = new World(worldWidth, worldHeight, pixelRatio, width, height, System.nanoTime());
+    	world.setSectorSize(SECTOR_SIZE);
+    	world.getRecorder().setEnabled(System.getProperty(EVENTS_PROPERTY) != null);
+    	
+    	camera = new Camera(world);
     	
-    	stars = new StarSystem("images/other/star.png", 0.2f, 1000);
+    	stars = new StarSystem(world, "images/other/star.png", 0.2f, 350);
 
-    	projectiles = new ProjectileSystem(new Image("images/other/star.png").getScaledCopy(0.5f));
+    	maintenance = new WorkScheduler();
+    	
+    	projectiles = new ProjectileSystem(world, atlas.getImage("images/other/star.png").getScaledCopy(0.5f));
+    	projectiles.setScheduler(maintenance);
 
-    	spacecraft = new Spacecraft("images/ships/ship0.png", projectiles);
-    	WeaponType weapontype1 = new WeaponType(new Image("images/guns/turret0.png").getScaledCopy(0.5f));
+    	spacecraft = new Spacecraft(world, "images/ships/ship0.png", projectiles);
+    	Image gun = atlas.getImage("images/guns/turret0.png").getScaledCopy(0.5f);
+    	WeaponType weapontype1 = "beam".equals(System.getProperty(WEAPON_PROPERTY)) ? WeaponType.beam(gun) : new WeaponType(gun);
     	spacecraft.setTurrets(new Turret(weapontype1), 0);
     	spacecraft.setTurrets(new Turret(weapontype1), 1);
     	
-    	particles = new ParticleSystem(new Image("images/other/particle.tga"));
-    	particles.addEmitter(new IonEmitter(spacecraft, camera, 40));
+    	particles = new ParticleEngine(atlas.getImage("images/other/particle.tga"));
+    	particles.addEmitter(new IonEmitter(spacecraft, 40));
+    	
+    	enemies = new EnemySystem(world, spacecraft, projectiles);
+    	enemies.setParticles(particles);
+    	enemies.setScheduler(maintenance);
+    	
+    	SectorSystem sectors = new SectorSystem(world);
+    	sectors.setPopulation(0.3, 30, 0.2, 3);
+    	enemies.setSectors(sectors);
+    	projectiles.setSectors(sectors);
+    	//the tactical view stays in the active sectors, the frozen ones look empty
+    	camera.setViewLimit(sectors.getActiveDistance());
+    	
+    	waves = new WaveDirector(world, spacecraft, enemies);
+    	try {
+    		waves.load(new File(WaveDirector.DEFAULT_FILE));
+    	} catch (IOException e) {
+    		Log.error("Can't read the waves", e);
+    	}
     	
-    	enemies = new EnemySystem(spacecraft, projectiles);
+    	collisions = new CollisionSystem(spacecraft, enemies, projectiles);
+    	collisions.setParticles(particles);
+    	projectiles.setTargets(collisions.getGrid());
     	
+    	input = new PlayerInput();
+    	
+    	rewind = new RewindBuffer(REWIND_KEYFRAME_INTERVAL, REWIND_MEMORY, REWIND_TICKS);
+    	rewind.record(tick, camera, spacecraft, enemies, projectiles);
+    	
+    	createUpdates();
+    	
+    }
+    
+    /**
+     * Declare the systems of an update with what they read and write, in the
+     * order they'd run one by one. The shared helpers of the world, the
+     * kinematics, the random numbers, the maintenance queue and the event
+     * recorder, are resources too, so the systems using them take turns.
+     * The collisions read the pixels of the images from OpenGL, which only
+     * works on the thread of the game, so they run on it.
+     */
+    private void createUpdates() {
+    	updates = new TaskGraph(Math.min(UPDATE_THREADS, Runtime.getRuntime().availableProcessors()));
+    	updates.add("waves", new TaskGraph.Task() {
+    		public void run(int delta) {
+    			waves.update(delta);
+    		}
+    	}).reads("ship").writes("waves", "enemies", "particles", "events");
+    	updates.add("enemies", new TaskGraph.Task() {
+    		public void run(int delta) {
+    			enemies.update(delta);
+    		}
+    	}).reads("ship", "grid").writes("enemies", "sectors", "projectiles", "particles", "kinematics", "random", "maintenance", "events");
+    	updates.add("stars", new TaskGraph.Task() {
+    		public void run(int delta) {
+    			stars.update(delta);
+    		}
+    	}).writes("stars");
+    	updates.add("particles", new TaskGraph.Task() {
+    		public void run(int delta) {
+    			particles.update(delta);
+    		}
+    	}).reads("ship", "enemies").writes("particles");
+    	updates.add("projectiles", new TaskGraph.Task() {
+    		public void run(int delta) {
+    			projectiles.update(delta);
+    		}
+    	}).reads("grid", "sectors").writes("projectiles", "kinematics", "maintenance", "events");
+    	updates.add("collisions", new TaskGraph.Task() {
+    		public void run(int delta) {
+    			collisions.update();
+    		}
+    	}).writes("ship", "enemies", "projectiles", "particles", "grid", "maintenance", "events").onCaller();
     }
 
     @Override
     public void update(GameContainer container, int delta)
             throws SlickException {
     	
+    	frameStart = System.nanoTime();
     	
-    	spacecraft.update(keyDown(Input.KEY_W), keyDown(Input.KEY_S), keyDown(Input.KEY_A), keyDown(Input.KEY_D), delta);
+    	if (!loader.isDone()) {
+    		loader.update();
+    		if (loader.isDone()) {
+    			start();
+    		}
+    		return;
+    	}
+    	
+    	input.update(spacecraft, camera, delta);
     	
-    	if (container.getInput().isMouseButtonDown(0)) {
-    		spacecraft.shoot();
+    	if (container.getInput().isKeyDown(Input.KEY_BACK) && rewind.getTicks() > 1) {
+    		//scrub back at double speed, the game goes on from there when the key is released
+    		tick = Math.max(rewind.getFirstTick(), tick - 2);
+    		rewind.rewind(tick, camera, spacecraft, enemies, projectiles);
+    		camera.follow(spacecraft, width, height);
+    		particles.update(delta);
+    		return;
     	}
     	
     	if (container.getInput().isKeyPressed(Input.KEY_1)) {
-        	enemies.respawnSwarmers(40);
+    		waves.start("swarmers");
     	}
     	
     	if (container.getInput().isKeyPressed(Input.KEY_2)) {
-        	enemies.respawnFighters(5);
+    		waves.start("fighters");
+    	}
+    	
+    	if (container.getInput().isKeyPressed(Input.KEY_3)) {
+    		waves.start("swarm");
     	}
     	
-    	camera.position( (worldWidth - width / 2) * spacecraft.getX() / worldWidth, (worldHeight - height / 2) * spacecraft.getY() / worldHeight);
+    	if (container.getInput().isKeyPressed(Input.KEY_F5)) {
+    		quickSave();
+    	}
     	
-    	enemies.update(delta);
+    	if (container.getInput().isKeyPressed(Input.KEY_F9)) {
+    		quickLoad();
+    	}
     	
-    	stars.update(delta);
+    	camera.follow(spacecraft, width, height);
     	
-    	particles.update(delta);
+    	updates.run(delta);
     	
-    	projectiles.update(delta);
+    	tick++;
+    	if (world.getRecorder().isEnabled()) {
+    		world.getRecorder().tick(frameStart, tick, enemies.getSwarmers().size() + enemies.getFighters().size(), projectiles.getSize(),
+    				updates.getStage("waves").getDuration(), updates.getStage("enemies").getDuration(),
+    				updates.getStage("projectiles").getDuration(), updates.getStage("collisions").getDuration());
+    	}
+    	rewind.record(tick, camera, spacecraft, enemies, projectiles);
     	
     }
 
+    /** Save the game to the quick save file. */
+    private void quickSave() {
+    	try {
+    		long start = System.nanoTime();
+    		SaveFile.save(new File(QUICK_SAVE), camera, spacecraft, enemies, projectiles);
+    		Log.info("Saved in " + (System.nanoTime() - start) / 1000000.0 + " ms");
+    	} catch (IOException e) {
+    		Log.error("Quick save failed", e);
+    	}
+    }
+    
+    /** Write the recorded events to the file of the setting, if they were recorded. */
+    private void writeEvents() {
+    	if (world == null || !world.getRecorder().isEnabled()) {
+    		return;
+    	}
+    	try {
+    		world.getRecorder().write(new File(System.getProperty(EVENTS_PROPERTY)));
+    	} catch (IOException e) {
+    		Log.error("Can't write the events", e);
+    	}
+    }
+    
+    /** Load the quick save file, if there is one. */
+    private void quickLoad() {
+    	File file = new File(QUICK_SAVE);
+    	if (!file.exists()) {
+    		return;
+    	}
+    	try {
+    		long start = System.nanoTime();
+    		SaveFile.load(file, camera, spacecraft, enemies, projectiles);
+    		Log.info("Loaded in " + (System.nanoTime() - start) / 1000000.0 + " ms");
+    	} catch (IOException e) {
+    		Log.error("Quick load failed", e);
+    	}
+    }
+    
     @Override
     public void render(GameContainer container, Graphics g)
             throws SlickException {
     	
+    	if (!loader.isDone()) {
+    		//loading screen
+    		float barWidth = width / 3;
+    		g.setColor(Color.white);
+    		g.drawString("Loading...", (width - barWidth) / 2, height / 2 - 30);
+    		g.drawRect((width - barWidth) / 2, height / 2, barWidth, 10);
+    		g.fillRect((width - barWidth) / 2, height / 2, barWidth * loader.getProgress(), 10);
+    		return;
+    	}
+    	
+    	//the stars are far away, the zoom doesn't change them
     	stars.render(camera);
     	
-    	particles.render();
+    	camera.applyZoom(g);
+    	
+    	particles.render(camera);
     	
     	spacecraft.draw(camera);
     	
     	enemies.render(camera, g);
     	
-    	projectiles.render(camera);
+    	projectiles.render(camera, g);
+    	
+    	camera.removeZoom(g);
         
     	g.setColor(Color.white);
     	g.drawString("Camera x: " + camera.getX(), 50, 50);
     	g.drawString("Camera y: " + camera.getY(), 50, 70);
+    	g.drawString("Zoom: " + Math.round(camera.getZoom() * 100) + " %" + (camera.isTactical() ? ", tactical" : ""), 50, 420);
+    	g.drawString("Update: " + Math.round(updates.getWallTime() / 1e4) / 100.0 + " ms, critical path " + Math.round(updates.getCriticalPath() / 1e4) / 100.0
+    			+ " ms, work " + Math.round(updates.getWork() / 1e4) / 100.0 + " ms", 50, 440);
     	g.drawString(spacecraft.getInfo(), 50, 90);
     	g.drawString("Projectiles: " + projectiles.getSize(), 50, 300);
+    	g.drawString("Particles: " + particles.getSize(), 50, 320);
+    	g.drawString("Maintenance: " + maintenance.getQueueDepth() + " queued, " + Math.round(maintenance.getMeanLatency() * 10) / 10.0 + " ms mean wait, "
+    			+ Math.round(maintenance.getMaxLatency() * 10) / 10.0 + " ms max", 50, 400);
+    	g.drawString("Spawning: " + waves.getPending() + " enemies, " + waves.getReady() + " ready", 50, 380);
+    	g.drawString("Sectors: " + enemies.getSectors().getSectors() + ", dormant enemies: " + enemies.getSectors().getDormant(), 50, 360);
+    	g.drawString("Rewind: " + rewind.getTicks() + " ticks, " + Math.round(rewind.getBytesPerTick()) + " bytes per tick", 50, 340);
     	g.drawString("MouseX: " + Mouse.getX() + "\nMouseY: " + Mouse.getY(), 50, 70);
     	
     	//fun color pick test :P
@@ -138,11 +397,18 @@ public class GSFGame extends BasicGame {
 //    		}
 //    	}
     	
+    	//the rest of the frame goes to the work that can wait
+    	maintenance.run(FRAME_BUDGET - (System.nanoTime() - frameStart));
+    	
     }
     
     @Override
     public void keyPressed(int key, char c) { 
+        if (input != null) {
+        	input.keyPressed(key);
+        }
         if (key == Input.KEY_ESCAPE) { 
+            writeEvents();
             System.exit(0); 
         } 
         if (key == Input.KEY_F1) { 
@@ -163,31 +429,56 @@ public class GSFGame extends BasicGame {
         } 
     } 
     
-    
-    public static int getWorldWidth() {
-    	return worldWidth;
+    @Override
+    public boolean closeRequested() {
+    	//closing the window doesn't go through Escape
+    	writeEvents();
+    	return true;
     }
     
-    public static int getWorldHeight() {
-    	return worldHeight;
+    
+    @Override
+    public void keyReleased(int key, char c) {
+    	if (input != null) {
+    		input.keyReleased(key);
+    	}
     }
-
-    public static int getScreenWidth() {
-    	return width;
+    
+    @Override
+    public void mousePressed(int button, int x, int y) {
+    	if (input != null) {
+    		input.mousePressed(button, x, y);
+    	}
     }
     
-    public static int getScreenHeight() {
-    	return height;
+    @Override
+    public void mouseReleased(int button, int x, int y) {
+    	if (input != null) {
+    		input.mouseReleased(button, x, y);
+    	}
     }
     
-    public static double getPixelRatio() {
-    	return pixelRatio;
+    @Override
+    public void mouseMoved(int oldx, int oldy, int newx, int newy) {
+    	if (input != null) {
+    		input.mouseMoved(newx, newy);
+    	}
     }
     
-    private boolean keyDown(int key) {
-    	return app.getInput().isKeyDown(key);
+    @Override
+    public void mouseWheelMoved(int change) {
+    	//the wheel zooms between the close view and the tactical view
+    	if (camera != null) {
+    		camera.setZoom(change > 0 ? camera.getZoom() * ZOOM_STEP : camera.getZoom() / ZOOM_STEP);
+    	}
     }
     
+    @Override
+    public void mouseDragged(int oldx, int oldy, int newx, int newy) {
+    	if (input != null) {
+    		input.mouseMoved(newx, newy);
+    	}
+    }
     
     public static void main(String[] args) {
         try {
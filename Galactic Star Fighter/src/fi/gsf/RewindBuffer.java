@@ -0,0 +1,599 @@
+package fi.gsf;
+
+import java.nio.ByteBuffer;
+
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.systems.EnemySystem;
+import fi.gsf.systems.ProjectileSystem;
+import fi.gsf.systems.ProjectileSystem.Projectile;
+
+/**
+ * Keeps the latest states of a game in memory so that it can be rewound.
+ *
+ * Every tick the state (SaveFile.writeState()) is recorded as a delta
+ * against the state of the previous tick, with a full keyframe every
+ * keyframeInterval ticks. A delta has only the 8 byte chunks of each object
+ * that changed, matched by the object ids, so a state with thousands of
+ * objects takes a fraction of its size per tick. The entries are stored in
+ * one fixed byte ring: recording is O(1) and when the memory cap or the
+ * tick cap is reached the oldest keyframe and its deltas are dropped. Seeking
+ * decodes the keyframe before the tick and at most keyframeInterval deltas.
+ *
+ * Entry: varint state size, then for each section (camera, ship, swarmers,
+ * fighters, sectors, projectiles) varint header size, header chunks, varint
+ * record size, varint count and the records: zigzag varint id gap, record
+ * chunks. Chunks are, for every 63 * 8 bytes, a varint bit mask of the
+ * changed 8 byte chunks and for each changed chunk the count of its leading unchanged bytes and the rest xored
+ * with the old chunk (with zeros if there's no old record).
+ *
+ * @author X455u
+ */
+public class RewindBuffer {
+
+	/** Camera, ship, swarmers, fighters, dormant sectors and projectiles. */
+	private static final int SECTIONS = 6;
+
+	/** The bytes compared and sent together in a delta. */
+	private static final int CHUNK = 8;
+
+	/** The bytes of the chunks with one bit mask. */
+	private static final int BLOCK = 63 * CHUNK;
+
+	//the ring of encoded entries
+	private byte[] data;
+	/** The offset of the oldest entry. */
+	private int dataStart;
+	/** The offset after the newest entry. */
+	private int dataEnd;
+
+	//the index of the entries, a ring in tick order
+	private int[] entryOffset;
+	private int[] entryLength;
+	private boolean[] keyframe;
+	/** The index slot of the oldest entry. */
+	private int first;
+	private int entries;
+	/** The tick of the oldest entry. */
+	private long firstTick;
+
+	/** A keyframe is recorded every this many ticks. */
+	private int keyframeInterval;
+	private int sinceKeyframe;
+
+	//the newest recorded state, the baseline of the next delta
+	private byte[] previous = new byte[0];
+	private int[] previousLayout = new int[SECTIONS * 3];
+	private boolean hasPrevious;
+
+	//the state being recorded
+	private byte[] current = new byte[0];
+	private int[] currentLayout = new int[SECTIONS * 3];
+
+	/** The entry being encoded. */
+	private ByteBuffer encoded = ByteBuffer.allocate(0);
+
+	//the states decoded while seeking
+	private byte[] seekFrom = new byte[0];
+	private int[] seekFromLayout = new int[SECTIONS * 3];
+	private byte[] seekTo = new byte[0];
+	private int[] seekToLayout = new int[SECTIONS * 3];
+
+	//statistics
+	private long bytesStored;
+	private long keyframes;
+	private long keyframeBytes;
+	private long deltas;
+	private long deltaBytes;
+
+
+	/**
+	 * Create a new rewind buffer.
+	 *
+	 * @param keyframeInterval A full state is recorded every this many ticks.
+	 * @param maxBytes The memory the recorded states can take.
+	 * @param maxTicks The most ticks kept.
+	 */
+	public RewindBuffer(int keyframeInterval, int maxBytes, int maxTicks) {
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		this.data = new byte[maxBytes];
+		this.entryOffset = new int[maxTicks];
+		this.entryLength = new int[maxTicks];
+		this.keyframe = new boolean[maxTicks];
+	}
+
+	/**
+	 * Record the state of a tick. The ticks have to be recorded in order, a gap
+	 * empties the buffer.
+	 *
+	 * @param tick
+	 * @param camera Can be null.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 */
+	public void record(long tick, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) {
+		if (this.entries > 0 && tick != this.getLastTick() + 1) {
+			this.clear();
+		}
+
+		int size = SaveFile.getStateSize(camera, ship, enemies, projectiles);
+		if (this.current.length < size) {
+			this.current = new byte[size];
+		}
+		SaveFile.writeState(ByteBuffer.wrap(this.current), camera, ship, enemies, projectiles);
+		layout(this.currentLayout, camera, ship, enemies, projectiles);
+
+		boolean isKeyframe = !this.hasPrevious || this.entries == 0 || this.sinceKeyframe + 1 >= this.keyframeInterval;
+		int length = this.encode(isKeyframe);
+		int offset;
+		while ((offset = this.allocate(length)) < 0) {
+			if (this.entries == 0) {
+				throw new IllegalStateException("A state of " + length + " bytes doesn't fit in the rewind buffer");
+			}
+			this.dropOldest();
+			if (this.entries == 0 && !isKeyframe) {
+				//the baseline of the delta is gone
+				isKeyframe = true;
+				length = this.encode(true);
+			}
+		}
+
+		//append
+		System.arraycopy(this.encoded.array(), 0, this.data, offset, length);
+		if (this.entries == 0) {
+			this.firstTick = tick;
+			this.dataStart = offset;
+		}
+		int slot = this.slot(this.entries);
+		this.entryOffset[slot] = offset;
+		this.entryLength[slot] = length;
+		this.keyframe[slot] = isKeyframe;
+		this.entries++;
+		this.dataEnd = offset + length;
+		this.bytesStored += length;
+		this.sinceKeyframe = isKeyframe ? 0 : this.sinceKeyframe + 1;
+		if (isKeyframe) {
+			this.keyframes++;
+			this.keyframeBytes += length;
+		} else {
+			this.deltas++;
+			this.deltaBytes += length;
+		}
+
+		//the recorded state is the baseline of the next one
+		byte[] swap = this.previous;
+		this.previous = this.current;
+		this.current = swap;
+		int[] swapLayout = this.previousLayout;
+		this.previousLayout = this.currentLayout;
+		this.currentLayout = swapLayout;
+		this.hasPrevious = true;
+	}
+
+	/**
+	 * Returns the recorded state of a tick in the format of SaveFile.writeState().
+	 * The buffer is valid until the next call.
+	 *
+	 * @param tick Between getFirstTick() and getLastTick().
+	 * @return
+	 */
+	public ByteBuffer seek(long tick) {
+		if (tick < this.firstTick || tick > this.getLastTick()) {
+			throw new IllegalArgumentException("Tick " + tick + " is not in the rewind buffer");
+		}
+		int target = (int) (tick - this.firstTick);
+		int start = target;
+		while (!this.keyframe[this.slot(start)]) {
+			start--;
+		}
+
+		int size = this.decode(start, false);
+		for (int i = start + 1; i <= target; i++) {
+			byte[] swap = this.seekFrom;
+			this.seekFrom = this.seekTo;
+			this.seekTo = swap;
+			int[] swapLayout = this.seekFromLayout;
+			this.seekFromLayout = this.seekToLayout;
+			this.seekToLayout = swapLayout;
+			size = this.decode(i, true);
+		}
+		return ByteBuffer.wrap(this.seekTo, 0, size);
+	}
+
+	/**
+	 * Put the game back to the state of a tick and forget the ticks after it.
+	 * Recording continues from tick + 1.
+	 *
+	 * @param tick Between getFirstTick() and getLastTick().
+	 * @param camera Can be null.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 */
+	public void rewind(long tick, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) {
+		ByteBuffer state = this.seek(tick);
+		int size = state.remaining();
+		SaveFile.readState(state, camera, ship, enemies, projectiles);
+
+		//forget the future
+		int last = (int) (tick - this.firstTick);
+		for (int i = last + 1; i < this.entries; i++) {
+			this.bytesStored -= this.entryLength[this.slot(i)];
+		}
+		this.entries = last + 1;
+		this.dataEnd = this.entryOffset[this.slot(last)] + this.entryLength[this.slot(last)];
+		this.sinceKeyframe = 0;
+		while (!this.keyframe[this.slot(last - this.sinceKeyframe)]) {
+			this.sinceKeyframe++;
+		}
+
+		//the rewound state is the baseline of the next one
+		if (this.previous.length < size) {
+			this.previous = new byte[size];
+		}
+		System.arraycopy(this.seekTo, 0, this.previous, 0, size);
+		System.arraycopy(this.seekToLayout, 0, this.previousLayout, 0, SECTIONS * 3);
+		this.hasPrevious = true;
+	}
+
+	/**
+	 * Forget all the recorded states.
+	 */
+	public void clear() {
+		this.entries = 0;
+		this.dataStart = 0;
+		this.dataEnd = 0;
+		this.bytesStored = 0;
+		this.hasPrevious = false;
+	}
+
+	/** Drop the oldest keyframe and its deltas. */
+	private void dropOldest() {
+		do {
+			this.bytesStored -= this.entryLength[this.first];
+			this.first = (this.first + 1) % this.entryOffset.length;
+			this.firstTick++;
+			this.entries--;
+		} while (this.entries > 0 && !this.keyframe[this.first]);
+		if (this.entries == 0) {
+			this.dataStart = 0;
+			this.dataEnd = 0;
+		} else {
+			this.dataStart = this.entryOffset[this.first];
+		}
+	}
+
+	/**
+	 * Returns the offset where an entry of the given length fits, -1 if the
+	 * oldest entries have to be dropped first.
+	 */
+	private int allocate(int length) {
+		if (this.entries == this.entryOffset.length) {
+			return -1;
+		}
+		if (this.entries == 0) {
+			return length <= this.data.length ? 0 : -1;
+		}
+		if (this.dataEnd > this.dataStart) {
+			//free space at the end and at the start
+			if (length <= this.data.length - this.dataEnd) {
+				return this.dataEnd;
+			}
+			return length <= this.dataStart ? 0 : -1;
+		}
+		//wrapped, free space between the newest and the oldest entry
+		return length <= this.dataStart - this.dataEnd ? this.dataEnd : -1;
+	}
+
+	private int slot(int index) {
+		return (this.first + index) % this.entryOffset.length;
+	}
+
+	/** Describe the sections of a state: header size, record count and record size of each. */
+	private static void layout(int[] layout, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) {
+		int swarmers = enemies.getSwarmers().size();
+		int fighters = enemies.getFighters().size();
+		set(layout, 0, 1 + (camera != null ? SaveFile.CAMERA_SIZE : 0), 0, 0);
+		set(layout, 1, 0, 1, ship.getSaveSize());
+		set(layout, 2, 4, swarmers, swarmers > 0 ? enemies.getSwarmers().get(0).getSaveSize() : 0);
+		set(layout, 3, 4, fighters, fighters > 0 ? enemies.getFighters().get(0).getSaveSize() : 0);
+		set(layout, 4, 4 + (enemies.getSectors() != null ? enemies.getSectors().getSaveSize() : 0), 0, 0);
+		set(layout, 5, 4 * 4, projectiles.getSize(), Projectile.SAVE_SIZE);
+	}
+
+	private static void set(int[] layout, int section, int headerSize, int count, int recordSize) {
+		layout[section * 3] = headerSize;
+		layout[section * 3 + 1] = count;
+		layout[section * 3 + 2] = recordSize;
+	}
+
+	/** Encode the current state against the previous one, or whole. Returns the length. */
+	private int encode(boolean whole) {
+		int size = stateSize(this.currentLayout);
+		int records = 0;
+		for (int s = 0; s < SECTIONS; s++) {
+			records += this.currentLayout[s * 3 + 1];
+		}
+		//the worst case: everything changed, a mask and an id for every record and block and a byte for every chunk
+		int capacity = size + size / CHUNK + 10 * (size / BLOCK) + 15 * (records + 2 * SECTIONS) + 5;
+		if (this.encoded.capacity() < capacity) {
+			this.encoded = ByteBuffer.allocate(capacity + capacity / 2);
+		}
+		ByteBuffer out = this.encoded;
+		out.clear();
+		putVarLong(out, size);
+
+		byte[] prev = whole ? null : this.previous;
+		int prevOffset = 0;
+		int curOffset = 0;
+		for (int s = 0; s < SECTIONS; s++) {
+			int headerSize = this.currentLayout[s * 3];
+			int count = this.currentLayout[s * 3 + 1];
+			int recordSize = this.currentLayout[s * 3 + 2];
+			int prevHeaderSize = prev != null ? this.previousLayout[s * 3] : -1;
+			int prevCount = prev != null ? this.previousLayout[s * 3 + 1] : 0;
+			int prevRecordSize = prev != null ? this.previousLayout[s * 3 + 2] : -1;
+
+			putVarLong(out, headerSize);
+			putChunks(out, prevHeaderSize == headerSize ? prev : null, prevOffset, this.current, curOffset, headerSize);
+			prevOffset += Math.max(0, prevHeaderSize);
+			curOffset += headerSize;
+
+			putVarLong(out, recordSize);
+			putVarLong(out, count);
+			int p = 0;
+			int previousId = 0;
+			for (int r = 0; r < count; r++) {
+				int record = curOffset + r * recordSize;
+				int id = getInt(this.current, record);
+				putVarLong(out, zigzag(id - previousId));
+				previousId = id;
+				while (p < prevCount && getInt(prev, prevOffset + p * prevRecordSize) < id) {
+					p++;
+				}
+				boolean known = p < prevCount && prevRecordSize == recordSize && getInt(prev, prevOffset + p * prevRecordSize) == id;
+				putChunks(out, known ? prev : null, prevOffset + p * prevRecordSize + 4, this.current, record + 4, recordSize - 4);
+			}
+			if (prev != null) {
+				prevOffset += prevCount * prevRecordSize;
+			}
+			curOffset += count * recordSize;
+		}
+		return out.position();
+	}
+
+	/**
+	 * Decode the entry at an index into seekTo, against seekFrom if it's a delta.
+	 * Returns the size of the state.
+	 */
+	private int decode(int index, boolean delta) {
+		int slot = this.slot(index);
+		ByteBuffer in = ByteBuffer.wrap(this.data, this.entryOffset[slot], this.entryLength[slot]);
+		int size = (int) getVarLong(in);
+		if (this.seekTo.length < size) {
+			this.seekTo = new byte[Math.max(size, this.seekTo.length * 2)];
+		}
+		byte[] prev = delta && !this.keyframe[slot] ? this.seekFrom : null;
+		int[] prevLayout = this.seekFromLayout;
+		byte[] out = this.seekTo;
+
+		int prevOffset = 0;
+		int outOffset = 0;
+		for (int s = 0; s < SECTIONS; s++) {
+			int prevHeaderSize = prev != null ? prevLayout[s * 3] : -1;
+			int prevCount = prev != null ? prevLayout[s * 3 + 1] : 0;
+			int prevRecordSize = prev != null ? prevLayout[s * 3 + 2] : -1;
+
+			int headerSize = (int) getVarLong(in);
+			getChunks(in, prevHeaderSize == headerSize ? prev : null, prevOffset, out, outOffset, headerSize);
+			prevOffset += Math.max(0, prevHeaderSize);
+			outOffset += headerSize;
+
+			int recordSize = (int) getVarLong(in);
+			int count = (int) getVarLong(in);
+			int p = 0;
+			int previousId = 0;
+			for (int r = 0; r < count; r++) {
+				int record = outOffset + r * recordSize;
+				int id = previousId + unzigzag(getVarLong(in));
+				previousId = id;
+				while (p < prevCount && getInt(prev, prevOffset + p * prevRecordSize) < id) {
+					p++;
+				}
+				boolean known = p < prevCount && prevRecordSize == recordSize && getInt(prev, prevOffset + p * prevRecordSize) == id;
+				putInt(out, record, id);
+				getChunks(in, known ? prev : null, prevOffset + p * prevRecordSize + 4, out, record + 4, recordSize - 4);
+			}
+			if (prev != null) {
+				prevOffset += prevCount * prevRecordSize;
+			}
+			outOffset += count * recordSize;
+			set(this.seekToLayout, s, headerSize, count, recordSize);
+		}
+		return size;
+	}
+
+	/** Write the chunks of cur that differ from prev. All the chunks if prev is null. */
+	private static void putChunks(ByteBuffer out, byte[] prev, int prevOffset, byte[] cur, int curOffset, int length) {
+		int block = 0;
+		do {
+			putBlock(out, prev, prevOffset + block, cur, curOffset + block, Math.min(BLOCK, length - block));
+			block += BLOCK;
+		} while (block < length);
+	}
+
+	/** Read chunks written by putChunks(), the rest are copied from prev. */
+	private static void getChunks(ByteBuffer in, byte[] prev, int prevOffset, byte[] out, int outOffset, int length) {
+		int block = 0;
+		do {
+			getBlock(in, prev, prevOffset + block, out, outOffset + block, Math.min(BLOCK, length - block));
+			block += BLOCK;
+		} while (block < length);
+	}
+
+	/** Write the chunks of a block of at most BLOCK bytes with one mask. */
+	private static void putBlock(ByteBuffer out, byte[] prev, int prevOffset, byte[] cur, int curOffset, int length) {
+		int chunks = (length + CHUNK - 1) / CHUNK;
+		long mask = 0;
+		for (int c = 0; c < chunks; c++) {
+			if (prev == null || !equal(prev, prevOffset + c * CHUNK, cur, curOffset + c * CHUNK, Math.min(CHUNK, length - c * CHUNK))) {
+				mask |= 1L << c;
+			}
+		}
+		putVarLong(out, mask);
+		for (int c = 0; c < chunks; c++) {
+			if ((mask & (1L << c)) != 0) {
+				//xor with the old chunk: the high bytes of a number that changed a little are zeros
+				int chunk = Math.min(CHUNK, length - c * CHUNK);
+				int zeros = 0;
+				while (zeros < chunk && cur[curOffset + c * CHUNK + zeros] == (prev != null ? prev[prevOffset + c * CHUNK + zeros] : 0)) {
+					zeros++;
+				}
+				out.put((byte) zeros);
+				for (int i = zeros; i < chunk; i++) {
+					out.put((byte) (cur[curOffset + c * CHUNK + i] ^ (prev != null ? prev[prevOffset + c * CHUNK + i] : 0)));
+				}
+			}
+		}
+	}
+
+	/** Read a block written by putBlock(). */
+	private static void getBlock(ByteBuffer in, byte[] prev, int prevOffset, byte[] out, int outOffset, int length) {
+		int chunks = (length + CHUNK - 1) / CHUNK;
+		long mask = getVarLong(in);
+		for (int c = 0; c < chunks; c++) {
+			int chunk = Math.min(CHUNK, length - c * CHUNK);
+			if ((mask & (1L << c)) != 0) {
+				int zeros = in.get();
+				for (int i = 0; i < chunk; i++) {
+					byte old = prev != null ? prev[prevOffset + c * CHUNK + i] : 0;
+					out[outOffset + c * CHUNK + i] = i < zeros ? old : (byte) (in.get() ^ old);
+				}
+			} else {
+				System.arraycopy(prev, prevOffset + c * CHUNK, out, outOffset + c * CHUNK, chunk);
+			}
+		}
+	}
+
+	private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int stateSize(int[] layout) {
+		int size = 0;
+		for (int s = 0; s < SECTIONS; s++) {
+			size += layout[s * 3] + layout[s * 3 + 1] * layout[s * 3 + 2];
+		}
+		return size;
+	}
+
+	/** Read a big-endian int like ByteBuffer writes them. */
+	private static int getInt(byte[] array, int offset) {
+		return (array[offset] << 24) | ((array[offset + 1] & 0xFF) << 16) | ((array[offset + 2] & 0xFF) << 8) | (array[offset + 3] & 0xFF);
+	}
+
+	private static void putInt(byte[] array, int offset, int value) {
+		array[offset] = (byte) (value >>> 24);
+		array[offset + 1] = (byte) (value >>> 16);
+		array[offset + 2] = (byte) (value >>> 8);
+		array[offset + 3] = (byte) value;
+	}
+
+	private static void putVarLong(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private static long getVarLong(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static long zigzag(int value) {
+		return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+	}
+
+	private static int unzigzag(long value) {
+		int v = (int) value;
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Returns the oldest tick that can be rewound to.
+	 *
+	 * @return
+	 */
+	public long getFirstTick() {
+		return this.firstTick;
+	}
+
+	/**
+	 * Returns the newest recorded tick, getFirstTick() - 1 if the buffer is empty.
+	 *
+	 * @return
+	 */
+	public long getLastTick() {
+		return this.firstTick + this.entries - 1;
+	}
+
+	/**
+	 * Returns the amount of ticks that can be rewound.
+	 *
+	 * @return
+	 */
+	public int getTicks() {
+		return this.entries;
+	}
+
+	/**
+	 * Returns the bytes the recorded ticks take.
+	 *
+	 * @return
+	 */
+	public long getBytesStored() {
+		return this.bytesStored;
+	}
+
+	/**
+	 * Returns the mean bytes of a recorded tick in the buffer, keyframes included.
+	 *
+	 * @return
+	 */
+	public double getBytesPerTick() {
+		return this.entries == 0 ? 0 : (double) this.bytesStored / this.entries;
+	}
+
+	/**
+	 * Returns the mean bytes of a delta since the start.
+	 *
+	 * @return
+	 */
+	public double getBytesPerDelta() {
+		return this.deltas == 0 ? 0 : (double) this.deltaBytes / this.deltas;
+	}
+
+	/**
+	 * Returns the mean bytes of a keyframe since the start.
+	 *
+	 * @return
+	 */
+	public double getBytesPerKeyframe() {
+		return this.keyframes == 0 ? 0 : (double) this.keyframeBytes / this.keyframes;
+	}
+
+}
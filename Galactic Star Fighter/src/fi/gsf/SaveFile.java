@@ -0,0 +1,178 @@
+package fi.gsf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.systems.EnemySystem;
+import fi.gsf.systems.ProjectileSystem;
+
+/**
+ * Quick save and load of a game in a compact binary file.
+ *
+ * Every object writes its own fields straight into one direct buffer that
+ * is written to the file or read from it with a single channel operation,
+ * so there's no object serialization and no copying through streams: even
+ * 100 000 objects save and load in milliseconds. The file isn't mapped,
+ * because a mapping can't be released and on Windows it keeps the file
+ * from being resized by the next save.
+ *
+ * Format: int MAGIC, int VERSION, int world width, int world height and
+ * the state: byte camera saved, the camera, the ship, the enemies and the
+ * projectiles (see the save() methods of each). The state without the file
+ * header is also used by RewindBuffer. A save is loaded into a game of the same
+ * world size: the systems are emptied and filled from the file, the ship and
+ * the camera keep their objects and get the saved state.
+ *
+ * @author X455u
+ */
+public class SaveFile {
+
+	/** "GSFS", the start of every save. */
+	public static final int MAGIC = 0x47534653;
+
+	/** The version of the format. Older versions can't be loaded. 2: space objects have their ids, 3: the sectors of an open world, 4: homing projectiles, 5: beams, 6: the lasers of the swarmers are beams. */
+	public static final int VERSION = 6;
+
+	/** The bytes before the state. */
+	private static final int HEADER_SIZE = 4 * 4;
+
+	/** The bytes of a saved camera. */
+	static final int CAMERA_SIZE = 2 * 8;
+
+	private SaveFile() {
+	}
+
+	/**
+	 * Save a game.
+	 *
+	 * @param file
+	 * @param camera Can be null, for example on the server.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 * @throws IOException
+	 */
+	public static void save(File file, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) throws IOException {
+		int size = HEADER_SIZE + getStateSize(camera, ship, enemies, projectiles);
+		World world = projectiles.getWorld();
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(world.getWidth()).putInt(world.getHeight());
+		writeState(buffer, camera, ship, enemies, projectiles);
+		buffer.flip();
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(size);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Load a game saved with save().
+	 *
+	 * @param file
+	 * @param camera Can be null. Not changed if the save has no camera.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 * @throws IOException If the file isn't a save of this version and world size.
+	 */
+	public static void load(File file, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) throws IOException {
+		World world = projectiles.getWorld();
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException(file + " is truncated");
+				}
+			}
+			buffer.flip();
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a save");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Save version " + version + " is not supported, expected " + VERSION);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			if (width != world.getWidth() || height != world.getHeight()) {
+				throw new IOException("The save is of a world of " + width + "x" + height + ", not " + world.getWidth() + "x" + world.getHeight());
+			}
+			readState(buffer, camera, ship, enemies, projectiles);
+		} catch (BufferUnderflowException e) {
+			throw new IOException(file + " is truncated");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the bytes writeState() writes.
+	 *
+	 * @param camera Can be null.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 * @return
+	 */
+	public static int getStateSize(Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) {
+		return 1 + (camera != null ? CAMERA_SIZE : 0) + ship.getSaveSize() + enemies.getSaveSize() + projectiles.getSaveSize();
+	}
+
+	/**
+	 * Write the state of a game without the file header.
+	 *
+	 * @param buffer
+	 * @param camera Can be null.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 */
+	public static void writeState(ByteBuffer buffer, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) {
+		buffer.put((byte) (camera != null ? 1 : 0));
+		if (camera != null) {
+			camera.save(buffer);
+		}
+		ship.save(buffer);
+		enemies.save(buffer);
+		projectiles.save(buffer);
+	}
+
+	/**
+	 * Read the state written by writeState().
+	 *
+	 * @param buffer
+	 * @param camera Can be null. Not changed if the state has no camera.
+	 * @param ship
+	 * @param enemies
+	 * @param projectiles
+	 */
+	public static void readState(ByteBuffer buffer, Camera camera, Spacecraft ship, EnemySystem enemies, ProjectileSystem projectiles) {
+		if (buffer.get() != 0) {
+			if (camera != null) {
+				camera.load(buffer);
+			} else {
+				buffer.position(buffer.position() + CAMERA_SIZE);
+			}
+		}
+		ship.load(buffer);
+		enemies.load(buffer);
+		projectiles.load(buffer);
+	}
+
+}
@@ -0,0 +1,233 @@
+package fi.gsf;
+
+import java.util.Random;
+
+import fi.gsf.systems.Kinematics;
+
+/**
+ * The context of one simulation: the size of the world, the scale of the
+ * physics, the view of the player and the random numbers.
+ *
+ * Every system and object of a game gets its world from the game instead of
+ * reading statics, so any number of games can run in the same JVM. All the
+ * randomness of the simulation comes from the world's seeded generator, so a
+ * game with the same seed and the same input plays out the same way.
+ *
+ * A world is bounded by default. An open world (setSectorSize()) has no
+ * bounds, it's divided into sectors that are streamed in and out around the
+ * player by a SectorSystem.
+ *
+ * The trigonometry of the simulation goes through the world too. In a
+ * deterministic world (setDeterministic()) it comes from FixedMath and the
+ * kinematics works in fixed point, so the simulation gives the same bits on
+ * every JVM and the peers of a lockstep game only need to share the input.
+ *
+ * @author X455u
+ */
+public class World {
+
+	/** Half of the height of the world if none is given. The world is from -1000 to 1000. */
+	public static final int DEFAULT_HEIGHT = 1000;
+
+	/** Half of the width of the world if none is given. 16:10 like the screen. */
+	public static final int DEFAULT_WIDTH = DEFAULT_HEIGHT * 16 / 10;
+
+	/** Pixels per meter if none is given. */
+	public static final double DEFAULT_PIXEL_RATIO = 5.0;
+
+	//the view of the game window if none is given
+	public static final int DEFAULT_SCREEN_WIDTH = 1280;
+	public static final int DEFAULT_SCREEN_HEIGHT = 800;
+
+	/** Half of the width of the world. The world is from -width to width. */
+	private int width;
+
+	/** Half of the height of the world. The world is from -height to height. */
+	private int height;
+
+	/** Pixels per meter. */
+	private double pixelRatio;
+
+	private int screenWidth;
+	private int screenHeight;
+
+	/** The seed of the random numbers. */
+	private long seed;
+
+	private Random random;
+
+	/** The size of a sector of an open world, 0 if the world is bounded. */
+	private int sectorSize;
+
+	/** Moves the bodies of the world. */
+	private Kinematics kinematics;
+
+	/** True if the simulation is the same on every JVM. */
+	private boolean deterministic;
+
+	/** Records the events of the simulation when it's enabled. */
+	private EventRecorder recorder;
+
+
+	/**
+	 * Create a world of the default size.
+	 *
+	 * @param seed The seed of the random numbers.
+	 */
+	public World(long seed) {
+		this(DEFAULT_WIDTH, DEFAULT_HEIGHT, DEFAULT_PIXEL_RATIO, DEFAULT_SCREEN_WIDTH, DEFAULT_SCREEN_HEIGHT, seed);
+	}
+
+	/**
+	 * Create a new world.
+	 *
+	 * @param width Half of the width of the world in pixels.
+	 * @param height Half of the height of the world in pixels.
+	 * @param pixelRatio Pixels per meter.
+	 * @param screenWidth The width of the view in pixels.
+	 * @param screenHeight The height of the view in pixels.
+	 * @param seed The seed of the random numbers.
+	 */
+	public World(int width, int height, double pixelRatio, int screenWidth, int screenHeight, long seed) {
+		this.width = width;
+		this.height = height;
+		this.pixelRatio = pixelRatio;
+		this.screenWidth = screenWidth;
+		this.screenHeight = screenHeight;
+		this.seed = seed;
+		this.random = new Random(seed);
+		this.kinematics = new Kinematics(this);
+		this.recorder = new EventRecorder(EventRecorder.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns half of the width of the world. The world is from -width to width.
+	 *
+	 * @return
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Returns half of the height of the world. The world is from -height to height.
+	 *
+	 * @return
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Returns pixels per meter.
+	 *
+	 * @return
+	 */
+	public double getPixelRatio() {
+		return this.pixelRatio;
+	}
+
+	public int getScreenWidth() {
+		return this.screenWidth;
+	}
+
+	public int getScreenHeight() {
+		return this.screenHeight;
+	}
+
+	public long getSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * Open the world: nothing is kept inside the bounds, the world is divided
+	 * into sectors of this size instead.
+	 *
+	 * @param sectorSize The width and the height of a sector in pixels, 0 for a bounded world.
+	 */
+	public void setSectorSize(int sectorSize) {
+		this.sectorSize = sectorSize;
+	}
+
+	public int getSectorSize() {
+		return this.sectorSize;
+	}
+
+	/**
+	 * Returns true if the world has sectors instead of bounds.
+	 *
+	 * @return
+	 */
+	public boolean isOpen() {
+		return this.sectorSize > 0;
+	}
+
+	/**
+	 * Make the simulation give the same bits on every JVM: fixed-point
+	 * kinematics and table trigonometry. Set before the game starts.
+	 *
+	 * @param deterministic
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+
+	/**
+	 * Returns true if the simulation is the same on every JVM.
+	 *
+	 * @return
+	 */
+	public boolean isDeterministic() {
+		return this.deterministic;
+	}
+
+	public double sin(double angle) {
+		return this.deterministic ? FixedMath.sin(angle) : Math.sin(angle);
+	}
+
+	public double cos(double angle) {
+		return this.deterministic ? FixedMath.cos(angle) : Math.cos(angle);
+	}
+
+	public double atan2(double y, double x) {
+		return this.deterministic ? FixedMath.atan2(y, x) : Math.atan2(y, x);
+	}
+
+	public double hypot(double x, double y) {
+		return this.deterministic ? FixedMath.hypot(x, y) : Math.hypot(x, y);
+	}
+
+	public double pow(double a, double b) {
+		return this.deterministic ? StrictMath.pow(a, b) : Math.pow(a, b);
+	}
+
+	/**
+	 * Returns the kinematics that moves the ship, the enemies and the projectiles.
+	 *
+	 * @return
+	 */
+	public Kinematics getKinematics() {
+		return this.kinematics;
+	}
+
+	/**
+	 * Returns the recorder of the events of the simulation. Off unless it's
+	 * enabled.
+	 *
+	 * @return
+	 */
+	public EventRecorder getRecorder() {
+		return this.recorder;
+	}
+
+	/**
+	 * Returns the random number generator of the simulation. Not thread-safe,
+	 * like the rest of the world it's only used by the thread running the game.
+	 *
+	 * @return
+	 */
+	public Random getRandom() {
+		return this.random;
+	}
+
+}
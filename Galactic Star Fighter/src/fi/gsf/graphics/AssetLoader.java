@@ -0,0 +1,162 @@
+package fi.gsf.graphics;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.newdawn.slick.SlickException;
+
+/**
+ * Loads the images of the game in the background.
+ *
+ * The image files are decoded in parallel on worker threads. The decoded
+ * pixels are queued and handed to the texture atlas on the GL thread by
+ * update(), which also packs and uploads the atlas once everything has
+ * been decoded. With a texture cache the pixels decoded on an earlier
+ * start are mapped from the cache instead of decoding the files again.
+ *
+ * @author X455u
+ */
+public class AssetLoader {
+
+	/** The atlas the images are packed into. */
+	private TextureAtlas atlas;
+
+	/** The resource references of the images to load. */
+	private String[] refs;
+
+	/** The decoded pixels of the earlier starts, null to always decode. */
+	private TextureCache cache;
+
+	/** Worker threads decoding the images. */
+	private ExecutorService workers;
+
+	/** Decoded images waiting to be handed to the atlas on the GL thread. */
+	private ConcurrentLinkedQueue<DecodedImage> decoded;
+
+	/** The first error that happened on a worker thread. */
+	private volatile SlickException error;
+
+	/** The amount of images that couldn't be loaded, done as far as the progress goes. */
+	private AtomicInteger failed = new AtomicInteger();
+
+	/** The amount of images handed to the atlas. */
+	private int loaded;
+
+	/** True when the atlas has been packed and uploaded. */
+	private boolean done;
+
+
+	/**
+	 * Create a new loader. Nothing is loaded until start() is called.
+	 *
+	 * @param atlas
+	 * @param refs
+	 */
+	public AssetLoader(TextureAtlas atlas, String[] refs) {
+		this.atlas = atlas;
+		this.refs = refs;
+		this.decoded = new ConcurrentLinkedQueue<DecodedImage>();
+	}
+
+	/**
+	 * Use a cache of decoded pixels. Set before start().
+	 *
+	 * @param cache Null to always decode the images.
+	 */
+	public void setCache(TextureCache cache) {
+		this.cache = cache;
+	}
+
+	public TextureCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Start decoding the images on worker threads.
+	 */
+	public void start() {
+		int threads = Math.max(1, Math.min(this.refs.length, Runtime.getRuntime().availableProcessors()));
+		this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Asset loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		for (final String ref : this.refs) {
+			this.workers.execute(new Runnable() {
+				public void run() {
+					try {
+						decoded.add(cache != null ? cache.load(ref) : DecodedImage.decode(ref));
+					} catch (SlickException e) {
+						fail(e);
+					} catch (RuntimeException e) {
+						//a missing resource or a bug of a decoder, the executor would swallow it
+						fail(new SlickException("Failed to load image: " + ref, e));
+					}
+				}
+			});
+		}
+		this.workers.shutdown();
+	}
+
+	/** Keep the first error of the workers and count the image as done. */
+	private void fail(SlickException e) {
+		synchronized (this) {
+			if (this.error == null) {
+				this.error = e;
+			}
+		}
+		this.failed.incrementAndGet();
+	}
+
+	/**
+	 * Hand the decoded images to the atlas. When every image has been decoded
+	 * the atlas is packed and uploaded. Must be called on the GL thread.
+	 *
+	 * @throws SlickException If an image couldn't be loaded.
+	 */
+	public void update() throws SlickException {
+		if (this.error != null) {
+			throw this.error;
+		}
+		if (this.done) {
+			return;
+		}
+
+		DecodedImage image;
+		while ((image = this.decoded.poll()) != null) {
+			this.atlas.add(image);
+			this.loaded++;
+		}
+
+		if (this.loaded + this.failed.get() == this.refs.length) {
+			this.atlas.pack();
+			this.done = true;
+		}
+	}
+
+	/**
+	 * Returns how much of the loading has been done, between 0 and 1.
+	 * Uploading the atlas counts as the last step.
+	 *
+	 * @return
+	 */
+	public float getProgress() {
+		return (float) (this.loaded + this.failed.get() + (this.done ? 1 : 0)) / (this.refs.length + 1);
+	}
+
+	/**
+	 * Returns true when all the images are ready to be used.
+	 *
+	 * @return
+	 */
+	public boolean isDone() {
+		return this.done;
+	}
+
+}
@@ -0,0 +1,91 @@
+package fi.gsf.graphics;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.opengl.ImageData;
+import org.newdawn.slick.opengl.ImageDataFactory;
+import org.newdawn.slick.opengl.LoadableImageData;
+import org.newdawn.slick.util.ResourceLoader;
+
+/**
+ * The decoded pixels of an image file (PNG, TGA, BMP...) that haven't been
+ * uploaded to a texture yet.
+ *
+ * Decoding doesn't touch OpenGL so it can be done on any thread.
+ *
+ * @author X455u
+ */
+public class DecodedImage {
+
+	/** The resource reference of the image. */
+	private String ref;
+
+	/** The size and format of the pixels. */
+	private ImageData data;
+
+	/** The pixels. Rows are getTexWidth() pixels long. */
+	private ByteBuffer pixels;
+
+
+	/**
+	 * Decode an image file.
+	 *
+	 * @param ref
+	 * @return
+	 * @throws SlickException
+	 */
+	public static DecodedImage decode(String ref) throws SlickException {
+		LoadableImageData data = ImageDataFactory.getImageDataFor(ref);
+		InputStream in = ResourceLoader.getResourceAsStream(ref);
+		try {
+			ByteBuffer pixels = data.loadImage(new BufferedInputStream(in), false, null);
+			return new DecodedImage(ref, data, pixels);
+		} catch (IOException e) {
+			throw new SlickException("Failed to decode image: " + ref, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				//nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Create a decoded image from pixels that are already in memory.
+	 *
+	 * @param ref
+	 * @param data
+	 * @param pixels
+	 */
+	public DecodedImage(String ref, ImageData data, ByteBuffer pixels) {
+		this.ref = ref;
+		this.data = data;
+		this.pixels = pixels;
+	}
+
+	public String getRef() {
+		return this.ref;
+	}
+
+	public ImageData getData() {
+		return this.data;
+	}
+
+	public ByteBuffer getPixels() {
+		return this.pixels;
+	}
+
+	public int getWidth() {
+		return this.data.getWidth();
+	}
+
+	public int getHeight() {
+		return this.data.getHeight();
+	}
+
+}
@@ -0,0 +1,132 @@
+package fi.gsf.graphics;
+
+import org.newdawn.slick.Color;
+import org.newdawn.slick.Graphics;
+
+import fi.gsf.Camera;
+
+/**
+ * Draws a crowd, like a swarm or a stream of bullets, as its density on a
+ * coarse grid of the screen instead of a sprite for each member, for a view
+ * zoomed so far out that the sprites would be a pixel or two.
+ *
+ * The members are counted into the cells of the screen with add(), a few
+ * integer operations each, and render() fills every cell that has members
+ * with the color, more opaque the more members there are. So the drawing
+ * depends on how much of the screen the crowd covers, not on its size.
+ *
+ * The grid is drawn with the zoom of the camera applied, like the sprites.
+ *
+ * @author X455u
+ */
+public class ImpostorGrid {
+
+	/** The width and height of a cell on the screen in pixels. */
+	private int cellSize;
+
+	/** The camera the members are counted for. */
+	private Camera camera;
+
+	//the grid in the coordinates of the camera before the zoom
+	private double left;
+	private double top;
+	private double cell;
+	private int columns;
+	private int rows;
+
+	/** The members in each cell. */
+	private int[] counts = new int[0];
+
+	/** The cells that have members, to clear and draw only them. */
+	private int[] filled = new int[0];
+	private int filledCount;
+
+	/** The color of the cell being drawn. */
+	private Color color = new Color(1f, 1f, 1f);
+
+
+	/**
+	 * Create a new grid.
+	 *
+	 * @param cellSize The width and height of a cell on the screen in pixels.
+	 */
+	public ImpostorGrid(int cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Start counting a crowd for the view of a camera.
+	 *
+	 * @param camera
+	 * @param viewWidth The width of the view in pixels.
+	 * @param viewHeight The height of the view in pixels.
+	 */
+	public void begin(Camera camera, int viewWidth, int viewHeight) {
+		for (int i = 0; i < this.filledCount; i++) {
+			this.counts[this.filled[i]] = 0;
+		}
+		this.filledCount = 0;
+
+		this.camera = camera;
+		double zoom = camera.getZoom();
+		this.cell = this.cellSize / zoom;
+		this.left = viewWidth / 2.0 - viewWidth / 2.0 / zoom;
+		this.top = viewHeight / 2.0 - viewHeight / 2.0 / zoom;
+		this.columns = viewWidth / this.cellSize + 1;
+		this.rows = viewHeight / this.cellSize + 1;
+		int size = this.columns * this.rows;
+		if (this.counts.length < size) {
+			this.counts = new int[size];
+			this.filled = new int[size];
+		}
+	}
+
+	/**
+	 * Count a member of the crowd. Members outside the view are skipped.
+	 *
+	 * @param x World x-coordinate.
+	 * @param y World y-coordinate.
+	 */
+	public void add(double x, double y) {
+		double column = (this.camera.getScreenX(x) - this.left) / this.cell;
+		double row = (this.camera.getScreenY(y) - this.top) / this.cell;
+		if (column < 0 || row < 0 || column >= this.columns || row >= this.rows) {
+			return;
+		}
+		int i = (int) row * this.columns + (int) column;
+		if (this.counts[i]++ == 0) {
+			this.filled[this.filledCount++] = i;
+		}
+	}
+
+	/**
+	 * Draw the cells that have members.
+	 *
+	 * @param g
+	 * @param color The color of the crowd.
+	 * @param full How many members in a cell make it fully opaque.
+	 */
+	public void render(Graphics g, Color color, int full) {
+		this.color.r = color.r;
+		this.color.g = color.g;
+		this.color.b = color.b;
+		for (int i = 0; i < this.filledCount; i++) {
+			int index = this.filled[i];
+			//even a lone member shows
+			this.color.a = 0.3f + 0.7f * Math.min(1f, (float) this.counts[index] / full);
+			g.setColor(this.color);
+			g.fillRect((float) (this.left + index % this.columns * this.cell), (float) (this.top + index / this.columns * this.cell),
+					(float) this.cell, (float) this.cell);
+		}
+	}
+
+	/**
+	 * Returns the amount of cells the crowd covers.
+	 *
+	 * @return
+	 */
+	public int getFilled() {
+		return this.filledCount;
+	}
+
+}
@@ -0,0 +1,323 @@
+package fi.gsf.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.lwjgl.BufferUtils;
+import org.newdawn.slick.Image;
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.opengl.ImageData;
+
+/**
+ * Packs the sprites of the game into a few big textures (pages) so that
+ * drawing different sprites doesn't need a texture bind for every switch.
+ *
+ * Images are added with add(), packed with a shelf packer in pack() and
+ * then handed out as sub-images with getImage().
+ *
+ * @author X455u
+ */
+public class TextureAtlas {
+
+	/** The width and height of one atlas page in pixels. Has to be a power of two. */
+	public static final int DEFAULT_PAGE_SIZE = 512;
+
+	/** Empty pixels between two sprites so that linear filtering doesn't bleed the neighbours. */
+	private static final int PADDING = 2;
+
+	/** The atlas shared by the whole game. */
+	private static TextureAtlas atlas;
+
+	/** True if there is no display. No images are loaded and getImage() returns null. */
+	private static boolean headless;
+
+	/** The width and height of the pages. */
+	private int pageSize;
+
+	/** Decoded images added but not packed yet. */
+	private ArrayList<DecodedImage> pending;
+
+	/** Packed sprites by their resource reference. */
+	private HashMap<String, Image> regions;
+
+	/** The textures of the packed pages. */
+	private ArrayList<Image> pages;
+
+
+	/**
+	 * Returns the atlas shared by the whole game.
+	 *
+	 * @return
+	 */
+	public static TextureAtlas get() {
+		if (atlas == null) {
+			atlas = new TextureAtlas(DEFAULT_PAGE_SIZE);
+		}
+		return atlas;
+	}
+
+	/**
+	 * Run without a display, for example on a server.
+	 * The objects of the game get no images and use their radius for hits.
+	 *
+	 * @param headless
+	 */
+	public static void setHeadless(boolean headless) {
+		TextureAtlas.headless = headless;
+	}
+
+	/**
+	 * Returns true if the game runs without a display.
+	 *
+	 * @return
+	 */
+	public static boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * Create a new empty atlas.
+	 *
+	 * @param pageSize The width and height of one page. Power of two.
+	 */
+	public TextureAtlas(int pageSize) {
+		this.pageSize = pageSize;
+		this.pending = new ArrayList<DecodedImage>();
+		this.regions = new HashMap<String, Image>();
+		this.pages = new ArrayList<Image>();
+	}
+
+	/**
+	 * Decode an image and queue it for packing.
+	 *
+	 * @param ref
+	 * @throws SlickException
+	 */
+	public void add(String ref) throws SlickException {
+		if (this.regions.containsKey(ref) || this.isPending(ref)) {
+			return;
+		}
+		this.pending.add(DecodedImage.decode(ref));
+	}
+
+	/**
+	 * Queue an already decoded image for packing.
+	 *
+	 * @param image
+	 */
+	public void add(DecodedImage image) {
+		if (this.regions.containsKey(image.getRef()) || this.isPending(image.getRef())) {
+			return;
+		}
+		this.pending.add(image);
+	}
+
+	/**
+	 * Pack all the added images into pages and upload the pages as textures.
+	 * Must be called on the thread owning the GL context.
+	 *
+	 * Images that don't fit into a page get a texture of their own.
+	 *
+	 * @throws SlickException
+	 */
+	public void pack() throws SlickException {
+		//tallest first keeps the shelves tight
+		Collections.sort(this.pending, new Comparator<DecodedImage>() {
+			public int compare(DecodedImage a, DecodedImage b) {
+				return b.getHeight() - a.getHeight();
+			}
+		});
+
+		Page page = null;
+		for (DecodedImage sprite : this.pending) {
+			int width = sprite.getWidth() + PADDING;
+			int height = sprite.getHeight() + PADDING;
+
+			if (width > this.pageSize || height > this.pageSize) {
+				this.regions.put(sprite.getRef(), new Image(sprite.getData()));
+				continue;
+			}
+
+			if (page == null || !page.place(sprite, width, height)) {
+				if (page != null) {
+					this.upload(page);
+				}
+				page = new Page(this.pageSize);
+				page.place(sprite, width, height);
+			}
+		}
+		if (page != null) {
+			this.upload(page);
+		}
+		this.pending.clear();
+	}
+
+	/**
+	 * Returns the image of the given resource.
+	 * If the image hasn't been packed it's loaded as a texture of its own.
+	 *
+	 * @param ref
+	 * @return Null if the game is headless.
+	 * @throws SlickException
+	 */
+	public Image getImage(String ref) throws SlickException {
+		if (headless) {
+			return null;
+		}
+		Image image = this.regions.get(ref);
+		if (image == null) {
+			image = new Image(ref);
+			this.regions.put(ref, image);
+		}
+		return image;
+	}
+
+	/**
+	 * Returns true if the resource has been packed into the atlas.
+	 *
+	 * @param ref
+	 * @return
+	 */
+	public boolean contains(String ref) {
+		return this.regions.containsKey(ref);
+	}
+
+	/**
+	 * Returns the amount of packed pages (textures) in the atlas.
+	 *
+	 * @return
+	 */
+	public int getPageCount() {
+		return this.pages.size();
+	}
+
+	private boolean isPending(String ref) {
+		for (DecodedImage sprite : this.pending) {
+			if (sprite.getRef().equals(ref)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Upload a page as a texture and cut the sub-images of its sprites. */
+	private void upload(Page page) throws SlickException {
+		Image texture = new Image(page);
+		this.pages.add(texture);
+		for (int i = 0; i < page.sprites.size(); i++) {
+			DecodedImage sprite = page.sprites.get(i);
+			this.regions.put(sprite.getRef(), texture.getSubImage(page.x[i], page.y[i], sprite.getWidth(), sprite.getHeight()));
+		}
+	}
+
+
+	/** One atlas texture being filled shelf by shelf. Always RGBA. */
+	private class Page implements ImageData {
+
+		private int size;
+
+		private ByteBuffer buffer;
+
+		/** The top edge of the current shelf. */
+		private int shelfY;
+
+		/** The height of the current shelf (its tallest sprite). */
+		private int shelfHeight;
+
+		/** The next free x-coordinate on the current shelf. */
+		private int cursorX;
+
+		private ArrayList<DecodedImage> sprites;
+
+		private int[] x;
+
+		private int[] y;
+
+		public Page(int size) {
+			this.size = size;
+			this.buffer = BufferUtils.createByteBuffer(size * size * 4);
+			this.sprites = new ArrayList<DecodedImage>();
+			this.x = new int[16];
+			this.y = new int[16];
+		}
+
+		/**
+		 * Place a sprite on the page.
+		 *
+		 * @return False if the page is full.
+		 */
+		public boolean place(DecodedImage sprite, int width, int height) {
+			if (this.cursorX + width > this.size) {
+				//open a new shelf
+				this.shelfY += this.shelfHeight;
+				this.shelfHeight = 0;
+				this.cursorX = 0;
+			}
+			if (this.shelfY + height > this.size) {
+				return false;
+			}
+
+			int n = this.sprites.size();
+			if (n == this.x.length) {
+				this.x = Arrays.copyOf(this.x, n * 2);
+				this.y = Arrays.copyOf(this.y, n * 2);
+			}
+			this.x[n] = this.cursorX;
+			this.y[n] = this.shelfY;
+			this.sprites.add(sprite);
+			this.blit(sprite, this.cursorX, this.shelfY);
+
+			this.cursorX += width;
+			this.shelfHeight = Math.max(this.shelfHeight, height);
+			return true;
+		}
+
+		/** Copy the pixels of a sprite to the page. */
+		private void blit(DecodedImage sprite, int px, int py) {
+			ImageData data = sprite.getData();
+			int bytes = data.getDepth() / 8;
+			int stride = data.getTexWidth() * bytes;
+			ByteBuffer src = sprite.getPixels();
+
+			for (int row = 0; row < data.getHeight(); row++) {
+				int dst = ((py + row) * this.size + px) * 4;
+				int offset = row * stride;
+				for (int col = 0; col < data.getWidth(); col++) {
+					this.buffer.put(dst++, src.get(offset++));
+					this.buffer.put(dst++, src.get(offset++));
+					this.buffer.put(dst++, src.get(offset++));
+					this.buffer.put(dst++, bytes == 4 ? src.get(offset++) : (byte) 255);
+				}
+			}
+		}
+
+		public int getDepth() {
+			return 32;
+		}
+
+		public int getWidth() {
+			return this.size;
+		}
+
+		public int getHeight() {
+			return this.size;
+		}
+
+		public int getTexWidth() {
+			return this.size;
+		}
+
+		public int getTexHeight() {
+			return this.size;
+		}
+
+		public ByteBuffer getImageBufferData() {
+			return this.buffer;
+		}
+	}
+
+}
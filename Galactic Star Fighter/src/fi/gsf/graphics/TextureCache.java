@@ -0,0 +1,282 @@
+package fi.gsf.graphics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.opengl.ImageData;
+import org.newdawn.slick.opengl.ImageDataFactory;
+import org.newdawn.slick.opengl.LoadableImageData;
+import org.newdawn.slick.util.Log;
+import org.newdawn.slick.util.ResourceLoader;
+
+/**
+ * Keeps the decoded pixels of the images on the disk, so that the next
+ * start doesn't have to decode the PNG and TGA files again.
+ *
+ * An entry is named by the CRC-32 and the length of the bytes of the image
+ * file and by the transform, the way the pixels were decoded. A changed
+ * image gets a new entry and the old one is just not used anymore.
+ * Reading and hashing the file is much cheaper than decoding it. An entry
+ * is a small header and the pixels as they go to the texture, and it's
+ * loaded by mapping the file to memory, so the pixels go from the page
+ * cache of the operating system to the upload without being copied or
+ * converted.
+ *
+ * The scaled copies of the game (Image.getScaledCopy()) only change the
+ * size the image is drawn in, the pixels are the same, so they share the
+ * entry of their image.
+ *
+ * load() can be called from many threads at the same time. A cache that
+ * can't be read or written is skipped, the image is decoded as before.
+ *
+ * @author X455u
+ */
+public class TextureCache {
+
+	/** The directory of the cache if no other is given, relative to the working directory. */
+	public static final String DEFAULT_DIRECTORY = "cache/textures";
+
+	/** The way the pixels are decoded: not flipped, no forced alpha, no transparent color. Part of the name of an entry. */
+	private static final String TRANSFORM = "raw";
+
+	/** The start of every entry, "GSFT". */
+	private static final int MAGIC = 0x47534654;
+
+	/** The version of the format of the entries. Part of the name of an entry. */
+	private static final int VERSION = 1;
+
+	/** The magic, the version, the width, the height, the texture width, the texture height and the depth. */
+	private static final int HEADER_SIZE = 7 * 4;
+
+	/** The directory of the entries. */
+	private File directory;
+
+	//the statistics, updated by the loading threads
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+
+
+	/**
+	 * Create a cache in a directory. The directory is created when the
+	 * first entry is written.
+	 *
+	 * @param directory
+	 */
+	public TextureCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Load the decoded pixels of an image from the cache, or decode the image
+	 * file and store the pixels in the cache.
+	 *
+	 * @param ref The resource reference of the image.
+	 * @return
+	 * @throws SlickException If the image file can't be read or decoded.
+	 */
+	public DecodedImage load(String ref) throws SlickException {
+		byte[] source;
+		try {
+			source = read(ref);
+		} catch (IOException e) {
+			throw new SlickException("Failed to read image: " + ref, e);
+		}
+		File file = this.getFile(source);
+
+		if (file.isFile()) {
+			try {
+				DecodedImage image = this.map(ref, file);
+				this.hits.incrementAndGet();
+				return image;
+			} catch (IOException e) {
+				Log.warn("Can't read the cached texture " + file + ", decoding " + ref + ": " + e.getMessage());
+				//the bad entry isn't mapped, so it can be deleted and written again
+				file.delete();
+			}
+		}
+
+		this.misses.incrementAndGet();
+		DecodedImage image = this.decode(ref, source);
+		try {
+			this.store(image, file);
+		} catch (IOException e) {
+			Log.warn("Can't write the cached texture " + file + ": " + e.getMessage());
+		}
+		return image;
+	}
+
+	/** Returns the file of the entry of an image file. */
+	private File getFile(byte[] source) {
+		CRC32 crc = new CRC32();
+		crc.update(source);
+		String name = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(source.length) + "-" + TRANSFORM + "-v" + VERSION + ".rgba";
+		return new File(this.directory, name);
+	}
+
+	/** Read all the bytes of a resource. */
+	private static byte[] read(String ref) throws IOException {
+		InputStream in = ResourceLoader.getResourceAsStream(ref);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.available() > 0 ? in.available() : 8192);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Decode the bytes of an image file, like DecodedImage.decode(). */
+	private DecodedImage decode(String ref, byte[] source) throws SlickException {
+		LoadableImageData data = ImageDataFactory.getImageDataFor(ref);
+		try {
+			ByteBuffer pixels = data.loadImage(new ByteArrayInputStream(source), false, null);
+			return new DecodedImage(ref, data, pixels);
+		} catch (IOException e) {
+			throw new SlickException("Failed to decode image: " + ref, e);
+		}
+	}
+
+	/**
+	 * Map an entry to memory. The header is read and checked first, a bad
+	 * entry is never mapped: a mapping can't be released and on Windows it
+	 * keeps the file from being deleted.
+	 */
+	private DecodedImage map(String ref, File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					throw new IOException("truncated header");
+				}
+			}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("not a texture of this version");
+			}
+			Entry entry = new Entry(header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt());
+			long size = (long) entry.texWidth * entry.texHeight * (entry.depth / 8);
+			if (entry.width <= 0 || entry.height <= 0 || entry.width > entry.texWidth || entry.height > entry.texHeight || (entry.depth != 24 && entry.depth != 32)
+					|| channel.size() - HEADER_SIZE != size) {
+				throw new IOException("corrupt header");
+			}
+			//the mapping stays valid after the file is closed
+			entry.pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+			return new DecodedImage(ref, entry, entry.pixels);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Write an entry. It's written to a temporary file first so that a reader never sees half of it. */
+	private void store(DecodedImage image, File file) throws IOException {
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("can't create " + this.directory);
+		}
+		ImageData data = image.getData();
+		ByteBuffer pixels = image.getPixels().duplicate();
+		pixels.clear();
+		pixels.limit(Math.min(pixels.capacity(), data.getTexWidth() * data.getTexHeight() * (data.getDepth() / 8)));
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION);
+		header.putInt(data.getWidth()).putInt(data.getHeight()).putInt(data.getTexWidth()).putInt(data.getTexHeight()).putInt(data.getDepth());
+		header.flip();
+
+		File temporary = File.createTempFile(file.getName(), ".tmp", this.directory);
+		RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (pixels.hasRemaining()) {
+				channel.write(pixels);
+			}
+		} finally {
+			out.close();
+		}
+		//renameTo() doesn't replace a file on Windows, try again without the old entry.
+		//If another thread or game has it mapped it stays, either one will do.
+		if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Returns the amount of images loaded from the cache.
+	 *
+	 * @return
+	 */
+	public int getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns the amount of images decoded because they weren't in the cache.
+	 *
+	 * @return
+	 */
+	public int getMisses() {
+		return this.misses.get();
+	}
+
+
+	/** The size and format of the pixels of an entry. */
+	private static class Entry implements ImageData {
+
+		private int width;
+		private int height;
+		private int texWidth;
+		private int texHeight;
+		private int depth;
+		private ByteBuffer pixels;
+
+		public Entry(int width, int height, int texWidth, int texHeight, int depth) {
+			this.width = width;
+			this.height = height;
+			this.texWidth = texWidth;
+			this.texHeight = texHeight;
+			this.depth = depth;
+		}
+
+		public int getDepth() {
+			return this.depth;
+		}
+
+		public int getWidth() {
+			return this.width;
+		}
+
+		public int getHeight() {
+			return this.height;
+		}
+
+		public int getTexWidth() {
+			return this.texWidth;
+		}
+
+		public int getTexHeight() {
+			return this.texHeight;
+		}
+
+		public ByteBuffer getImageBufferData() {
+			return this.pixels;
+		}
+	}
+
+}
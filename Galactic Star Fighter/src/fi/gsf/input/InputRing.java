@@ -0,0 +1,144 @@
+package fi.gsf.input;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring buffer of timestamped input events.
+ *
+ * One thread may push events and one thread may read them. The events are
+ * stored in primitive arrays, so recording input creates no garbage.
+ *
+ * @author X455u
+ */
+public class InputRing {
+
+	/** A key was pressed. Code is the key. */
+	public static final int KEY_PRESSED = 0;
+
+	/** A key was released. Code is the key. */
+	public static final int KEY_RELEASED = 1;
+
+	/** A mouse button was pressed. Code is the button. */
+	public static final int MOUSE_PRESSED = 2;
+
+	/** A mouse button was released. Code is the button. */
+	public static final int MOUSE_RELEASED = 3;
+
+	/** The mouse moved. */
+	public static final int MOUSE_MOVED = 4;
+
+	/** Capacity - 1. The capacity is a power of two. */
+	private int mask;
+
+	private int[] type;
+	private int[] code;
+	private int[] x;
+	private int[] y;
+	/** System.nanoTime() of the event. */
+	private long[] time;
+
+	/** The index of the next event to read. Written only by the reader. */
+	private AtomicLong head;
+
+	/** The index of the next event to write. Written only by the writer. */
+	private AtomicLong tail;
+
+
+	/**
+	 * Create a new ring buffer.
+	 *
+	 * @param capacity Rounded up to a power of two.
+	 */
+	public InputRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.type = new int[size];
+		this.code = new int[size];
+		this.x = new int[size];
+		this.y = new int[size];
+		this.time = new long[size];
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+	}
+
+	/**
+	 * Add an event. Called by the writer.
+	 *
+	 * @param type
+	 * @param code
+	 * @param x Mouse x-coordinate on the screen.
+	 * @param y Mouse y-coordinate on the screen.
+	 * @param time System.nanoTime() of the event.
+	 * @return False if the buffer was full and the event was dropped.
+	 */
+	public boolean push(int type, int code, int x, int y, long time) {
+		long tail = this.tail.get();
+		if (tail - this.head.get() > this.mask) {
+			return false;
+		}
+		int i = (int) (tail & this.mask);
+		this.type[i] = type;
+		this.code[i] = code;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.time[i] = time;
+		//publishes the event to the reader
+		this.tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Returns true if there is an event to read. Called by the reader.
+	 *
+	 * @return
+	 */
+	public boolean hasNext() {
+		return this.head.get() != this.tail.get();
+	}
+
+	/**
+	 * Remove the oldest event. Called by the reader after reading it.
+	 */
+	public void pop() {
+		this.head.lazySet(this.head.get() + 1);
+	}
+
+	/** The type of the oldest event. */
+	public int getType() {
+		return this.type[this.index()];
+	}
+
+	/** The key or button of the oldest event. */
+	public int getCode() {
+		return this.code[this.index()];
+	}
+
+	/** The mouse x-coordinate of the oldest event. */
+	public int getX() {
+		return this.x[this.index()];
+	}
+
+	/** The mouse y-coordinate of the oldest event. */
+	public int getY() {
+		return this.y[this.index()];
+	}
+
+	/** The time of the oldest event in System.nanoTime() nanoseconds. */
+	public long getTime() {
+		return this.time[this.index()];
+	}
+
+	/**
+	 * Returns the amount of events waiting to be read.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return (int) (this.tail.get() - this.head.get());
+	}
+
+	private int index() {
+		return (int) (this.head.get() & this.mask);
+	}
+
+}
@@ -0,0 +1,215 @@
+package fi.gsf.input;
+
+import org.lwjgl.input.Keyboard;
+import org.lwjgl.input.Mouse;
+import org.newdawn.slick.Input;
+
+import fi.gsf.Camera;
+import fi.gsf.objects.Spacecraft;
+
+/**
+ * Controls the player's spacecraft with timestamped input events.
+ *
+ * The events are recorded as they arrive, with the time the operating system
+ * gave them, instead of polling the keys once per frame. When the game updates,
+ * the frame is split at the events: the spacecraft moves until the moment of
+ * an event, the event is applied, and so on. A click that starts and ends
+ * between two frames still fires, and a key press takes effect from the
+ * moment it happened instead of from the next frame.
+ *
+ * @author X455u
+ */
+public class PlayerInput {
+
+	/** The amount of events that fit into the buffer between two frames. */
+	private static final int BUFFER_SIZE = 1024;
+
+	/** Nanoseconds per millisecond. */
+	private static final long MILLI = 1000000L;
+
+	/** The recorded events. */
+	private InputRing events;
+
+	/**
+	 * The difference between System.nanoTime() and the event clock of LWJGL.
+	 * The smallest difference seen is the best guess, since an event is always
+	 * received after it happened.
+	 */
+	private long clockOffset;
+
+	/** True when clockOffset has a value. */
+	private boolean clockSynced;
+
+	//the state of the controls
+	private boolean up;
+	private boolean down;
+	private boolean left;
+	private boolean right;
+	private boolean fire;
+	private int mouseX;
+	private int mouseY;
+	private boolean mouseMoved;
+
+
+	public PlayerInput() {
+		this.events = new InputRing(BUFFER_SIZE);
+	}
+
+	/**
+	 * Record a key press. Call from the key listener while the event is being handled.
+	 *
+	 * @param key
+	 */
+	public void keyPressed(int key) {
+		this.events.push(InputRing.KEY_PRESSED, key, 0, 0, this.eventTime(Keyboard.getEventNanoseconds()));
+	}
+
+	/**
+	 * Record a key release. Call from the key listener while the event is being handled.
+	 *
+	 * @param key
+	 */
+	public void keyReleased(int key) {
+		this.events.push(InputRing.KEY_RELEASED, key, 0, 0, this.eventTime(Keyboard.getEventNanoseconds()));
+	}
+
+	/**
+	 * Record a mouse button press. Call from the mouse listener while the event is being handled.
+	 *
+	 * @param button
+	 * @param x
+	 * @param y
+	 */
+	public void mousePressed(int button, int x, int y) {
+		this.events.push(InputRing.MOUSE_PRESSED, button, x, y, this.eventTime(Mouse.getEventNanoseconds()));
+	}
+
+	/**
+	 * Record a mouse button release. Call from the mouse listener while the event is being handled.
+	 *
+	 * @param button
+	 * @param x
+	 * @param y
+	 */
+	public void mouseReleased(int button, int x, int y) {
+		this.events.push(InputRing.MOUSE_RELEASED, button, x, y, this.eventTime(Mouse.getEventNanoseconds()));
+	}
+
+	/**
+	 * Record a mouse movement.
+	 *
+	 * @param x
+	 * @param y
+	 */
+	public void mouseMoved(int x, int y) {
+		this.events.push(InputRing.MOUSE_MOVED, 0, x, y, this.eventTime(Mouse.getEventNanoseconds()));
+	}
+
+	/**
+	 * Update the spacecraft for one frame, applying the events at the moment they happened.
+	 *
+	 * @param ship
+	 * @param camera Converts the mouse coordinates to world coordinates.
+	 * @param delta The length of the frame in milliseconds.
+	 */
+	public void update(Spacecraft ship, Camera camera, int delta) {
+		long end = System.nanoTime();
+		long start = end - delta * MILLI;
+		int done = 0;
+
+		while (this.events.hasNext()) {
+			long time = this.events.getTime();
+			if (time > end) {
+				break; //belongs to the next frame
+			}
+			int at = (int) Math.max(done, Math.min(delta, (time - start) / MILLI));
+			this.step(ship, at - done);
+			done = at;
+
+			this.apply(ship, camera);
+			this.events.pop();
+		}
+		this.step(ship, delta - done);
+
+		if (this.mouseMoved) {
+			ship.aimAt(camera.getWorldX(this.mouseX), camera.getWorldY(this.mouseY));
+		}
+		if (!Mouse.isInsideWindow()) {
+			this.mouseMoved = false;
+			ship.stopAiming();
+		}
+	}
+
+	/**
+	 * Returns the amount of events waiting to be applied.
+	 *
+	 * @return
+	 */
+	public int getPendingEvents() {
+		return this.events.getSize();
+	}
+
+	/** Move the spacecraft with the current controls. */
+	private void step(Spacecraft ship, int delta) {
+		if (delta > 0) {
+			ship.update(this.up, this.down, this.left, this.right, delta);
+		}
+		if (this.fire) {
+			ship.shoot();
+		}
+	}
+
+	/** Apply the oldest event to the controls. */
+	private void apply(Spacecraft ship, Camera camera) {
+		int type = this.events.getType();
+		boolean pressed = type == InputRing.KEY_PRESSED || type == InputRing.MOUSE_PRESSED;
+		switch (type) {
+		case InputRing.KEY_PRESSED:
+		case InputRing.KEY_RELEASED:
+			switch (this.events.getCode()) {
+			case Input.KEY_W: this.up = pressed; break;
+			case Input.KEY_S: this.down = pressed; break;
+			case Input.KEY_A: this.left = pressed; break;
+			case Input.KEY_D: this.right = pressed; break;
+			}
+			break;
+		case InputRing.MOUSE_PRESSED:
+		case InputRing.MOUSE_RELEASED:
+			this.aim(ship, camera);
+			if (this.events.getCode() == 0) {
+				this.fire = pressed;
+				if (pressed) {
+					//fire right away, even if the button is released before the next frame
+					ship.shoot();
+				}
+			}
+			break;
+		case InputRing.MOUSE_MOVED:
+			this.aim(ship, camera);
+			break;
+		}
+	}
+
+	/** Aim the turrets at the mouse of the oldest event. */
+	private void aim(Spacecraft ship, Camera camera) {
+		this.mouseX = this.events.getX();
+		this.mouseY = this.events.getY();
+		this.mouseMoved = true;
+		ship.aimAt(camera.getWorldX(this.mouseX), camera.getWorldY(this.mouseY));
+	}
+
+	/** Convert an LWJGL event time to System.nanoTime(). */
+	private long eventTime(long eventNanos) {
+		long now = System.nanoTime();
+		if (eventNanos == 0) {
+			return now;
+		}
+		long offset = now - eventNanos;
+		if (!this.clockSynced || offset < this.clockOffset) {
+			this.clockOffset = offset;
+			this.clockSynced = true;
+		}
+		return Math.min(now, eventNanos + this.clockOffset);
+	}
+
+}
@@ -1,10 +1,13 @@
 package fi.gsf.objects;
 
+import java.nio.ByteBuffer;
+
 import org.newdawn.slick.Color;
 import org.newdawn.slick.Image;
 import org.newdawn.slick.SlickException;
 
 import fi.gsf.Camera;
+import fi.gsf.graphics.TextureAtlas;
 
 public class GameObject {
 	
@@ -31,12 +34,13 @@ public class GameObject {
 	
 	/**
 	 * Create a new object with ref as the location for the image of the object.
+	 * The image is taken from the texture atlas.
 	 * 
 	 * @param ref
 	 * @throws SlickException 
 	 */
 	public GameObject(String ref) throws SlickException {
-		this.image = new Image(ref);
+		this.image = TextureAtlas.get().getImage(ref);
 		this.x = 0;
 		this.y = 0;		
 		this.angle = 0;
@@ -191,6 +195,35 @@ public class GameObject {
 		return Math.toDegrees(this.angle);
 	}
 	
+	/**
+	 * Write the state of the object to a save. Subclasses add their own state after this.
+	 * 
+	 * @param buffer
+	 */
+	public void save(ByteBuffer buffer) {
+		buffer.putDouble(this.x).putDouble(this.y).putDouble(this.angle);
+	}
+	
+	/**
+	 * Read the state written by save().
+	 * 
+	 * @param buffer
+	 */
+	public void load(ByteBuffer buffer) {
+		this.x = buffer.getDouble();
+		this.y = buffer.getDouble();
+		this.angle = buffer.getDouble();
+	}
+	
+	/**
+	 * Returns the amount of bytes save() writes.
+	 * 
+	 * @return
+	 */
+	public int getSaveSize() {
+		return 3 * 8;
+	}
+	
 	/**
 	 * Draw the object.
 	 * 
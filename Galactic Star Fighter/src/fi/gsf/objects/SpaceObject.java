@@ -1,10 +1,14 @@
 package fi.gsf.objects;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.newdawn.slick.Color;
 import org.newdawn.slick.Image;
 import org.newdawn.slick.SlickException;
 
 import fi.gsf.Camera;
+import fi.gsf.graphics.TextureAtlas;
 
 public abstract class SpaceObject extends GameObject {
 	
@@ -23,18 +27,27 @@ public abstract class SpaceObject extends GameObject {
 	/** How long the fading away takes for a destoryed object. */
 	private static final int DESTORYED_FADE_DURATION = 500;
 	
+	/** How many pixels apart a beam is tested against the object. */
+	private static final double BEAM_STEP = 2;
+	
+	/** The id of the next space object. */
+	private static final AtomicInteger nextId = new AtomicInteger();
+	
 	/** Master Image of shield. Radius 100 px. */
 	private static Image shieldImage;
 	
 	//Load shield image
 	static {
 		try {
-			shieldImage = new Image("images/other/blue shield.png");
+			shieldImage = TextureAtlas.get().getImage("images/other/blue shield.png");
 		} catch (SlickException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/** Identifies the object, for example in network packets. Grows with every new object, a loaded object gets its saved id. */
+	private int id = nextId.getAndIncrement();
+	
 	/** The maximum amount of armor of the spaceship. */
 	private int maxArmor;
 	
@@ -77,12 +90,14 @@ public abstract class SpaceObject extends GameObject {
 		this.maxShield = this.shield = shield;
 		this.side = side;
 		Image img = this.getImage();
-		this.shieldRadius = (int) Math.hypot( img.getHeight() / 2, img.getWidth() / 2); 
+		if (img != null) {
+			this.shieldRadius = (int) Math.hypot( img.getHeight() / 2, img.getWidth() / 2); 
+		}
 	}
 	
 	/**
 	 * Creates a new space object.
-	 * @param img
+	 * @param img Null if the game is headless. Set the shield radius then.
 	 * @param armor
 	 * @param shield
 	 * @param side
@@ -92,7 +107,9 @@ public abstract class SpaceObject extends GameObject {
 		this.maxArmor = this.armor = armor;
 		this.maxShield = this.shield = shield;
 		this.side = side;
-		this.shieldRadius = (int) Math.hypot( img.getHeight() / 2, img.getWidth() / 2); 
+		if (img != null) {
+			this.shieldRadius = (int) Math.hypot( img.getHeight() / 2, img.getWidth() / 2); 
+		}
 	}
 	
 	/**
@@ -159,6 +176,10 @@ public abstract class SpaceObject extends GameObject {
 		}
 	}
 	
+	public int getId() {
+		return this.id;
+	}
+	
 	public int getMaxArmor() {
 		return this.maxArmor;
 	}
@@ -217,6 +238,46 @@ public abstract class SpaceObject extends GameObject {
 		this.armor = Math.max(this.maxArmor, this.armor);
 	}
 	
+	/**
+	 * Write the state of the object to a save. The id comes first so that saved
+	 * objects can be matched by it.
+	 */
+	@Override
+	public void save(ByteBuffer buffer) {
+		buffer.putInt(this.id);
+		super.save(buffer);
+		buffer.putInt(this.maxArmor).putInt(this.armor).putInt(this.maxShield).putInt(this.shield);
+		buffer.putInt(this.shieldRadius).putInt(this.flashAndFade);
+		buffer.put((byte) (this.isDestroyed ? 1 : 0)).put((byte) (this.isDeletable ? 1 : 0));
+	}
+	
+	@Override
+	public void load(ByteBuffer buffer) {
+		this.id = buffer.getInt();
+		super.load(buffer);
+		this.maxArmor = buffer.getInt();
+		this.armor = buffer.getInt();
+		this.maxShield = buffer.getInt();
+		this.shield = buffer.getInt();
+		this.shieldRadius = buffer.getInt();
+		this.flashAndFade = buffer.getInt();
+		this.isDestroyed = buffer.get() != 0;
+		this.isDeletable = buffer.get() != 0;
+	}
+	
+	@Override
+	public int getSaveSize() {
+		return 4 + super.getSaveSize() + 6 * 4 + 2;
+	}
+	
+	/**
+	 * Mark the object deletable at once, without fading. Used when the object
+	 * is thrown away, for example when a save is loaded.
+	 */
+	public void delete() {
+		this.isDeletable = true;
+	}
+	
 	public void updateShield(int points) {
 		this.shield += points;
 		this.armor = Math.max(this.maxShield, this.shield);
@@ -251,14 +312,60 @@ public abstract class SpaceObject extends GameObject {
 	 */
 	public boolean bulletOverlaps(int worldX, int worldY) {
 		if (this.shield > 0) {
-			if (Math.hypot(this.getX() - worldX, this.getY() - worldY) <= this.shieldRadius) {
-				return true;
-			}
-			return false;
+			return this.within(worldX, worldY, this.shieldRadius);
 		}
 		return this.overlaps(worldX, worldY);
 	}
 	
+	/**
+	 * Returns how far along a beam the beam hits the object or its shield. The
+	 * beam is clipped to the bounding circle and stepped through it with
+	 * bulletOverlaps().
+	 * 
+	 * @param x The start of the beam.
+	 * @param y
+	 * @param directionX The direction of the beam, a unit vector.
+	 * @param directionY
+	 * @param length
+	 * @return The distance from the start of the beam, -1 if it misses.
+	 */
+	public double beamHit(double x, double y, double directionX, double directionY, double length) {
+		double fromX = x - this.getX();
+		double fromY = y - this.getY();
+		double b = fromX * directionX + fromY * directionY;
+		double c = fromX * fromX + fromY * fromY - this.shieldRadius * this.shieldRadius;
+		double discriminant = b * b - c;
+		if (discriminant < 0) {
+			return -1;
+		}
+		double root = Math.sqrt(discriminant);
+		double exit = Math.min(length, -b + root);
+		for (double t = Math.max(0, -b - root); t <= exit; t += BEAM_STEP) {
+			if (this.bulletOverlaps((int) Math.round(x + t * directionX), (int) Math.round(y + t * directionY))) {
+				return t;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Objects without an image (headless) are circles with the shield radius.
+	 */
+	@Override
+	public boolean overlaps(int worldX, int worldY) {
+		if (this.getImage() == null) {
+			return this.within(worldX, worldY, this.shieldRadius);
+		}
+		return super.overlaps(worldX, worldY);
+	}
+	
+	/** Returns true if a point is at most radius from the center. Exact, without a square root. */
+	private boolean within(double x, double y, double radius) {
+		double dx = this.getX() - x;
+		double dy = this.getY() - y;
+		return dx * dx + dy * dy <= radius * radius;
+	}
+	
 	@Override
 	public void paint(Image img) {
 		super.paint(img);
@@ -1,10 +1,12 @@
 package fi.gsf.objects;
 
-import org.lwjgl.input.Mouse;
+import java.nio.ByteBuffer;
+
 import org.newdawn.slick.SlickException;
 
 import fi.gsf.Camera;
-import fi.gsf.GSFGame;
+import fi.gsf.World;
+import fi.gsf.systems.Kinematics;
 import fi.gsf.systems.ProjectileSystem;
 
 /**
@@ -14,7 +16,7 @@ import fi.gsf.systems.ProjectileSystem;
  * @edited Niclas Lindgren
  *
  */
-public class Spacecraft extends SpaceObject {
+public class Spacecraft extends SpaceObject implements Kinematics.Body {
 	
 	/** The acceleration of the ship in relation to the x-axis (m/s^2) */
 	private double accelerationX;
@@ -39,20 +41,38 @@ public class Spacecraft extends SpaceObject {
 	/** Turret placement in format: distance in pixels from middle of the ship, angle. */
 	private double turretPosition[][] = {{31.5, 0.7 * Math.PI}, {31.5, - 0.7 * Math.PI}};
 	
+	/** The world the ship flies in. */
+	private World world;
+	
 	/** The projectile system taking care of the projectiles in the game. */
 	private ProjectileSystem projectiles;
 	
 	/** The maximum velocity the ship can get. */
 	private final double maxVelocity = 200; // m/s
 	
+	/** The radius of the ship without an image (headless). About the size of the sprite. */
+	private static final int RADIUS = 55;
+	
+	/** How much of the velocity is left after a second. */
+	private static final double DRAG = 0.5;
+	
+	/** True if the turrets are aimed at (aimX, aimY). Otherwise they point forward. */
+	private boolean aiming;
+	/** The x-coordinate the turrets are aimed at (world coordinates). */
+	private double aimX;
+	/** The y-coordinate the turrets are aimed at (world coordinates). */
+	private double aimY;
+	
 	/**
 	 *  Create a new Spacecraft object.
 	 *  
+	 * @param world
 	 * @param ref Path of intended Image for the craft. 
 	 * @throws SlickException 
 	 */
-	public Spacecraft(String ref, ProjectileSystem projectiles) throws SlickException {
+	public Spacecraft(World world, String ref, ProjectileSystem projectiles) throws SlickException {
 		super(ref, 5000, 5000, SpaceObject.FRIENDLY);
+		this.world = world;
 		this.accelerationX = 0;
 		this.accelerationY = 0;
 		this.velocityX = 0;
@@ -62,10 +82,14 @@ public class Spacecraft extends SpaceObject {
 	}
 	
 	/**
-	 * Create a new Spacecraft object.
+	 * Create a new Spacecraft object without an image.
+	 * 
+	 * @param world
 	 */
-	public Spacecraft(ProjectileSystem projectiles) {
+	public Spacecraft(World world, ProjectileSystem projectiles) {
 		super(5000, 5000, Spacecraft.FRIENDLY);
+		this.world = world;
+		this.setShieldRadius(RADIUS);
 		this.accelerationX = 0;
 		this.accelerationY = 0;
 		this.velocityX = 0;
@@ -97,31 +121,11 @@ public class Spacecraft extends SpaceObject {
 			this.accelerationX *= 0.707106781; // 1/sqrt(2)
 		}
 		
-		//update velocity
-		this.velocityX += this.accelerationX * delta / 1000.0;
-		this.velocityY += this.accelerationY * delta / 1000.0;
-		
-		//limit the velocity if it's above max
-		if (Math.hypot(this.velocityX, this.velocityY) > this.maxVelocity) {
-			double angle = Math.atan2(this.velocityY, this.velocityX);
-			this.velocityX = this.maxVelocity * Math.cos(angle);
-			this.velocityY = this.maxVelocity * Math.sin(angle);
-		}
-		
-		//slow down the ship
-		double percent = 0.50; // 50% in a second
-		this.velocityX *= Math.pow(percent, delta / 1000.0);
-		this.velocityY *= Math.pow(percent, delta / 1000.0);
-		
-		
-		//update position
-		double x = this.getX() + this.velocityX * GSFGame.getPixelRatio() * delta / 1000.0;
-		double y = this.getY() + this.velocityY * GSFGame.getPixelRatio() * delta / 1000.0;
-		
-		x = Math.min(GSFGame.getWorldWidth(), Math.max(- GSFGame.getWorldWidth(), x));
-		y = Math.min(GSFGame.getWorldHeight(), Math.max(- GSFGame.getWorldHeight(), y));
-		
-		this.position(x, y);
+		//update velocity and position
+		Kinematics kinematics = this.world.getKinematics();
+		kinematics.begin(delta);
+		kinematics.add(this, this.getX(), this.getY(), this.velocityX, this.velocityY, this.accelerationX, this.accelerationY, DRAG, this.maxVelocity);
+		kinematics.integrate();
 		
 		//update rotation
 		this.rotateToInDegrees(90 - 75 * this.velocityX / maxVelocity);
@@ -131,16 +135,57 @@ public class Spacecraft extends SpaceObject {
 			Turret turret = turrets[i];
 			if (turret != null){
 				turret.update(delta);
-				turret.position(	this.getX() + this.turretPosition[i][0] * Math.cos(this.getAngle() + this.turretPosition[i][1]),
-										this.getY() + this.turretPosition[i][0] * Math.sin(this.getAngle() + this.turretPosition[i][1]));
-				//turrets are rotated just before they are drawn
+				turret.position(	this.getX() + this.turretPosition[i][0] * this.world.cos(this.getAngle() + this.turretPosition[i][1]),
+										this.getY() + this.turretPosition[i][0] * this.world.sin(this.getAngle() + this.turretPosition[i][1]));
+				this.aimTurret(turret);
 			}
 		}
 		
-		//Check hits on player
-		projectiles.checkObject(this);
-		
-		
+	}
+	
+	/**
+	 * Take the new motion from the kinematics. The ship stays inside a bounded world.
+	 */
+	public void moved(double x, double y, double velocityX, double velocityY) {
+		this.velocityX = velocityX;
+		this.velocityY = velocityY;
+		if (!this.world.isOpen()) {
+			x = Math.min(this.world.getWidth(), Math.max(- this.world.getWidth(), x));
+			y = Math.min(this.world.getHeight(), Math.max(- this.world.getHeight(), y));
+		}
+		this.position(x, y);
+	}
+	
+	/**
+	 * Aim the turrets at a point.
+	 * 
+	 * @param x World x-coordinate.
+	 * @param y World y-coordinate.
+	 */
+	public void aimAt(double x, double y) {
+		this.aiming = true;
+		this.aimX = x;
+		this.aimY = y;
+		for (int i = 0; i < turrets.length; i++) {
+			if (turrets[i] != null) {
+				this.aimTurret(turrets[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Stop aiming. The turrets point forward.
+	 */
+	public void stopAiming() {
+		this.aiming = false;
+	}
+	
+	private void aimTurret(Turret turret) {
+		if (this.aiming) {
+			turret.rotateTo(this.world.atan2(this.aimY - turret.getY(), this.aimX - turret.getX()));
+		} else {
+			turret.rotateTo(0.5 * Math.PI);
+		}
 	}
 	
 	/**
@@ -166,7 +211,7 @@ public class Spacecraft extends SpaceObject {
 	 * @return The velocity of the spacecraft in relation to the x-axis.
 	 */
 	public double getXVelocity() {
-		return this.velocityX* GSFGame.getPixelRatio() / 1000.0;
+		return this.velocityX* this.world.getPixelRatio() / 1000.0;
 	}
 	
 	/**
@@ -175,7 +220,7 @@ public class Spacecraft extends SpaceObject {
 	 * @return The velocity of the spacecraft in relation to the y-axis.
 	 */
 	public double getYVelocity() {
-		return this.velocityY* GSFGame.getPixelRatio() / 1000.0;
+		return this.velocityY* this.world.getPixelRatio() / 1000.0;
 	}
 	
 	/** Get some info of the acceleration, velocity and position of the spacecraft. */
@@ -208,23 +253,63 @@ public class Spacecraft extends SpaceObject {
 		return null;
 	}
 	
+	/**
+	 * Write the state of the ship and its turrets. The turrets themselves aren't
+	 * saved, only their state: a save is loaded into a ship with the same turrets.
+	 */
+	@Override
+	public void save(ByteBuffer buffer) {
+		super.save(buffer);
+		buffer.putDouble(this.accelerationX).putDouble(this.accelerationY).putDouble(this.velocityX).putDouble(this.velocityY);
+		buffer.put((byte) (this.aiming ? 1 : 0)).putDouble(this.aimX).putDouble(this.aimY);
+		buffer.putInt(this.numberOfTurrets);
+		for (int i = 0; i < this.numberOfTurrets; i++) {
+			buffer.put((byte) (this.turrets[i] != null ? 1 : 0));
+			if (this.turrets[i] != null) {
+				this.turrets[i].save(buffer);
+			}
+		}
+	}
+	
+	@Override
+	public void load(ByteBuffer buffer) {
+		super.load(buffer);
+		this.accelerationX = buffer.getDouble();
+		this.accelerationY = buffer.getDouble();
+		this.velocityX = buffer.getDouble();
+		this.velocityY = buffer.getDouble();
+		this.aiming = buffer.get() != 0;
+		this.aimX = buffer.getDouble();
+		this.aimY = buffer.getDouble();
+		int turrets = buffer.getInt();
+		for (int i = 0; i < turrets; i++) {
+			if (buffer.get() != 0) {
+				//a turret the ship doesn't have is read and dropped
+				Turret turret = i < this.numberOfTurrets && this.turrets[i] != null ? this.turrets[i] : new Turret(new WeaponType(null));
+				turret.load(buffer);
+			}
+		}
+	}
+	
+	@Override
+	public int getSaveSize() {
+		int size = super.getSaveSize() + 4 * 8 + 1 + 2 * 8 + 4;
+		for (int i = 0; i < this.numberOfTurrets; i++) {
+			size += 1 + (this.turrets[i] != null ? this.turrets[i].getSaveSize() : 0);
+		}
+		return size;
+	}
+	
 	
 	@Override
 	public void draw(Camera camera) {
 		//draw spacecraft
 		super.draw(camera);
 		
-		//rotate turrets and draw them
+		//draw turrets, they are aimed in update() and aimAt()
 		for (int i = 0; i < turrets.length; i++) {
 			Turret turret = turrets[i];
 			if (turret != null) {
-				if (Mouse.isInsideWindow()) {
-					int mouseX = camera.getWorldX(Mouse.getX());
-					int mouseY = camera.getWorldY(GSFGame.getScreenHeight() - Mouse.getY());
-					turret.point(mouseX, mouseY);
-				} else {
-					turret.rotateTo(0.5 * Math.PI);
-				}
 				turret.draw(camera);
 			}
 		}
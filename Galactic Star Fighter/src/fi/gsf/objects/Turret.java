@@ -1,17 +1,21 @@
 package fi.gsf.objects;
 
-import org.newdawn.slick.SlickException;
+import java.nio.ByteBuffer;
 
+import fi.gsf.World;
 import fi.gsf.systems.ProjectileSystem;
 
 public class Turret extends GameObject {
 
-	public Turret(WeaponType type) throws SlickException {
+	/** Where to place the bullet when the turret has no image (headless). */
+	private static final int BARREL_LENGTH = 12;
+
+	public Turret(WeaponType type) {
 		super();
 		this.type = type;
 		this.reloadTime = 0;
 		this.paint(type.getImage());
-		this.barrelLength = type.getImage().getWidth() / 2;
+		this.barrelLength = type.getImage() != null ? type.getImage().getWidth() / 2 : BARREL_LENGTH;
 	}
 	
 
@@ -40,8 +44,14 @@ public class Turret extends GameObject {
 	 * @param projectiles 
 	 */
 	public void shoot(ProjectileSystem projectiles, double velocityX, double velocityY, int side) {
-		double angle = this.getAngle() + 2 * (Math.random() - 0.5) * type.getSpread();
-		projectiles.addProjectile(this.getX() + this.barrelLength * Math.cos(this.getAngle()), this.getY() + this.barrelLength * Math.sin(this.getAngle()), velocityX + type.getShotVelocity() * Math.cos(angle), velocityY + type.getShotVelocity() * Math.sin(angle), type.getShotAcceleration(), type.getShotType(), type.getShotDamage(), side);
+		if (type.getShotType() == ProjectileSystem.TYPE_BEAM) {
+			//a beam is there at once, the velocity of the ship doesn't bend it
+			velocityX = 0;
+			velocityY = 0;
+		}
+		World world = projectiles.getWorld();
+		double angle = this.getAngle() + 2 * (world.getRandom().nextDouble() - 0.5) * type.getSpread();
+		projectiles.addProjectile(this.getX() + this.barrelLength * world.cos(this.getAngle()), this.getY() + this.barrelLength * world.sin(this.getAngle()), velocityX + type.getShotVelocity() * world.cos(angle), velocityY + type.getShotVelocity() * world.sin(angle), type.getShotAcceleration(), type.getShotType(), type.getShotDamage(), side, type.getShotHoming());
 		
 		this.reloadTime = type.getReloadTime();
 	}
@@ -54,6 +64,23 @@ public class Turret extends GameObject {
 	public void update(int delta) {
 		this.reloadTime = Math.max(0, reloadTime - delta);
 	}
+	
+	@Override
+	public void save(ByteBuffer buffer) {
+		super.save(buffer);
+		buffer.putInt(this.reloadTime);
+	}
+	
+	@Override
+	public void load(ByteBuffer buffer) {
+		super.load(buffer);
+		this.reloadTime = buffer.getInt();
+	}
+	
+	@Override
+	public int getSaveSize() {
+		return super.getSaveSize() + 4;
+	}
 
 
 	
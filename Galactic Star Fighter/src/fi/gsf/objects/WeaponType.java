@@ -25,7 +25,7 @@ public class WeaponType {
 	private double spread;
 	
 	/**
-	 * Velocity of the shot fired. m/s
+	 * Velocity of the shot fired. m/s (The range of a beam in meters)
 	 */
 	private double shotVelocity;
 	
@@ -65,8 +65,21 @@ public class WeaponType {
 	public WeaponType(Image img) {
 //		this(img, 50, 100, 0, 300, 0.1, ProjectileSystem.TYPE_BULLET, 0, 250); //fading and color test bullet
 //		this(img, 5, 10, 0, 50, 10, ProjectileSystem.TYPE_BULLET, 0, 250); //accelerating bullets
+//		this(img, 5, 200, 0.30, 200, 1, ProjectileSystem.TYPE_BULLET, 3, 250); //homing bullets
+//		this(img, 20, 400, 0.05, 150, 1, ProjectileSystem.TYPE_PLASMA, 0, 250); //plasma
 		this(img, 5, 100, 0.10, 300, 1, ProjectileSystem.TYPE_BULLET, 0, 250);
 	}
+	
+	/**
+	 * Create a beam weapon: the shot hits at once whatever is first on its
+	 * line, 120 meters at most.
+	 * 
+	 * @param img The image of the gun.
+	 * @return
+	 */
+	public static WeaponType beam(Image img) {
+		return new WeaponType(img, 10, 150, 0.02, 120, 1, ProjectileSystem.TYPE_BEAM, 0, 250);
+	}
 
 	
 	public Image getImage() {
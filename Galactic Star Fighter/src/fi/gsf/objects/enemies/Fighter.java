@@ -1,17 +1,21 @@
 package fi.gsf.objects.enemies;
 
+import java.nio.ByteBuffer;
+
 import org.newdawn.slick.Color;
 import org.newdawn.slick.Graphics;
 import org.newdawn.slick.Image;
 import org.newdawn.slick.SlickException;
 
 import fi.gsf.Camera;
-import fi.gsf.GSFGame;
+import fi.gsf.World;
+import fi.gsf.graphics.TextureAtlas;
 import fi.gsf.objects.SpaceObject;
 import fi.gsf.objects.Spacecraft;
+import fi.gsf.systems.Kinematics;
 import fi.gsf.systems.ProjectileSystem;
 
-public class Fighter extends SpaceObject {
+public class Fighter extends SpaceObject implements Kinematics.Body {
 	
 	/** Master Image of a fighter. */
 	private static Image fighterImage;
@@ -61,13 +65,22 @@ public class Fighter extends SpaceObject {
 	/** Acceleration for shots. */
 	private static final double SHOT_RETARDATION = 1;
 	
+	/** The radius of a fighter without an image (headless). About the size of the sprite. */
+	private static final int RADIUS = 68;
+	
 	/** What kind of shot the fighter shoot. */
 	private static final int SHOT_TYPE = ProjectileSystem.TYPE_BULLET;
 	
+	/** How much of the velocity is left after a second. */
+	private static final double DRAG = 0.5;
+	
 	//Load fighter Image
 	static {
 		try {
-			fighterImage = new Image("images/enemies/fighter_temp.png").getScaledCopy(0.4f);
+			fighterImage = TextureAtlas.get().getImage("images/enemies/fighter_temp.png");
+			if (fighterImage != null) {
+				fighterImage = fighterImage.getScaledCopy(0.4f);
+			}
 		} catch (SlickException e) {
 			e.printStackTrace();
 		}
@@ -101,18 +114,32 @@ public class Fighter extends SpaceObject {
 	private int reload;
 	/** The shots of a fighter */
 	private ProjectileSystem projectiles;
+	/** The world the fighter flies in. */
+	private World world;
 	
 	
 	/** Create a new fighter at the world coordinate (x,y). */
-	public Fighter(double x, double y, ProjectileSystem projectiles) {
+	public Fighter(World world, double x, double y, ProjectileSystem projectiles) {
 		super(Fighter.fighterImage, 1, 0, SpaceObject.ENEMY);
+		this.world = world;
 		this.position(x, y);
+		if (Fighter.fighterImage == null) {
+			this.setShieldRadius(RADIUS);
+		}
 		this.projectiles = projectiles;
 		this.isAttacking = true;
 	}
 	
 	
-	public void update(int delta, Spacecraft ship) {
+	/**
+	 * Decide whether to attack or retreat, turn and accelerate that way, and
+	 * add the fighter to the batch of the kinematics.
+	 * 
+	 * @param delta
+	 * @param ship
+	 * @param kinematics
+	 */
+	public void steer(int delta, Spacecraft ship, Kinematics kinematics) {
 		super.update(delta);
 		
 		double shipX = ship.getX();
@@ -124,45 +151,45 @@ public class Fighter extends SpaceObject {
 		
 		if (!this.isDestroyed()) {
 			//Determine attack or retreat mode
-			if (isAttacking && Math.hypot(this.getX() -  shipX, this.getY() - shipY) < RETREAT_DIST) isAttacking = false;
-			if (!isAttacking && Math.hypot(this.getX() -  shipX, this.getY() - shipY) > ATTACK_DIST) isAttacking = true;
+			if (isAttacking && this.world.hypot(this.getX() -  shipX, this.getY() - shipY) < RETREAT_DIST) isAttacking = false;
+			if (!isAttacking && this.world.hypot(this.getX() -  shipX, this.getY() - shipY) > ATTACK_DIST) isAttacking = true;
 			
 			//Acceleration
-			if (isAttacking) angle = Math.atan2(shipY - this.getY(), shipX - this.getX());
-			else angle = Math.atan2(this.getY() - shipY, this.getX() - shipX);
+			if (isAttacking) angle = this.world.atan2(shipY - this.getY(), shipX - this.getX());
+			else angle = this.world.atan2(this.getY() - shipY, this.getX() - shipX);
 			this.slowTurnTo(angle, TURN_SPEED, delta);
-			this.accelerationX += Math.cos(this.getAngle()) * MAX_ACCELERATION;
-			this.accelerationY += Math.sin(this.getAngle()) * MAX_ACCELERATION;
+			this.accelerationX += this.world.cos(this.getAngle()) * MAX_ACCELERATION;
+			this.accelerationY += this.world.sin(this.getAngle()) * MAX_ACCELERATION;
 		}
 		
-		//update velocity
-		//slow down the ship
-		double percent = 0.50; // 50% in a second
-		this.velocityX *= Math.pow(percent, delta / 1000.0);
-		this.velocityY *= Math.pow(percent, delta / 1000.0);
-		
-		this.velocityX += this.accelerationX * delta / 1000.0;
-		this.velocityY += this.accelerationY * delta / 1000.0;
-		
-		//Limit the velocity
-		if (Math.hypot(this.velocityX, this.velocityY) > MAX_VELOCITY) {
-			this.velocityX = MAX_VELOCITY * Math.cos(angle);
-			this.velocityY = MAX_VELOCITY * Math.sin(angle);
-		}
-		
-		//Update position
-		double x = this.getX() + this.velocityX * GSFGame.getPixelRatio() * delta / 1000.0;
-		double y = this.getY() + this.velocityY * GSFGame.getPixelRatio() * delta / 1000.0;
-		
+		kinematics.add(this, this.getX(), this.getY(), this.velocityX, this.velocityY, this.accelerationX, this.accelerationY, DRAG, MAX_VELOCITY);
+	}
+	
+	public void moved(double x, double y, double velocityX, double velocityY) {
+		this.velocityX = velocityX;
+		this.velocityY = velocityY;
 		this.position(x, y);
+	}
+	
+	/**
+	 * Reload and fire the bursts from where the fighter moved to.
+	 * 
+	 * @param delta
+	 * @param ship
+	 */
+	public void act(int delta, Spacecraft ship) {
+		double shipX = ship.getX();
+		double shipY = ship.getY();
+		double x = this.getX();
+		double y = this.getY();
 		
 		//Update reload and cooldown time
 		this.reload = Math.max(0, this.reload - delta);
 		this.shotCooldown = Math.max(0, this.shotCooldown - delta);
 		
 		//Begin firing a burst
-		angle = Math.atan2(shipY - y, shipX - x);
-		double distance = Math.hypot(shipX - this.getX(), shipY - this.getY());
+		double angle = this.world.atan2(shipY - y, shipX - x);
+		double distance = this.world.hypot(shipX - this.getX(), shipY - this.getY());
 		if (!this.isDestroyed() && this.reload == 0 && distance < MAX_RANGE && isAttacking && this.angleBetween(angle, this.getAngle()) < FIRING_ARC) {
 			this.shots = BURST_SHOTS;
 			this.reload = RELOAD_TIME;
@@ -170,15 +197,60 @@ public class Fighter extends SpaceObject {
 
 		//Shoot a shot of a burst
 		if (this.shots > 0 && this.shotCooldown == 0) {
-			projectiles.addProjectile(this.getX() + BARREL_LENGTH * Math.cos(this.getAngle()), this.getY() + BARREL_LENGTH * Math.sin(this.getAngle()), SHOT_VELOCITY * Math.cos(this.getAngle()), SHOT_VELOCITY * Math.sin(this.getAngle()), SHOT_RETARDATION, SHOT_TYPE, DAMAGE, SpaceObject.ENEMY);
+			projectiles.addProjectile(this.getX() + BARREL_LENGTH * this.world.cos(this.getAngle()), this.getY() + BARREL_LENGTH * this.world.sin(this.getAngle()), SHOT_VELOCITY * this.world.cos(this.getAngle()), SHOT_VELOCITY * this.world.sin(this.getAngle()), SHOT_RETARDATION, SHOT_TYPE, DAMAGE, SpaceObject.ENEMY);
 			this.shots = this.shots - 1;
 			this.shotCooldown = SHOT_COOLDOWN;
 		}
 		
 	}
 	
+	/**
+	 * Drift without thinking for a while, like the enemies of a dormant sector
+	 * do: the velocity halves every second and the weapon reloads.
+	 * 
+	 * @param millis
+	 */
+	public void coast(long millis) {
+		double seconds = millis / 1000.0;
+		//the integral of velocity * 0.5^t over the time
+		double drift = (1 - this.world.pow(0.5, seconds)) / StrictMath.log(2) * this.world.getPixelRatio();
+		this.position(this.getX() + this.velocityX * drift, this.getY() + this.velocityY * drift);
+		this.velocityX *= this.world.pow(0.5, seconds);
+		this.velocityY *= this.world.pow(0.5, seconds);
+		this.accelerationX = 0;
+		this.accelerationY = 0;
+		this.shots = 0;
+		this.shotCooldown = 0;
+		this.reload = (int) Math.max(0, this.reload - millis);
+	}
+	
 	public void draw(Camera camera, Graphics g) {
 		super.draw(camera);
 	}
 	
+	@Override
+	public void save(ByteBuffer buffer) {
+		super.save(buffer);
+		buffer.putDouble(this.accelerationX).putDouble(this.accelerationY).putDouble(this.velocityX).putDouble(this.velocityY);
+		buffer.put((byte) (this.isAttacking ? 1 : 0)).putInt(this.shots).putInt(this.shotCooldown).putInt(this.reload);
+	}
+	
+	@Override
+	public void load(ByteBuffer buffer) {
+		super.load(buffer);
+		this.accelerationX = buffer.getDouble();
+		this.accelerationY = buffer.getDouble();
+		this.velocityX = buffer.getDouble();
+		this.velocityY = buffer.getDouble();
+		this.isAttacking = buffer.get() != 0;
+		this.shots = buffer.getInt();
+		this.shotCooldown = buffer.getInt();
+		this.reload = buffer.getInt();
+	}
+	
+	@Override
+	public int getSaveSize() {
+		return super.getSaveSize() + 4 * 8 + 1 + 3 * 4;
+	}
+	
 }
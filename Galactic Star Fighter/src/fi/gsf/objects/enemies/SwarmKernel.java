@@ -0,0 +1,228 @@
+package fi.gsf.objects.enemies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import fi.gsf.World;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.systems.Kinematics;
+import fi.gsf.systems.ProjectileSystem;
+
+/**
+ * Computes the steering of a whole swarm at once, the same forces as
+ * Swarmer.steer() computes for one swarmer: toward the center of the group,
+ * away from the other swarmers, toward the ship and the limit of the
+ * acceleration.
+ *
+ * The positions are packed into plain arrays and the forces are worked out
+ * from the squared distances: a force along the vector (dx, dy) is the
+ * vector scaled, so there's no trigonometry and no Math.pow(), one square
+ * root per pair at most. Each pair of swarmers is visited once and pushes
+ * both of them. The result differs from the scalar path only by the
+ * rounding of the sums, and it only uses operations that Java defines
+ * exactly, so it's the same on every JVM.
+ *
+ * Two swarmers at exactly the same point don't push each other, and a
+ * swarmer at exactly the point of the ship isn't pulled by it. The scalar
+ * path gives them an infinite acceleration there.
+ *
+ * In a deterministic world the two differ more: the scalar path takes its
+ * trigonometry from FixedMath, the kernel has none. compare() checks the
+ * two against each other, StressRunner runs it with every stress run.
+ *
+ * @author X455u
+ */
+public class SwarmKernel {
+
+	/** How much the kernel can differ from Swarmer.steer(), m/s^2. Only the rounding of the sums. */
+	public static final double TOLERANCE = 1e-9;
+
+	/** How much the kernel can differ from Swarmer.steer() in a deterministic world, m/s^2, of the 100 at most. */
+	public static final double DETERMINISTIC_TOLERANCE = 0.5;
+
+	//the positions of the swarm and the accelerations computed for them
+	private double[] x = new double[64];
+	private double[] y = new double[64];
+	private double[] accelerationX = new double[64];
+	private double[] accelerationY = new double[64];
+	private int size;
+
+
+	/**
+	 * Start packing a new swarm.
+	 */
+	public void begin() {
+		this.size = 0;
+	}
+
+	/**
+	 * Add a swarmer to the swarm.
+	 *
+	 * @param x
+	 * @param y
+	 * @return The index of the swarmer.
+	 */
+	public int add(double x, double y) {
+		if (this.size == this.x.length) {
+			int capacity = this.size * 2;
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.accelerationX = Arrays.copyOf(this.accelerationX, capacity);
+			this.accelerationY = Arrays.copyOf(this.accelerationY, capacity);
+		}
+		this.x[this.size] = x;
+		this.y[this.size] = y;
+		return this.size++;
+	}
+
+	/**
+	 * Compute the acceleration of every swarmer of the swarm.
+	 *
+	 * @param groupX The center of the group.
+	 * @param groupY
+	 * @param groupSize The size of the group the swarmers keep together in, the amount of swarmers.
+	 * @param shipX
+	 * @param shipY
+	 */
+	public void compute(double groupX, double groupY, int groupSize, double shipX, double shipY) {
+		int n = this.size;
+		double[] x = this.x;
+		double[] y = this.y;
+		double[] ax = this.accelerationX;
+		double[] ay = this.accelerationY;
+
+		//toward the group center, MAX * r / preferred along the unit vector is MAX / preferred times the vector
+		double group = Swarmer.MAX_ACCELERATION / Math.sqrt(Swarmer.SWARMER_AREA * groupSize / Math.PI);
+		for (int i = 0; i < n; i++) {
+			ax[i] = (groupX - x[i]) * group;
+			ay[i] = (groupY - y[i]) * group;
+		}
+
+		//away from each other, MAX * distance^2 / r^2 along the unit vector
+		double repulsion = (double) Swarmer.MAX_ACCELERATION * Swarmer.SWARMER_DISTANCE * Swarmer.SWARMER_DISTANCE;
+		for (int i = 0; i < n; i++) {
+			double xi = x[i];
+			double yi = y[i];
+			double sumX = 0;
+			double sumY = 0;
+			for (int j = i + 1; j < n; j++) {
+				double dx = xi - x[j];
+				double dy = yi - y[j];
+				double squared = dx * dx + dy * dy;
+				if (squared == 0) {
+					continue;
+				}
+				double scale = repulsion / (squared * Math.sqrt(squared));
+				double fx = dx * scale;
+				double fy = dy * scale;
+				sumX += fx;
+				sumY += fy;
+				ax[j] -= fx;
+				ay[j] -= fy;
+			}
+			ax[i] += sumX;
+			ay[i] += sumY;
+		}
+
+		//toward the ship, MAX * (r / preferred - (preferred / r)^2) along the unit vector, then the limit
+		double preferred = Swarmer.DISTANCE_FROM_SHIP;
+		double max = Swarmer.MAX_ACCELERATION;
+		for (int i = 0; i < n; i++) {
+			double dx = shipX - x[i];
+			double dy = shipY - y[i];
+			double distance = Math.sqrt(dx * dx + dy * dy);
+			double sumX = ax[i];
+			double sumY = ay[i];
+			if (distance > 0) {
+				double scale = max * (1 / preferred - preferred * preferred / (distance * distance * distance));
+				sumX += dx * scale;
+				sumY += dy * scale;
+			}
+			double squared = sumX * sumX + sumY * sumY;
+			if (squared > max * max) {
+				double limit = max / Math.sqrt(squared);
+				sumX *= limit;
+				sumY *= limit;
+			}
+			ax[i] = sumX;
+			ay[i] = sumY;
+		}
+	}
+
+	/**
+	 * Returns the x-component of the acceleration computed for a swarmer, m/s^2.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public double getAccelerationX(int index) {
+		return this.accelerationX[index];
+	}
+
+	/**
+	 * Returns the y-component of the acceleration computed for a swarmer, m/s^2.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public double getAccelerationY(int index) {
+		return this.accelerationY[index];
+	}
+
+	/**
+	 * Steer the same swarm with Swarmer.steer() and with a kernel and return
+	 * the biggest difference of an acceleration. The swarm is spread around
+	 * a point near the ship, some swarmers closer to each other than they
+	 * want to be. Run headless, see TextureAtlas.setHeadless().
+	 *
+	 * @param size The amount of swarmers.
+	 * @param seed Of the positions of the swarmers.
+	 * @param deterministic True to steer in a deterministic world.
+	 * @return The difference in m/s^2, compare to TOLERANCE or DETERMINISTIC_TOLERANCE.
+	 */
+	public static double compare(int size, long seed, boolean deterministic) {
+		World world = new World(seed);
+		world.setDeterministic(deterministic);
+		ProjectileSystem projectiles = new ProjectileSystem(world, null);
+		Spacecraft ship = new Spacecraft(world, projectiles);
+		Random random = new Random(seed);
+		ArrayList<Swarmer> swarmers = new ArrayList<Swarmer>();
+		double groupX = 0;
+		double groupY = 0;
+		for (int i = 0; i < size; i++) {
+			Swarmer swarmer = new Swarmer(world, random.nextGaussian() * 200 + 300, random.nextGaussian() * 200 + 500, projectiles);
+			swarmers.add(swarmer);
+			groupX += swarmer.getX() / size;
+			groupY += swarmer.getY() / size;
+		}
+
+		//steer() only adds the swarmers to the batch, they don't move before the run of the kinematics
+		Kinematics kinematics = world.getKinematics();
+		kinematics.begin(16);
+		SwarmKernel kernel = new SwarmKernel();
+		kernel.begin();
+		for (Swarmer swarmer : swarmers) {
+			swarmer.steer(16, ship, groupX, groupY, swarmers, kinematics);
+			kernel.add(swarmer.getX(), swarmer.getY());
+		}
+		kernel.compute(groupX, groupY, size, ship.getX(), ship.getY());
+
+		double difference = 0;
+		for (int i = 0; i < size; i++) {
+			Swarmer swarmer = swarmers.get(i);
+			difference = Math.max(difference, Math.hypot(swarmer.accelerationX - kernel.getAccelerationX(i), swarmer.accelerationY - kernel.getAccelerationY(i)));
+		}
+		return difference;
+	}
+
+	/**
+	 * Returns the amount of swarmers in the swarm.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+}
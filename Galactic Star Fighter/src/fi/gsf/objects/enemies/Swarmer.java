@@ -1,88 +1,106 @@
 package fi.gsf.objects.enemies;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
-import org.newdawn.slick.Color;
 import org.newdawn.slick.Graphics;
 import org.newdawn.slick.Image;
 import org.newdawn.slick.SlickException;
 
 import fi.gsf.Camera;
-import fi.gsf.GSFGame;
+import fi.gsf.World;
+import fi.gsf.graphics.TextureAtlas;
 import fi.gsf.objects.SpaceObject;
 import fi.gsf.objects.Spacecraft;
+import fi.gsf.systems.Kinematics;
+import fi.gsf.systems.ProjectileSystem;
 
-public class Swarmer extends SpaceObject {
+public class Swarmer extends SpaceObject implements Kinematics.Body {
 	
 	/** Master Image of a Swarmer. */
 	private static Image swarmerImage;
 	
 	/** The maximum acceleration of a swarmer */
-	private static final int MAX_ACCELERATION = 100;
+	static final int MAX_ACCELERATION = 100;
 	
 	/** The maximum velocity of a swarmer */
 	private static final int MAX_VELOCITY = 150;
 	
 	/** How much space a swarmer should take in the group. */
-	private static final int SWARMER_AREA = 700;
+	static final int SWARMER_AREA = 700;
 	
 	/** The preferred distance between swarmers. */
-	private static final int SWARMER_DISTANCE = 10;
+	static final int SWARMER_DISTANCE = 10;
 	
 	/** The preferred distance from the ship. */
-	private static final int DISTANCE_FROM_SHIP = 75;
+	static final int DISTANCE_FROM_SHIP = 75;
 	
 	/** The radius of the swarmer. */
 	private static final int SWARMER_RADIUS = 8;
 	
-	/** The maximum range of the swarmer's laser. */
+	/** The maximum range of the swarmer's laser, a beam. */
 	private static final int MAX_RANGE = 200;
 	
 	/** The damage caused by the laser. One shot. */
 	private static final int DAMAGE = 1;
 	
-	/** The duration of the laser. How long you will see the laser on the screen. */
-	private static final int LASER_DURATION = 50;
-	
 	/** The time it takes for the swarmer to reload the laser. */
 	private static final int RELOAD_TIME = 500;
 	
+	/** How much of the velocity is left after a second. */
+	private static final double DRAG = 0.5;
+	
 	//Load Swarmer Image
 	static {
 		try {
-			swarmerImage = new Image("images/enemies/swarmer.png");
+			swarmerImage = TextureAtlas.get().getImage("images/enemies/swarmer.png");
 		} catch (SlickException e) {
 			e.printStackTrace();
 		}
 	}
 	
-	/** The acceleration of the ship in relation to the x-axis (m/s^2) */
-	private double accelerationX;
+	/** The acceleration of the ship in relation to the x-axis (m/s^2). Read by SwarmKernel.compare(). */
+	double accelerationX;
 	/** The acceleration of the ship in relation to the y-axis (m/s^2) */
-	private double accelerationY;
+	double accelerationY;
 	/** The velocity of the ship in relation to the x-axis (m/s) */
 	private double velocityX;
 	/** The velocity of the ship in relation to the y-axis (m/s) */
 	private double velocityY;
 	
-	/** True if the swarmer uses its laser. */
-	private boolean shootsLaser;
 	/** How many milliseconds it takes until the laser has reloaded. 0 if ready to shoot. */
 	private int reload;
-	/** The x-coordinate of where the laser hits. */
-	private int laserX;
-	/** The y-coordinate of where the laser hits. */
-	private int laserY;
+	/** The shots of the swarmer, the laser is a beam. */
+	private ProjectileSystem projectiles;
+	
+	/** The world the swarmer flies in. */
+	private World world;
 	
 	
 	/** Create a new Swarmer at the world cooridnate (x,y). */
-	public Swarmer(double x, double y) {
+	public Swarmer(World world, double x, double y, ProjectileSystem projectiles) {
 		super(Swarmer.swarmerImage, 1, 0, SpaceObject.ENEMY);
+		this.world = world;
 		this.position(x, y);
+		if (Swarmer.swarmerImage == null) {
+			this.setShieldRadius(SWARMER_RADIUS);
+		}
+		this.projectiles = projectiles;
 	}
 	
 	
-	public void update(int delta, Spacecraft ship, double groupX, double groupY, ArrayList<Swarmer> swarmers) {
+	/**
+	 * Decide the acceleration toward the group and the ship and away from the
+	 * other swarmers, and add the swarmer to the batch of the kinematics.
+	 * 
+	 * @param delta
+	 * @param ship
+	 * @param groupX The center of the group.
+	 * @param groupY
+	 * @param swarmers
+	 * @param kinematics
+	 */
+	public void steer(int delta, Spacecraft ship, double groupX, double groupY, ArrayList<Swarmer> swarmers, Kinematics kinematics) {
 		super.update(delta);
 		
 		double shipX = ship.getX();
@@ -96,129 +114,172 @@ public class Swarmer extends SpaceObject {
 			final double preferredMaxDistFromGroup = Math.sqrt(SWARMER_AREA * swarmers.size() / Math.PI);
 			
 			//Acceleration towards the group center. Acceleration ~ r
-			double acceleration =  MAX_ACCELERATION * Math.hypot(groupX - this.getX(), groupY - this.getY()) / preferredMaxDistFromGroup;
+			double acceleration =  MAX_ACCELERATION * this.world.hypot(groupX - this.getX(), groupY - this.getY()) / preferredMaxDistFromGroup;
 			
-			angle = Math.atan2(groupY - this.getY(), groupX - this.getX());
-			this.accelerationX += Math.cos(angle) * acceleration;
-			this.accelerationY += Math.sin(angle) * acceleration;
+			angle = this.world.atan2(groupY - this.getY(), groupX - this.getX());
+			this.accelerationX += this.world.cos(angle) * acceleration;
+			this.accelerationY += this.world.sin(angle) * acceleration;
 			
 			//Acceleration away from other swarmers. Acceleration ~ 1/r^2
 			for (Swarmer s : swarmers) {
-				if (s != this) {
-					acceleration = MAX_ACCELERATION * Math.pow(SWARMER_DISTANCE, 2) / (Math.pow(s.getX() - this.getX(), 2) + Math.pow(s.getY() - this.getY(), 2));
+				if (s != this && !s.isDeletable()) {
+					acceleration = MAX_ACCELERATION * this.world.pow(SWARMER_DISTANCE, 2) / (this.world.pow(s.getX() - this.getX(), 2) + this.world.pow(s.getY() - this.getY(), 2));
 					
-					angle = Math.atan2(this.getY() - s.getY(), this.getX() - s.getX());
-					this.accelerationX += Math.cos(angle) * acceleration;
-					this.accelerationY += Math.sin(angle) * acceleration;
+					angle = this.world.atan2(this.getY() - s.getY(), this.getX() - s.getX());
+					this.accelerationX += this.world.cos(angle) * acceleration;
+					this.accelerationY += this.world.sin(angle) * acceleration;
 				}
 			}
 			
 			//Acceleration towards the ship/player
-			double distance = Math.hypot(shipX - this.getX(), shipY - this.getY());
-			acceleration =  MAX_ACCELERATION * ( distance / DISTANCE_FROM_SHIP - Math.pow(DISTANCE_FROM_SHIP / distance, 2));
+			double distance = this.world.hypot(shipX - this.getX(), shipY - this.getY());
+			acceleration =  MAX_ACCELERATION * ( distance / DISTANCE_FROM_SHIP - this.world.pow(DISTANCE_FROM_SHIP / distance, 2));
 			
-			angle = Math.atan2(shipY - this.getY(), shipX - this.getX());
-			this.accelerationX += Math.cos(angle) * acceleration;
-			this.accelerationY += Math.sin(angle) * acceleration;
+			angle = this.world.atan2(shipY - this.getY(), shipX - this.getX());
+			this.accelerationX += this.world.cos(angle) * acceleration;
+			this.accelerationY += this.world.sin(angle) * acceleration;
 			
 			
 			//limit the acceleration
-			if (Math.hypot(this.accelerationX, this.accelerationY) > MAX_ACCELERATION) {
-				angle = Math.atan2(this.accelerationY, this.accelerationX);
-				this.accelerationX = MAX_ACCELERATION * Math.cos(angle);
-				this.accelerationY = MAX_ACCELERATION * Math.sin(angle);
+			if (this.world.hypot(this.accelerationX, this.accelerationY) > MAX_ACCELERATION) {
+				angle = this.world.atan2(this.accelerationY, this.accelerationX);
+				this.accelerationX = MAX_ACCELERATION * this.world.cos(angle);
+				this.accelerationY = MAX_ACCELERATION * this.world.sin(angle);
 			}
 		}
 		
-		//update velocity
-		//slow down the ship
-		double percent = 0.50; // 50% in a second
-		this.velocityX *= Math.pow(percent, delta / 1000.0);
-		this.velocityY *= Math.pow(percent, delta / 1000.0);
-		
-		this.velocityX += this.accelerationX * delta / 1000.0;
-		this.velocityY += this.accelerationY * delta / 1000.0;
-		
-		//Limit the velocity
-		angle = Math.atan2(this.velocityY, this.velocityX);
-		if (Math.hypot(this.velocityX, this.velocityY) > MAX_VELOCITY) {
-			this.velocityX = MAX_VELOCITY * Math.cos(angle);
-			this.velocityY = MAX_VELOCITY * Math.sin(angle);
-		}
-		this.rotateTo(angle);
+		kinematics.add(this, this.getX(), this.getY(), this.velocityX, this.velocityY, this.accelerationX, this.accelerationY, DRAG, MAX_VELOCITY);
+	}
+	
+	/**
+	 * Add the swarmer to the batch of the kinematics with the acceleration a
+	 * SwarmKernel computed for it, instead of computing it here.
+	 * 
+	 * @param delta
+	 * @param accelerationX m/s^2
+	 * @param accelerationY m/s^2
+	 * @param kinematics
+	 */
+	public void steer(int delta, double accelerationX, double accelerationY, Kinematics kinematics) {
+		super.update(delta);
 		
-		//update position
-		double x = this.getX() + this.velocityX * GSFGame.getPixelRatio() * delta / 1000.0;
-		double y = this.getY() + this.velocityY * GSFGame.getPixelRatio() * delta / 1000.0;
+		this.accelerationX = this.isDestroyed() ? 0 : accelerationX;
+		this.accelerationY = this.isDestroyed() ? 0 : accelerationY;
 		
+		kinematics.add(this, this.getX(), this.getY(), this.velocityX, this.velocityY, this.accelerationX, this.accelerationY, DRAG, MAX_VELOCITY);
+	}
+	
+	public void moved(double x, double y, double velocityX, double velocityY) {
+		this.velocityX = velocityX;
+		this.velocityY = velocityY;
+		this.rotateTo(this.world.atan2(velocityY, velocityX));
 		this.position(x, y);
-		
-		//bounce from shield if the shield is active
-		if (ship.getShield() > 0 && Math.hypot(shipX - x, shipY - y) < ship.getShieldRadius() + SWARMER_RADIUS) {
-			//position ship outside the shield
-			x = shipX + (ship.getShieldRadius() + SWARMER_RADIUS) * Math.cos(Math.atan2(shipY - y, shipX - x) + Math.PI);
-			y = shipY + (ship.getShieldRadius() + SWARMER_RADIUS) * Math.sin(Math.atan2(shipY - y, shipX - x) + Math.PI);
-			this.position(x, y);
-			//flash the shield
-			ship.damage(0);
-			//calculate new angle
-			angle = 2 * Math.atan2(y - shipX, x - shipX) + Math.PI - angle;
-			//calculate new velocity
-			double velocity = Math.hypot(this.velocityX, this.velocityY);
-			this.velocityX = velocity * Math.cos(angle);
-			this.velocityY = velocity * Math.sin(angle);
-		}
-		
-		//shoot with the laser
-		if (this.reload < RELOAD_TIME - LASER_DURATION) {
-			this.shootsLaser = false;
-		}
+	}
+	
+	/**
+	 * Reload and shoot the laser from where the swarmer moved to. The laser
+	 * is an enemy beam toward the ship, the collision system traces it
+	 * through the grid and it stops at whatever it hits first.
+	 * 
+	 * @param delta
+	 * @param ship
+	 */
+	public void act(int delta, Spacecraft ship) {
 		this.reload = Math.max(0, this.reload - delta);
 		
-		double distance = Math.hypot(shipX - this.getX(), shipY - this.getY());
+		double distance = this.world.hypot(ship.getX() - this.getX(), ship.getY() - this.getY());
 		
 		if (!this.isDestroyed() && this.reload == 0 && distance < MAX_RANGE) {
-			this.shootsLaser = true;
+			double angle = this.world.atan2(ship.getY() - this.getY(), ship.getX() - this.getX());
+			//the velocity of a beam is its range in meters
+			double range = MAX_RANGE / this.world.getPixelRatio();
+			this.projectiles.addProjectile(this.getX() + SWARMER_RADIUS * this.world.cos(angle), this.getY() + SWARMER_RADIUS * this.world.sin(angle),
+					range * this.world.cos(angle), range * this.world.sin(angle), 0, ProjectileSystem.TYPE_BEAM, DAMAGE, SpaceObject.ENEMY);
 			this.reload = RELOAD_TIME;
-			ship.damage(DAMAGE);
-		}
-
-		//find a spot where to shoot the laser
-		if (this.shootsLaser) {
-			angle = Math.atan2(y - shipY, x - shipX);
-			if (ship.getShield() > 0) {
-				this.laserX = (int) (shipX + ship.getShieldRadius() * Math.cos(angle));
-				this.laserY = (int) (shipY + ship.getShieldRadius() * Math.sin(angle));
-			} else {
-//				this.laserX = (int) shipX;
-//				this.laserY = (int) shipY;
-				for (int r = 5; r <= ship.getShieldRadius(); r += 5) {
-					if (!ship.overlaps((int) (shipX + r * Math.cos(angle)), (int) (shipY + r * Math.sin(angle)))) {
-						this.laserX = (int) (shipX + (r - 5) * Math.cos(angle));
-						this.laserY = (int) (shipY + (r - 5) * Math.sin(angle));
-						break;
-					}
-				}
-			}
 		}
+	}
+	
+	/**
+	 * Drift without thinking for a while, like the enemies of a dormant sector
+	 * do: the velocity halves every second and the laser reloads.
+	 * 
+	 * @param millis
+	 */
+	public void coast(long millis) {
+		double seconds = millis / 1000.0;
+		//the integral of velocity * 0.5^t over the time
+		double drift = (1 - this.world.pow(0.5, seconds)) / StrictMath.log(2) * this.world.getPixelRatio();
+		this.position(this.getX() + this.velocityX * drift, this.getY() + this.velocityY * drift);
+		this.velocityX *= this.world.pow(0.5, seconds);
+		this.velocityY *= this.world.pow(0.5, seconds);
+		this.accelerationX = 0;
+		this.accelerationY = 0;
+		this.reload = (int) Math.max(0, this.reload - millis);
+	}
+	
+	/**
+	 * Does the swarmer touch the active shield of the ship.
+	 * 
+	 * @param ship
+	 * @return
+	 */
+	public boolean touchesShield(Spacecraft ship) {
+		return ship.getShield() > 0 && this.world.hypot(ship.getX() - this.getX(), ship.getY() - this.getY()) < ship.getShieldRadius() + SWARMER_RADIUS;
+	}
+	
+	/**
+	 * Bounce from the shield of the ship. Use when touchesShield() is true.
+	 * 
+	 * @param ship
+	 */
+	public void bounceFrom(Spacecraft ship) {
+		double shipX = ship.getX();
+		double shipY = ship.getY();
+		double x = this.getX();
+		double y = this.getY();
+		double angle = this.world.atan2(this.velocityY, this.velocityX);
 		
+		//position ship outside the shield
+		x = shipX + (ship.getShieldRadius() + SWARMER_RADIUS) * this.world.cos(this.world.atan2(shipY - y, shipX - x) + Math.PI);
+		y = shipY + (ship.getShieldRadius() + SWARMER_RADIUS) * this.world.sin(this.world.atan2(shipY - y, shipX - x) + Math.PI);
+		this.position(x, y);
+		//calculate new angle
+		angle = 2 * this.world.atan2(y - shipX, x - shipX) + Math.PI - angle;
+		//calculate new velocity
+		double velocity = this.world.hypot(this.velocityX, this.velocityY);
+		this.velocityX = velocity * this.world.cos(angle);
+		this.velocityY = velocity * this.world.sin(angle);
 	}
 	
 	public void draw(Camera camera, Graphics g) {
-		if (this.shootsLaser) {
-			double angle = Math.atan2(velocityY, velocityX);
-			g.setColor(Color.red);
-			g.drawLine((float) camera.getScreenX(this.getX() + SWARMER_RADIUS * Math.cos(angle)),
-							(float) camera.getScreenY(this.getY() + SWARMER_RADIUS * Math.sin(angle)),
-							camera.getScreenX(this.laserX),
-							camera.getScreenY(this.laserY));
-		}
 		super.draw(camera);
 	}
 	
 	@Override
 	public boolean overlaps(int x, int y) {
-		return Math.hypot(x - this.getX(), y - this.getY()) <= SWARMER_RADIUS;
+		return this.world.hypot(x - this.getX(), y - this.getY()) <= SWARMER_RADIUS;
+	}
+	
+	@Override
+	public void save(ByteBuffer buffer) {
+		super.save(buffer);
+		buffer.putDouble(this.accelerationX).putDouble(this.accelerationY).putDouble(this.velocityX).putDouble(this.velocityY);
+		buffer.putInt(this.reload);
+	}
+	
+	@Override
+	public void load(ByteBuffer buffer) {
+		super.load(buffer);
+		this.accelerationX = buffer.getDouble();
+		this.accelerationY = buffer.getDouble();
+		this.velocityX = buffer.getDouble();
+		this.velocityY = buffer.getDouble();
+		this.reload = buffer.getInt();
+	}
+	
+	@Override
+	public int getSaveSize() {
+		return super.getSaveSize() + 4 * 8 + 4;
 	}
 	
 }
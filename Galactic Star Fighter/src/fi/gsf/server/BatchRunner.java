@@ -0,0 +1,366 @@
+package fi.gsf.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fi.gsf.World;
+import fi.gsf.graphics.TextureAtlas;
+import fi.gsf.objects.SpaceObject;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.WeaponType;
+import fi.gsf.objects.enemies.Fighter;
+import fi.gsf.objects.enemies.Swarmer;
+import fi.gsf.systems.Kinematics;
+import fi.gsf.systems.ProjectileSystem;
+
+/**
+ * Runs many seeded, headless matches in parallel and collects their outcomes,
+ * for example to tune the weapons and the enemy waves.
+ *
+ * Every match has a world of its own seeded with seed + match number, and the
+ * ship is flown by a simple bot seeded the same way, so a batch with the same
+ * settings gives the same results. The matches are split between all the cores.
+ *
+ * @author X455u
+ */
+public class BatchRunner {
+
+	/** The length of a tick in milliseconds. */
+	public static final int TICK_MILLIS = MatchServer.TICK_MILLIS;
+
+	/** The bot keeps at least this far from the nearest enemy. */
+	private static final double BOT_SAFE_DISTANCE = 300;
+
+	//the settings of the batch
+	private int matches = 1000;
+	private long ticks = 60 * 60;
+	private long seed = 1;
+	private int swarmers = 40;
+	private int fighters = 5;
+	private boolean deterministic;
+	/** The events of the first match are written here, null for none. */
+	private String events;
+
+	//the weapon of the ship, see WeaponType
+	private int shotDamage = 5;
+	private int reloadTime = 100;
+	private double spread = 0.10;
+	private double shotVelocity = 300;
+	private double shotAcceleration = 1;
+	private double shotHoming = 0;
+	private int shotType = ProjectileSystem.TYPE_BULLET;
+
+
+	/**
+	 * Create a batch with the default settings.
+	 */
+	public BatchRunner() {
+		TextureAtlas.setHeadless(true);
+	}
+
+	/**
+	 * Change a setting: matches, ticks, seed, swarmers, fighters, deterministic,
+	 * events, damage, reload, spread, velocity, acceleration, homing or type
+	 * (bullet, plasma or beam).
+	 *
+	 * A deterministic batch gives the same checksum on every machine. events
+	 * is a file the events of the first match are written to, see EventRecorder.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void set(String name, String value) {
+		if (name.equals("matches")) {
+			this.matches = Integer.parseInt(value);
+		} else if (name.equals("ticks")) {
+			this.ticks = Long.parseLong(value);
+		} else if (name.equals("seed")) {
+			this.seed = Long.parseLong(value);
+		} else if (name.equals("swarmers")) {
+			this.swarmers = Integer.parseInt(value);
+		} else if (name.equals("fighters")) {
+			this.fighters = Integer.parseInt(value);
+		} else if (name.equals("deterministic")) {
+			this.deterministic = Boolean.parseBoolean(value);
+		} else if (name.equals("events")) {
+			this.events = value;
+		} else if (name.equals("damage")) {
+			this.shotDamage = Integer.parseInt(value);
+		} else if (name.equals("reload")) {
+			this.reloadTime = Integer.parseInt(value);
+		} else if (name.equals("spread")) {
+			this.spread = Double.parseDouble(value);
+		} else if (name.equals("velocity")) {
+			this.shotVelocity = Double.parseDouble(value);
+		} else if (name.equals("acceleration")) {
+			this.shotAcceleration = Double.parseDouble(value);
+		} else if (name.equals("homing")) {
+			this.shotHoming = Double.parseDouble(value);
+		} else if (name.equals("type")) {
+			if (value.equals("bullet")) {
+				this.shotType = ProjectileSystem.TYPE_BULLET;
+			} else if (value.equals("plasma")) {
+				this.shotType = ProjectileSystem.TYPE_PLASMA;
+			} else if (value.equals("beam")) {
+				this.shotType = ProjectileSystem.TYPE_BEAM;
+			} else {
+				throw new IllegalArgumentException("Unknown shot type: " + value);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown setting: " + name);
+		}
+	}
+
+	/**
+	 * Run all the matches of the batch.
+	 *
+	 * @param threads How many matches run at the same time.
+	 * @return The outcomes of all the matches together.
+	 * @throws InterruptedException
+	 */
+	public Summary run(int threads) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			List<Future<Outcome>> futures = new ArrayList<Future<Outcome>>(this.matches);
+			for (int i = 0; i < this.matches; i++) {
+				final int number = i;
+				futures.add(pool.submit(new Callable<Outcome>() {
+					public Outcome call() {
+						return play(number);
+					}
+				}));
+			}
+
+			Summary summary = new Summary();
+			for (Future<Outcome> future : futures) {
+				try {
+					summary.add(future.get());
+				} catch (ExecutionException e) {
+					throw new RuntimeException("A match failed", e.getCause());
+				}
+			}
+			summary.nanos = System.nanoTime() - start;
+			return summary;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Play one match to the end or to the tick limit. */
+	private Outcome play(int number) {
+		World world = new World(this.seed + number);
+		world.setDeterministic(this.deterministic);
+		world.getRecorder().setEnabled(this.events != null && number == 0);
+		WeaponType weapon = new WeaponType(null, this.shotDamage, this.reloadTime, this.spread, this.shotVelocity,
+				this.shotAcceleration, this.shotType, this.shotHoming, 250);
+		Match match = new Match(number, world, weapon);
+		match.setWave(this.swarmers, this.fighters);
+		Random bot = new Random(world.getSeed() ^ 0x5DEECE66DL);
+
+		while (!match.isOver() && match.getTick() < this.ticks) {
+			this.steer(match, bot);
+			match.tick(TICK_MILLIS);
+		}
+
+		Outcome outcome = new Outcome();
+		outcome.survived = !match.isOver();
+		outcome.ticks = match.getTick();
+		outcome.kills = match.getCollisions().getKills();
+		outcome.fired = match.getProjectiles().getFired(SpaceObject.FRIENDLY);
+		outcome.landed = match.getCollisions().getShotsLanded();
+		outcome.damageTaken = match.getCollisions().getDamageTaken();
+		outcome.checksum = match.getChecksum();
+
+		if (world.getRecorder().isEnabled()) {
+			try {
+				world.getRecorder().write(new File(this.events));
+			} catch (IOException e) {
+				throw new RuntimeException("Can't write the events", e);
+			}
+		}
+		return outcome;
+	}
+
+	/** The bot: aim at the nearest enemy and fire, back off when it's close, otherwise wander. */
+	private void steer(Match match, Random bot) {
+		Spacecraft ship = match.getShip();
+		SpaceObject nearest = null;
+		double nearestDistance = Double.MAX_VALUE;
+		for (Swarmer s : match.getEnemies().getSwarmers()) {
+			double distance = Math.hypot(s.getX() - ship.getX(), s.getY() - ship.getY());
+			if (!s.isDestroyed() && distance < nearestDistance) {
+				nearest = s;
+				nearestDistance = distance;
+			}
+		}
+		for (Fighter f : match.getEnemies().getFighters()) {
+			double distance = Math.hypot(f.getX() - ship.getX(), f.getY() - ship.getY());
+			if (!f.isDestroyed() && distance < nearestDistance) {
+				nearest = f;
+				nearestDistance = distance;
+			}
+		}
+
+		int buttons = 0;
+		if (nearest == null) {
+			match.setInput(buttons, 0, 0);
+			return;
+		}
+		if (nearestDistance < BOT_SAFE_DISTANCE) {
+			buttons |= nearest.getX() < ship.getX() ? Match.RIGHT : Match.LEFT;
+			buttons |= nearest.getY() < ship.getY() ? Match.UP : Match.DOWN;
+		} else if (bot.nextInt(4) == 0) {
+			buttons |= 1 << bot.nextInt(4);
+		}
+		match.setInput(buttons | Match.AIM | Match.FIRE, (int) nearest.getX(), (int) nearest.getY());
+	}
+
+
+	/** The outcome of one match. */
+	private static class Outcome {
+		private boolean survived;
+		private long ticks;
+		private int kills;
+		private int fired;
+		private int landed;
+		private long damageTaken;
+		private long checksum;
+	}
+
+	/** The outcomes of the matches of a batch added together. */
+	public static class Summary {
+
+		private int matches;
+		private int survived;
+		private long ticks;
+		private long kills;
+		private long fired;
+		private long landed;
+		private long damageTaken;
+
+		/** The checksums of the last ticks of the matches folded in order, 0 if they aren't deterministic. */
+		private long checksum;
+
+		/** How long the batch took. */
+		private long nanos;
+
+		private void add(Outcome outcome) {
+			this.matches++;
+			this.survived += outcome.survived ? 1 : 0;
+			this.ticks += outcome.ticks;
+			this.kills += outcome.kills;
+			this.fired += outcome.fired;
+			this.landed += outcome.landed;
+			this.damageTaken += outcome.damageTaken;
+			if (outcome.checksum != 0) {
+				this.checksum = Kinematics.mix(this.checksum, outcome.checksum);
+			}
+		}
+
+		public int getMatches() {
+			return this.matches;
+		}
+
+		/**
+		 * Returns the share of the matches the ship survived, between 0 and 1.
+		 *
+		 * @return
+		 */
+		public double getSurvivalRate() {
+			return this.matches == 0 ? 0 : (double) this.survived / this.matches;
+		}
+
+		/**
+		 * Returns how long the ship stayed alive on average, in seconds of game time.
+		 *
+		 * @return
+		 */
+		public double getMeanSurvivalTime() {
+			return this.matches == 0 ? 0 : this.ticks * TICK_MILLIS / 1000.0 / this.matches;
+		}
+
+		/**
+		 * Returns the enemies destroyed per minute of game time.
+		 *
+		 * @return
+		 */
+		public double getKillsPerMinute() {
+			return this.ticks == 0 ? 0 : this.kills * 60000.0 / (this.ticks * TICK_MILLIS);
+		}
+
+		/**
+		 * Returns the share of the ship's projectiles that hit, between 0 and 1.
+		 *
+		 * @return
+		 */
+		public double getAccuracy() {
+			return this.fired == 0 ? 0 : (double) this.landed / this.fired;
+		}
+
+		/**
+		 * Returns the damage done to the ship per minute of game time.
+		 *
+		 * @return
+		 */
+		public double getDamageTakenPerMinute() {
+			return this.ticks == 0 ? 0 : this.damageTaken * 60000.0 / (this.ticks * TICK_MILLIS);
+		}
+
+		/**
+		 * Returns the checksums of the matches folded in order, 0 if the batch
+		 * isn't deterministic.
+		 *
+		 * @return
+		 */
+		public long getChecksum() {
+			return this.checksum;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = this.nanos / 1e9;
+			return "Matches: " + this.matches + ", survived: " + Math.round(this.getSurvivalRate() * 100) + " %"
+					+ "\nMean survival time: " + Math.round(this.getMeanSurvivalTime()) + " s"
+					+ "\nKills per minute: " + Math.round(this.getKillsPerMinute() * 10) / 10.0
+					+ "\nAccuracy: " + Math.round(this.getAccuracy() * 1000) / 10.0 + " %"
+					+ "\nDamage taken per minute: " + Math.round(this.getDamageTakenPerMinute())
+					+ "\nRan " + this.ticks + " ticks in " + Math.round(seconds * 10) / 10.0 + " s ("
+					+ Math.round(this.ticks / Math.max(seconds, 1e-9)) + " ticks per second)"
+					+ (this.checksum != 0 ? "\nChecksum: " + Long.toHexString(this.checksum) : "");
+		}
+	}
+
+
+	/**
+	 * Run a batch.
+	 *
+	 * Arguments: setting=value pairs, see set(). For example
+	 * matches=2000 ticks=7200 reload=80 swarmers=60
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		BatchRunner batch = new BatchRunner();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				throw new IllegalArgumentException("Expected setting=value: " + arg);
+			}
+			batch.set(arg.substring(0, split), arg.substring(split + 1));
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		System.out.println("Running " + batch.matches + " matches on " + threads + " threads");
+		System.out.println(batch.run(threads));
+	}
+
+}
@@ -0,0 +1,198 @@
+package fi.gsf.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * A test client for the match server. Joins a match on the loopback address,
+ * sends random input every tick, decodes the snapshots it receives and
+ * acknowledges them.
+ *
+ * Run many of them with main() to load the server.
+ *
+ * @author X455u
+ */
+public class LoopbackClient implements Runnable {
+
+	//the view of the client, the same as the game window
+	public static final int VIEW_WIDTH = 1280;
+	public static final int VIEW_HEIGHT = 800;
+
+	/** How long the client plays in milliseconds. */
+	private long duration;
+
+	private InetSocketAddress server;
+
+	private int matchId;
+
+	/** The amount of snapshots decoded. */
+	private int states;
+
+	/** The bytes of all the packets received. */
+	private long bytesReceived;
+
+	/** The tick of the latest snapshot. */
+	private long lastTick;
+
+	/** The objects in the latest snapshot. */
+	private int lastObjects;
+
+	/** True if the server ended the match. */
+	private boolean over;
+
+
+	/**
+	 * Create a new client.
+	 *
+	 * @param port The port of the server on 127.0.0.1.
+	 * @param duration How long to play in milliseconds.
+	 */
+	public LoopbackClient(int port, long duration) {
+		this.server = new InetSocketAddress("127.0.0.1", port);
+		this.duration = duration;
+	}
+
+	public void run() {
+		try {
+			this.play();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void play() throws IOException, InterruptedException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.connect(this.server);
+			ByteBuffer out = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+			ByteBuffer in = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+
+			//join
+			out.put(Protocol.JOIN).putInt(VIEW_WIDTH).putInt(VIEW_HEIGHT).flip();
+			channel.write(out);
+			channel.read(in);
+			in.flip();
+			if (in.get() != Protocol.WELCOME) {
+				throw new IOException("The server didn't accept the client");
+			}
+			this.matchId = in.getInt();
+
+			//play
+			channel.configureBlocking(false);
+			Random random = new Random(this.matchId);
+			SnapshotDecoder decoder = new SnapshotDecoder();
+			int ack = -1;
+			int buttons = 0;
+			long end = System.currentTimeMillis() + this.duration;
+			while (!this.over && System.currentTimeMillis() < end) {
+				if (random.nextInt(30) == 0) {
+					buttons = random.nextInt(64);
+				}
+				out.clear();
+				out.put(Protocol.INPUT).putInt(this.matchId).putInt(buttons).putInt(random.nextInt(2000) - 1000).putInt(random.nextInt(2000) - 1000).putInt(ack);
+				out.flip();
+				channel.write(out);
+
+				in.clear();
+				while (channel.read(in) > 0) {
+					in.flip();
+					this.bytesReceived += in.remaining();
+					byte type = in.get();
+					in.getInt();
+					if (type == Protocol.SNAPSHOT) {
+						if (decoder.decode(in)) {
+							Snapshot snapshot = decoder.getLatest();
+							ack = snapshot.seq;
+							this.lastTick = snapshot.tick;
+							this.lastObjects = snapshot.size;
+							this.states++;
+						}
+					} else if (type == Protocol.OVER) {
+						this.lastTick = in.getLong();
+						this.over = true;
+					}
+					in.clear();
+				}
+				Thread.sleep(MatchServer.TICK_MILLIS);
+			}
+
+			//leave
+			out.clear();
+			out.put(Protocol.LEAVE).putInt(this.matchId).flip();
+			channel.write(out);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public int getStates() {
+		return this.states;
+	}
+
+	public long getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	public long getLastTick() {
+		return this.lastTick;
+	}
+
+	public int getLastObjects() {
+		return this.lastObjects;
+	}
+
+
+	/**
+	 * Run clients against a server.
+	 *
+	 * Arguments: [clients] [seconds] [port]
+	 * If no port is given a server is started in this JVM.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : Protocol.DEFAULT_PORT;
+
+		MatchServer server = null;
+		if (args.length <= 2) {
+			server = new MatchServer();
+			server.start(port);
+		}
+
+		LoopbackClient[] players = new LoopbackClient[clients];
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			players[i] = new LoopbackClient(port, seconds * 1000L);
+			threads[i] = new Thread(players[i], "Loopback client " + i);
+			threads[i].start();
+		}
+
+		if (server != null) {
+			Thread.sleep(seconds * 1000L / 2);
+			System.out.println(server.getReport());
+		}
+		long states = 0;
+		long bytes = 0;
+		for (int i = 0; i < clients; i++) {
+			threads[i].join();
+			states += players[i].getStates();
+			bytes += players[i].getBytesReceived();
+		}
+		int clientSeconds = Math.max(1, clients * seconds);
+		System.out.println("Clients: " + clients + ", snapshots decoded: " + states + " (" + (states / clientSeconds) + " per client per second)");
+		System.out.println("Received " + (bytes / clientSeconds) + " bytes per client per second");
+
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+package fi.gsf.server;
+
+import fi.gsf.EventRecorder;
+import fi.gsf.World;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.Turret;
+import fi.gsf.objects.WeaponType;
+import fi.gsf.systems.CollisionSystem;
+import fi.gsf.systems.EnemySystem;
+import fi.gsf.systems.Kinematics;
+import fi.gsf.systems.ProjectileSystem;
+
+/**
+ * One headless game: a spacecraft, its enemies and the projectiles.
+ *
+ * The match is advanced with tick(). The input of the player can be set from
+ * another thread (the network) at any time, it's read at the start of a tick.
+ *
+ * In a deterministic world (see World.setDeterministic()) every tick ends
+ * with a checksum of the state, the same on every machine for the same seed
+ * and input. Lockstep peers compare it each tick to find a desync.
+ *
+ * @author X455u
+ */
+public class Match {
+
+	//input buttons
+	public static final int UP = 1;
+	public static final int DOWN = 2;
+	public static final int LEFT = 4;
+	public static final int RIGHT = 8;
+	public static final int FIRE = 16;
+	/** The turrets are aimed at (aimX, aimY). */
+	public static final int AIM = 32;
+
+	/** How many of the latest ticks are kept for the statistics. */
+	private static final int STATS_WINDOW = 1024;
+
+	/** The id of the match. */
+	private int id;
+
+	/** The world of the match. */
+	private World world;
+
+	private ProjectileSystem projectiles;
+	private Spacecraft ship;
+	private EnemySystem enemies;
+	private CollisionSystem collisions;
+
+	/** The amount of ticks run. */
+	private long tick;
+
+	//the enemies of a wave, a new wave comes when the previous one is gone
+	private int swarmersPerWave = 40;
+	private int fightersPerWave = 5;
+
+	//the latest input of the player
+	private volatile int buttons;
+	private volatile int aimX;
+	private volatile int aimY;
+
+	/** The checksum of the state after the last tick, 0 if the world isn't deterministic. */
+	private long checksum;
+
+	/** How long the ticks take. Guarded by this. */
+	private TickStats stats;
+
+
+	/**
+	 * Create a new match with the default weapon.
+	 *
+	 * @param id
+	 * @param seed The seed of the random numbers of the match.
+	 */
+	public Match(int id, long seed) {
+		this(id, new World(seed), new WeaponType(null));
+	}
+
+	/**
+	 * Create a new match.
+	 *
+	 * @param id
+	 * @param world
+	 * @param weapon The weapon of both turrets of the ship.
+	 */
+	public Match(int id, World world, WeaponType weapon) {
+		this.id = id;
+		this.world = world;
+		this.projectiles = new ProjectileSystem(world, null);
+		this.ship = new Spacecraft(world, this.projectiles);
+		this.ship.setTurrets(new Turret(weapon), 0);
+		this.ship.setTurrets(new Turret(weapon), 1);
+		this.enemies = new EnemySystem(world, this.ship, this.projectiles);
+		this.collisions = new CollisionSystem(this.ship, this.enemies, this.projectiles);
+		this.projectiles.setTargets(this.collisions.getGrid());
+		this.stats = new TickStats(STATS_WINDOW);
+	}
+
+	/**
+	 * Set the input of the player. Can be called from any thread.
+	 *
+	 * @param buttons UP, DOWN, LEFT, RIGHT, FIRE and AIM combined.
+	 * @param aimX World x-coordinate the turrets are aimed at.
+	 * @param aimY World y-coordinate the turrets are aimed at.
+	 */
+	public void setInput(int buttons, int aimX, int aimY) {
+		this.aimX = aimX;
+		this.aimY = aimY;
+		this.buttons = buttons;
+	}
+
+	/**
+	 * Set the size of the enemy waves.
+	 *
+	 * @param swarmers
+	 * @param fighters
+	 */
+	public void setWave(int swarmers, int fighters) {
+		this.swarmersPerWave = swarmers;
+		this.fightersPerWave = fighters;
+	}
+
+	/**
+	 * Advance the match.
+	 *
+	 * @param delta Milliseconds.
+	 */
+	public void tick(int delta) {
+		long start = System.nanoTime();
+		Kinematics kinematics = this.world.getKinematics();
+		kinematics.resetChecksum();
+
+		int buttons = this.buttons;
+		this.ship.update((buttons & UP) != 0, (buttons & DOWN) != 0, (buttons & LEFT) != 0, (buttons & RIGHT) != 0, delta);
+		if ((buttons & AIM) != 0) {
+			this.ship.aimAt(this.aimX, this.aimY);
+		} else {
+			this.ship.stopAiming();
+		}
+		if ((buttons & FIRE) != 0) {
+			this.ship.shoot();
+		}
+
+		//keep the enemies coming
+		EventRecorder recorder = this.world.getRecorder();
+		boolean recording = recorder.isEnabled();
+		long spawnStart = recording ? System.nanoTime() : 0;
+		if (this.enemies.getSwarmers().isEmpty() && this.enemies.getFighters().isEmpty()) {
+			this.enemies.respawnSwarmers(this.swarmersPerWave);
+			this.enemies.respawnFighters(this.fightersPerWave);
+		}
+
+		long enemiesStart = recording ? System.nanoTime() : 0;
+		this.enemies.update(delta);
+		long projectilesStart = recording ? System.nanoTime() : 0;
+		this.projectiles.update(delta);
+		long collisionsStart = recording ? System.nanoTime() : 0;
+		this.collisions.update();
+		this.tick++;
+		if (recording) {
+			long end = System.nanoTime();
+			recorder.tick(start, this.tick, this.enemies.getSwarmers().size() + this.enemies.getFighters().size(), this.projectiles.getSize(),
+					enemiesStart - spawnStart, projectilesStart - enemiesStart, collisionsStart - projectilesStart, end - collisionsStart);
+		}
+
+		if (this.world.isDeterministic()) {
+			long checksum = Kinematics.mix(kinematics.getChecksum(), this.tick);
+			checksum = Kinematics.mix(checksum, this.ship.getArmor());
+			checksum = Kinematics.mix(checksum, this.ship.getShield());
+			checksum = Kinematics.mix(checksum, this.enemies.getSwarmers().size());
+			checksum = Kinematics.mix(checksum, this.enemies.getFighters().size());
+			checksum = Kinematics.mix(checksum, this.projectiles.getSize());
+			this.checksum = Kinematics.mix(checksum, this.collisions.getKills());
+		}
+
+		long duration = System.nanoTime() - start;
+		synchronized (this) {
+			this.stats.record(duration);
+		}
+	}
+
+	/**
+	 * Returns true when the player's ship has been destroyed.
+	 *
+	 * @return
+	 */
+	public boolean isOver() {
+		return this.ship.isDestroyed();
+	}
+
+	/**
+	 * Add the tick statistics of this match to the given statistics.
+	 *
+	 * @param total
+	 */
+	public synchronized void addStatsTo(TickStats total) {
+		total.add(this.stats);
+	}
+
+	public int getId() {
+		return this.id;
+	}
+
+	public World getWorld() {
+		return this.world;
+	}
+
+	public long getTick() {
+		return this.tick;
+	}
+
+	/**
+	 * Returns the checksum of the state after the last tick, 0 if the world
+	 * isn't deterministic.
+	 *
+	 * @return
+	 */
+	public long getChecksum() {
+		return this.checksum;
+	}
+
+	public Spacecraft getShip() {
+		return this.ship;
+	}
+
+	public EnemySystem getEnemies() {
+		return this.enemies;
+	}
+
+	public ProjectileSystem getProjectiles() {
+		return this.projectiles;
+	}
+
+	public CollisionSystem getCollisions() {
+		return this.collisions;
+	}
+
+}
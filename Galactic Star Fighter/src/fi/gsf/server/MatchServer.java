@@ -0,0 +1,376 @@
+package fi.gsf.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.gsf.graphics.TextureAtlas;
+
+/**
+ * A headless server running many matches in one JVM.
+ *
+ * Every match ticks at a fixed rate on a shared pool with one thread per core,
+ * so a match costs only its tick time instead of a thread of its own. Clients
+ * talk to the server with UDP packets (see Protocol): every client gets a
+ * match of its own, sends its input and gets a snapshot of the objects near
+ * its ship after every tick (see Replicator). Matches can also be started
+ * without a client for load testing.
+ *
+ * @author X455u
+ */
+public class MatchServer {
+
+	/** Ticks per second. */
+	public static final int TICK_RATE = 60;
+
+	/** The length of a tick in milliseconds. */
+	public static final int TICK_MILLIS = 1000 / TICK_RATE;
+
+	/** The amount of threads running the matches. */
+	private int threads;
+
+	/** Runs the ticks of the matches. */
+	private ScheduledExecutorService ticker;
+
+	/** The running matches by id. */
+	private ConcurrentHashMap<Integer, Running> matches;
+
+	/** The id of the next match. */
+	private AtomicInteger nextId;
+
+	/** The socket of the server. Null if the server has no network. */
+	private DatagramChannel channel;
+
+	/** Receives the packets of the clients. */
+	private Thread receiver;
+
+	/** Nanoseconds spent in ticks since the start, all matches together. */
+	private AtomicLong busyNanos;
+
+	/** Snapshot bytes sent since the start, all clients together. */
+	private AtomicLong bytesSent;
+
+	//for measuring the cpu use between two reports
+	private long lastReportTime;
+	private long lastBusyNanos;
+	private long lastBytesSent;
+
+
+	/**
+	 * Create a new server. Nothing runs until start() or createMatch() is called.
+	 */
+	public MatchServer() {
+		TextureAtlas.setHeadless(true);
+		this.threads = Runtime.getRuntime().availableProcessors();
+		this.ticker = Executors.newScheduledThreadPool(this.threads, new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Match ticker " + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.matches = new ConcurrentHashMap<Integer, Running>();
+		this.nextId = new AtomicInteger(1);
+		this.busyNanos = new AtomicLong();
+		this.bytesSent = new AtomicLong();
+		this.lastReportTime = System.nanoTime();
+	}
+
+	/**
+	 * Start listening to clients on the loopback address.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		this.channel = DatagramChannel.open();
+		this.channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+		this.receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "Match server receiver");
+		this.receiver.setDaemon(true);
+		this.receiver.start();
+	}
+
+	/**
+	 * Start a new match without a client.
+	 *
+	 * @return
+	 */
+	public Match createMatch() {
+		return this.createMatch(null, 0, 0);
+	}
+
+	/**
+	 * Start a new match.
+	 *
+	 * @param client The address the snapshots are sent to. Null for a match without a client.
+	 * @param viewWidth The width of the client's view in pixels.
+	 * @param viewHeight The height of the client's view in pixels.
+	 * @return
+	 */
+	public Match createMatch(SocketAddress client, int viewWidth, int viewHeight) {
+		Match match = new Match(this.nextId.getAndIncrement(), System.nanoTime());
+		Running running = new Running(match, client, client != null ? new Replicator(match.getWorld(), viewWidth, viewHeight) : null);
+		this.matches.put(match.getId(), running);
+		//the first tick can stop the match before scheduleAtFixedRate() returns, the lock makes stopMatch() wait for the future
+		synchronized (running) {
+			running.future = this.ticker.scheduleAtFixedRate(running, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return match;
+	}
+
+	/**
+	 * Stop a match.
+	 *
+	 * @param id
+	 */
+	public void stopMatch(int id) {
+		Running running = this.matches.remove(id);
+		if (running != null) {
+			synchronized (running) {
+				if (running.future != null) {
+					running.future.cancel(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop all the matches and close the socket.
+	 */
+	public void stop() {
+		this.ticker.shutdownNow();
+		this.matches.clear();
+		if (this.channel != null) {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns the amount of running matches.
+	 *
+	 * @return
+	 */
+	public int getMatchCount() {
+		return this.matches.size();
+	}
+
+	/**
+	 * Returns the tick statistics of all the running matches together.
+	 *
+	 * @return
+	 */
+	public TickStats getStats() {
+		TickStats total = new TickStats(16384);
+		for (Running running : this.matches.values()) {
+			running.match.addStatsTo(total);
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the snapshot encode time statistics of all the clients together.
+	 *
+	 * @return
+	 */
+	public TickStats getEncodeStats() {
+		TickStats total = new TickStats(16384);
+		for (Running running : this.matches.values()) {
+			if (running.replicator != null) {
+				running.replicator.addStatsTo(total);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Returns a report of the tick latency, the snapshot traffic and the capacity of the server.
+	 * The cpu use and the traffic are measured since the previous report.
+	 *
+	 * @return
+	 */
+	public String getReport() {
+		long now = System.nanoTime();
+		double seconds = (now - this.lastReportTime) / 1e9;
+		long busy = this.busyNanos.get();
+		double cpu = (double) (busy - this.lastBusyNanos) / ((now - this.lastReportTime) * (double) this.threads);
+		int clients = 0;
+		long bytes = this.bytesSent.get();
+		for (Running running : this.matches.values()) {
+			if (running.replicator != null) {
+				clients++;
+			}
+		}
+		double bytesPerClient = clients > 0 ? (bytes - this.lastBytesSent) / (clients * seconds) : 0;
+		this.lastReportTime = now;
+		this.lastBusyNanos = busy;
+		this.lastBytesSent = bytes;
+		TickStats encode = this.getEncodeStats();
+
+		TickStats stats = this.getStats();
+		double mean = stats.getMean();
+		//one core has a second of cpu time per second, a match needs TICK_RATE ticks of it
+		double perCore = mean > 0 ? 1e9 / (mean * TICK_RATE) : 0;
+
+		return "Matches: " + this.getMatchCount() + " on " + this.threads + " threads"
+				+ "\nTick mean: " + micros(mean) + " us, p99: " + micros(stats.getPercentile(0.99)) + " us, max: " + micros(stats.getMax()) + " us"
+				+ "\nSnapshots: " + Math.round(bytesPerClient) + " bytes per client per second, encode mean: "
+				+ micros(encode.getMean()) + " us, p99: " + micros(encode.getPercentile(0.99)) + " us"
+				+ "\nCPU use: " + Math.round(cpu * 100) + " %"
+				+ "\nCapacity: about " + Math.round(perCore) + " matches per core at " + TICK_RATE + " Hz";
+	}
+
+	private static long micros(double nanos) {
+		return Math.round(nanos / 1000);
+	}
+
+	/** Receive the packets of the clients until the socket is closed. */
+	private void receive() {
+		ByteBuffer in = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+		ByteBuffer out = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+		while (true) {
+			try {
+				in.clear();
+				SocketAddress client = this.channel.receive(in);
+				in.flip();
+				if (!in.hasRemaining()) {
+					continue;
+				}
+
+				byte type = in.get();
+				if (type == Protocol.JOIN && in.remaining() >= 8) {
+					Match match = this.createMatch(client, in.getInt(), in.getInt());
+					out.clear();
+					out.put(Protocol.WELCOME).putInt(match.getId());
+					out.flip();
+					this.channel.send(out, client);
+				} else if (type == Protocol.INPUT && in.remaining() >= 20) {
+					Running running = this.matches.get(in.getInt());
+					if (running != null && client.equals(running.client)) {
+						running.match.setInput(in.getInt(), in.getInt(), in.getInt());
+						running.replicator.ack(in.getInt());
+					}
+				} else if (type == Protocol.LEAVE && in.remaining() >= 4) {
+					int id = in.getInt();
+					Running running = this.matches.get(id);
+					if (running != null && client.equals(running.client)) {
+						this.stopMatch(id);
+					}
+				}
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/** A match scheduled on the ticker. */
+	private class Running implements Runnable {
+
+		private Match match;
+
+		private SocketAddress client;
+
+		/** Encodes the snapshots of the client. Null without a client. */
+		private Replicator replicator;
+
+		/** Set and cancelled holding the lock of the Running. */
+		private ScheduledFuture<?> future;
+
+		/** The snapshot packet. Only used by the ticking thread. */
+		private ByteBuffer packet;
+
+		public Running(Match match, SocketAddress client, Replicator replicator) {
+			this.match = match;
+			this.client = client;
+			this.replicator = replicator;
+			this.packet = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+		}
+
+		public void run() {
+			try {
+				long start = System.nanoTime();
+				this.match.tick(TICK_MILLIS);
+				busyNanos.addAndGet(System.nanoTime() - start);
+
+				if (this.client != null) {
+					this.sendState();
+				}
+				if (this.match.isOver()) {
+					stopMatch(this.match.getId());
+				}
+			} catch (RuntimeException e) {
+				//a broken match must not take the others down, the executor would cancel it silently and keep it in the matches
+				e.printStackTrace();
+				stopMatch(this.match.getId());
+			}
+		}
+
+		private void sendState() {
+			if (this.match.isOver()) {
+				this.packet.clear();
+				this.packet.put(Protocol.OVER).putInt(this.match.getId()).putLong(this.match.getTick());
+				this.packet.flip();
+			} else {
+				this.replicator.encode(this.match, this.packet);
+				bytesSent.addAndGet(this.packet.remaining());
+			}
+			try {
+				channel.send(this.packet, this.client);
+			} catch (IOException e) {
+				//the client is gone, the match keeps running until it leaves or the match ends
+			}
+		}
+	}
+
+
+	/**
+	 * Run the server.
+	 *
+	 * Arguments: [port] [matches without clients]
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Protocol.DEFAULT_PORT;
+		int localMatches = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+		MatchServer server = new MatchServer();
+		server.start(port);
+		for (int i = 0; i < localMatches; i++) {
+			server.createMatch();
+		}
+		System.out.println("Match server listening on 127.0.0.1:" + port);
+
+		while (true) {
+			Thread.sleep(5000);
+			System.out.println(server.getReport());
+			System.out.println();
+		}
+	}
+
+}
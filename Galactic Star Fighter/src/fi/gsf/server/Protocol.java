@@ -0,0 +1,46 @@
+package fi.gsf.server;
+
+/**
+ * The packets between the match server and its clients.
+ *
+ * Every packet starts with a type byte. All numbers are big-endian.
+ *
+ * @author X455u
+ */
+public class Protocol {
+
+	/** The port of the server if none is given. */
+	public static final int DEFAULT_PORT = 7777;
+
+	/** The biggest packet. */
+	public static final int MAX_PACKET_SIZE = 1400;
+
+	/** Client to server: start a new match. int viewWidth, int viewHeight */
+	public static final byte JOIN = 0;
+
+	/** Server to client: the match has started. int matchId */
+	public static final byte WELCOME = 1;
+
+	/**
+	 * Client to server: the input of the player and the latest snapshot received.
+	 * int matchId, int buttons, int aimX, int aimY, int ackSeq (-1 for none)
+	 */
+	public static final byte INPUT = 2;
+
+	/**
+	 * Server to client: the objects near the player after a tick, delta-encoded against
+	 * the snapshot baselineSeq (-1 for none). See Replicator.
+	 * int matchId, int seq, int baselineSeq, long tick, int armor, int shield, objects
+	 */
+	public static final byte SNAPSHOT = 3;
+
+	/** Client to server: end the match. int matchId */
+	public static final byte LEAVE = 4;
+
+	/** Server to client: the match is over. int matchId, long tick */
+	public static final byte OVER = 5;
+
+	private Protocol() {
+	}
+
+}
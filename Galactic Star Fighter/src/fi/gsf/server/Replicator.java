@@ -0,0 +1,244 @@
+package fi.gsf.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import fi.gsf.Camera;
+import fi.gsf.World;
+import fi.gsf.objects.SpaceObject;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.enemies.Fighter;
+import fi.gsf.objects.enemies.Swarmer;
+import fi.gsf.systems.ProjectileSystem;
+import fi.gsf.systems.ProjectileSystem.Projectile;
+
+/**
+ * Sends the state of a match to one client.
+ *
+ * Only the objects in the client's area of interest are sent: its camera view
+ * plus a margin. Every snapshot is delta-encoded against the latest snapshot
+ * the client has acknowledged: an object the client already has is sent as a
+ * mask of the changed fields and the changes, a new object is sent whole and
+ * an object left out is removed by the client. Without an acknowledged
+ * snapshot everything is sent whole. If the packet fills up the rest of the
+ * objects are left out, and since the history keeps only what was sent the
+ * next delta stays valid.
+ *
+ * Packet (see Protocol.SNAPSHOT): for each kind an unsigned short count and
+ * the objects. An object is a varint id gap to the previous object of the
+ * kind, then either a change mask and the changed fields, or the whole object.
+ *
+ * @author X455u
+ */
+class Replicator {
+
+	/** How many sent snapshots are kept as possible baselines. */
+	public static final int HISTORY = 32;
+
+	/** How far outside the view objects are still sent, in pixels. */
+	public static final double AREA_MARGIN = 200;
+
+	//change mask of an object the client has
+	public static final int CHANGED_X = 1;
+	public static final int CHANGED_Y = 2;
+	public static final int CHANGED_ANGLE = 4;
+	public static final int CHANGED_FLAGS = 8;
+
+	/** The most bytes an object can take: id, mask, x, y, angle and flags. */
+	private static final int MAX_OBJECT_SIZE = 5 + 1 + 5 + 5 + 1 + 1;
+
+	/** How many of the latest encode times are kept for the statistics. */
+	private static final int STATS_WINDOW = 1024;
+
+	private int viewWidth;
+	private int viewHeight;
+
+	/** The client's camera, follows the ship like the camera of the game. */
+	private Camera camera;
+
+	/** The objects in the area of interest this tick, before encoding. */
+	private Snapshot visible;
+
+	/** The sent snapshots by seq % HISTORY. */
+	private Snapshot[] history;
+
+	/** The sequence number of the next snapshot. */
+	private int nextSeq;
+
+	/** The latest snapshot the client has acknowledged, -1 for none. Set by the receiving thread. */
+	private volatile int acked = -1;
+
+	/** How long the encoding takes. Guarded by this. */
+	private TickStats encodeStats;
+
+
+	/**
+	 * Create a replicator for a client.
+	 *
+	 * @param world The world of the client's match.
+	 * @param viewWidth The width of the client's view in pixels.
+	 * @param viewHeight The height of the client's view in pixels.
+	 */
+	public Replicator(World world, int viewWidth, int viewHeight) {
+		this.viewWidth = viewWidth;
+		this.viewHeight = viewHeight;
+		this.camera = new Camera(world);
+		this.visible = new Snapshot(256);
+		this.history = new Snapshot[HISTORY];
+		for (int i = 0; i < HISTORY; i++) {
+			this.history[i] = new Snapshot(256);
+		}
+		this.encodeStats = new TickStats(STATS_WINDOW);
+	}
+
+	/**
+	 * The client has received a snapshot. Older acknowledgements are ignored.
+	 * Can be called from any thread.
+	 *
+	 * @param seq
+	 */
+	public void ack(int seq) {
+		if (seq > this.acked) {
+			this.acked = seq;
+		}
+	}
+
+	/**
+	 * Write a snapshot of the match to the packet. Called by the thread ticking the match.
+	 *
+	 * @param match
+	 * @param packet Cleared and filled, ready to be sent.
+	 */
+	public void encode(Match match, ByteBuffer packet) {
+		long start = System.nanoTime();
+
+		this.gather(match);
+
+		int seq = this.nextSeq++;
+		int acked = this.acked;
+		Snapshot baseline = null;
+		if (acked >= 0 && seq - acked < HISTORY && this.history[acked % HISTORY].seq == acked) {
+			baseline = this.history[acked % HISTORY];
+		}
+		Snapshot sent = this.history[seq % HISTORY];
+		sent.clear(seq, match.getTick());
+
+		Spacecraft ship = match.getShip();
+		packet.clear();
+		packet.put(Protocol.SNAPSHOT).putInt(match.getId()).putInt(seq).putInt(baseline != null ? baseline.seq : -1);
+		packet.putLong(match.getTick()).putInt(ship.getArmor()).putInt(ship.getShield());
+
+		boolean full = false;
+		for (int kind = 0; kind < Snapshot.KINDS; kind++) {
+			sent.beginKind(kind);
+			int countPosition = packet.position();
+			packet.putShort((short) 0);
+			int count = 0;
+			int previousId = -1;
+			int b = baseline != null ? baseline.kindStart(kind) : 0;
+			int bEnd = baseline != null ? baseline.kindEnd[kind] : 0;
+			for (int i = this.visible.kindStart(kind); i < this.visible.kindEnd[kind] && !full; i++) {
+				//the counts of the later kinds have to fit after the object
+				if (packet.remaining() < MAX_OBJECT_SIZE + 2 * (Snapshot.KINDS - kind - 1)) {
+					full = true;
+					break;
+				}
+				int id = this.visible.ids[i];
+				int x = this.visible.xs[i];
+				int y = this.visible.ys[i];
+				byte angle = this.visible.angles[i];
+				byte flags = this.visible.flags[i];
+				Snapshot.putVarInt(packet, id - previousId - 1);
+				previousId = id;
+
+				while (b < bEnd && baseline.ids[b] < id) {
+					b++;
+				}
+				if (b < bEnd && baseline.ids[b] == id) {
+					int mask = (x != baseline.xs[b] ? CHANGED_X : 0) | (y != baseline.ys[b] ? CHANGED_Y : 0)
+							| (angle != baseline.angles[b] ? CHANGED_ANGLE : 0) | (flags != baseline.flags[b] ? CHANGED_FLAGS : 0);
+					packet.put((byte) mask);
+					if ((mask & CHANGED_X) != 0) {
+						Snapshot.putSignedVarInt(packet, x - baseline.xs[b]);
+					}
+					if ((mask & CHANGED_Y) != 0) {
+						Snapshot.putSignedVarInt(packet, y - baseline.ys[b]);
+					}
+					if ((mask & CHANGED_ANGLE) != 0) {
+						packet.put(angle);
+					}
+					if ((mask & CHANGED_FLAGS) != 0) {
+						packet.put(flags);
+					}
+				} else {
+					Snapshot.putSignedVarInt(packet, x);
+					Snapshot.putSignedVarInt(packet, y);
+					packet.put(angle).put(flags);
+				}
+				sent.add(id, x, y, angle, flags);
+				count++;
+			}
+			packet.putShort(countPosition, (short) count);
+		}
+		sent.end();
+		packet.flip();
+
+		long duration = System.nanoTime() - start;
+		synchronized (this) {
+			this.encodeStats.record(duration);
+		}
+	}
+
+	/** Collect the objects in the area of interest, kind by kind in id order. */
+	private void gather(Match match) {
+		Spacecraft ship = match.getShip();
+		this.camera.follow(ship, this.viewWidth, this.viewHeight);
+		this.visible.clear(-1, match.getTick());
+
+		this.visible.beginKind(Snapshot.SHIP);
+		this.addObject(ship);
+
+		this.visible.beginKind(Snapshot.SWARMER);
+		ArrayList<Swarmer> swarmers = match.getEnemies().getSwarmers();
+		for (int i = 0; i < swarmers.size(); i++) {
+			this.addIfVisible(swarmers.get(i));
+		}
+
+		this.visible.beginKind(Snapshot.FIGHTER);
+		ArrayList<Fighter> fighters = match.getEnemies().getFighters();
+		for (int i = 0; i < fighters.size(); i++) {
+			this.addIfVisible(fighters.get(i));
+		}
+
+		this.visible.beginKind(Snapshot.PROJECTILE);
+		ProjectileSystem projectiles = match.getProjectiles();
+		for (int i = 0; i < projectiles.getSize(); i++) {
+			Projectile p = projectiles.getProjectile(i);
+			if (!p.hasHit() && this.camera.sees(p.getX(), p.getY(), this.viewWidth, this.viewHeight, AREA_MARGIN)) {
+				this.visible.add(p.getId(), Snapshot.quantize(p.getX()), Snapshot.quantize(p.getY()), Snapshot.quantizeAngle(p.getAngle()), (byte) 0);
+			}
+		}
+		this.visible.end();
+	}
+
+	private void addIfVisible(SpaceObject object) {
+		if (this.camera.sees(object.getX(), object.getY(), this.viewWidth, this.viewHeight, AREA_MARGIN)) {
+			this.addObject(object);
+		}
+	}
+
+	private void addObject(SpaceObject object) {
+		this.visible.add(object.getId(), Snapshot.quantize(object.getX()), Snapshot.quantize(object.getY()),
+				Snapshot.quantizeAngle(object.getAngle()), (byte) (object.isDestroyed() ? Snapshot.DESTROYED : 0));
+	}
+
+	/**
+	 * Add the encode time statistics of this replicator to the given statistics.
+	 *
+	 * @param total
+	 */
+	public synchronized void addStatsTo(TickStats total) {
+		total.add(this.encodeStats);
+	}
+
+}
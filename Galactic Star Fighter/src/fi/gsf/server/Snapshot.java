@@ -0,0 +1,247 @@
+package fi.gsf.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The quantized state of the objects one client sees at one tick.
+ *
+ * The objects are grouped by kind and sorted by id inside a kind, so two
+ * snapshots can be compared with a single merge. Positions are kept in
+ * 1/POSITION_SCALE pixels and angles in 1/256 turns. Also holds the varint
+ * helpers of the snapshot packets.
+ *
+ * @author X455u
+ */
+class Snapshot {
+
+	//kinds of objects, in the order they are kept and sent
+	public static final int SHIP = 0;
+	public static final int SWARMER = 1;
+	public static final int FIGHTER = 2;
+	public static final int PROJECTILE = 3;
+	public static final int KINDS = 4;
+
+	/** Positions are sent in 1/POSITION_SCALE pixels. */
+	public static final int POSITION_SCALE = 8;
+
+	//flags
+	public static final int DESTROYED = 1;
+
+	/** The sequence number of the snapshot. Grows by one for every snapshot sent to a client. */
+	int seq = -1;
+
+	/** The tick of the match. */
+	long tick;
+
+	/** The amount of objects. */
+	int size;
+
+	int[] ids;
+	int[] xs;
+	int[] ys;
+	byte[] angles;
+	byte[] flags;
+
+	/** The index after the last object of each kind. */
+	int[] kindEnd = new int[KINDS];
+
+	/** The kind being added. */
+	private int kind;
+
+
+	/**
+	 * Create an empty snapshot.
+	 *
+	 * @param capacity The amount of objects the snapshot has room for at first.
+	 */
+	public Snapshot(int capacity) {
+		this.ids = new int[capacity];
+		this.xs = new int[capacity];
+		this.ys = new int[capacity];
+		this.angles = new byte[capacity];
+		this.flags = new byte[capacity];
+	}
+
+	/**
+	 * Empty the snapshot for reuse.
+	 *
+	 * @param seq
+	 * @param tick
+	 */
+	public void clear(int seq, long tick) {
+		this.seq = seq;
+		this.tick = tick;
+		this.size = 0;
+		this.kind = 0;
+		for (int i = 0; i < KINDS; i++) {
+			this.kindEnd[i] = 0;
+		}
+	}
+
+	/**
+	 * Start adding objects of a kind. The kinds have to be started in order.
+	 *
+	 * @param kind
+	 */
+	public void beginKind(int kind) {
+		for (int i = this.kind; i <= kind; i++) {
+			this.kindEnd[i] = this.size;
+		}
+		this.kind = kind;
+	}
+
+	/**
+	 * Add an object of the current kind. Ids have to grow.
+	 *
+	 * @param id
+	 * @param x Quantized x-coordinate.
+	 * @param y Quantized y-coordinate.
+	 * @param angle Quantized angle.
+	 * @param flags
+	 */
+	public void add(int id, int x, int y, byte angle, byte flags) {
+		if (this.size == this.ids.length) {
+			this.grow();
+		}
+		this.ids[this.size] = id;
+		this.xs[this.size] = x;
+		this.ys[this.size] = y;
+		this.angles[this.size] = angle;
+		this.flags[this.size] = flags;
+		this.size++;
+		this.kindEnd[this.kind] = this.size;
+	}
+
+	/**
+	 * Finish the snapshot: the kinds that were not started are empty.
+	 */
+	public void end() {
+		this.beginKind(KINDS - 1);
+	}
+
+	/**
+	 * Returns the index of the first object of a kind.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public int kindStart(int kind) {
+		return kind == 0 ? 0 : this.kindEnd[kind - 1];
+	}
+
+	/**
+	 * Make this snapshot a copy of another.
+	 *
+	 * @param other
+	 */
+	public void copy(Snapshot other) {
+		this.clear(other.seq, other.tick);
+		while (this.ids.length < other.size) {
+			this.grow();
+		}
+		System.arraycopy(other.ids, 0, this.ids, 0, other.size);
+		System.arraycopy(other.xs, 0, this.xs, 0, other.size);
+		System.arraycopy(other.ys, 0, this.ys, 0, other.size);
+		System.arraycopy(other.angles, 0, this.angles, 0, other.size);
+		System.arraycopy(other.flags, 0, this.flags, 0, other.size);
+		System.arraycopy(other.kindEnd, 0, this.kindEnd, 0, KINDS);
+		this.size = other.size;
+		this.kind = KINDS - 1;
+	}
+
+	private void grow() {
+		int capacity = Math.max(16, this.ids.length * 2);
+		int[] ids = new int[capacity];
+		int[] xs = new int[capacity];
+		int[] ys = new int[capacity];
+		byte[] angles = new byte[capacity];
+		byte[] flags = new byte[capacity];
+		System.arraycopy(this.ids, 0, ids, 0, this.size);
+		System.arraycopy(this.xs, 0, xs, 0, this.size);
+		System.arraycopy(this.ys, 0, ys, 0, this.size);
+		System.arraycopy(this.angles, 0, angles, 0, this.size);
+		System.arraycopy(this.flags, 0, flags, 0, this.size);
+		this.ids = ids;
+		this.xs = xs;
+		this.ys = ys;
+		this.angles = angles;
+		this.flags = flags;
+	}
+
+	/**
+	 * Quantize a coordinate.
+	 *
+	 * @param coordinate Pixels.
+	 * @return
+	 */
+	public static int quantize(double coordinate) {
+		return (int) Math.round(coordinate * POSITION_SCALE);
+	}
+
+	/**
+	 * Quantize an angle to 1/256 turns.
+	 *
+	 * @param angle Radians.
+	 * @return
+	 */
+	public static byte quantizeAngle(double angle) {
+		return (byte) Math.round(angle * 128 / Math.PI);
+	}
+
+	/**
+	 * Write an unsigned int in 7 bit groups, the smallest first.
+	 *
+	 * @param buffer
+	 * @param value
+	 */
+	public static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Write a signed int so that small negative numbers take few bytes too.
+	 *
+	 * @param buffer
+	 * @param value
+	 */
+	public static void putSignedVarInt(ByteBuffer buffer, int value) {
+		putVarInt(buffer, (value << 1) ^ (value >> 31));
+	}
+
+	public static int getVarInt(ByteBuffer buffer) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	public static int getSignedVarInt(ByteBuffer buffer) {
+		int value = getVarInt(buffer);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Returns how many bytes putVarInt() writes for the value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,120 @@
+package fi.gsf.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The client side of Replicator: rebuilds the snapshots from the delta-encoded packets.
+ *
+ * Keeps the same history as the server so that any snapshot the server uses
+ * as a baseline can be found. Packets older than the latest decoded one and
+ * packets whose baseline is no longer known are dropped.
+ *
+ * @author X455u
+ */
+class SnapshotDecoder {
+
+	/** The decoded snapshots by seq % HISTORY. */
+	private Snapshot[] history;
+
+	/** The latest decoded snapshot. Null before the first. */
+	private Snapshot latest;
+
+	private int armor;
+	private int shield;
+
+
+	public SnapshotDecoder() {
+		this.history = new Snapshot[Replicator.HISTORY];
+		for (int i = 0; i < Replicator.HISTORY; i++) {
+			this.history[i] = new Snapshot(256);
+		}
+	}
+
+	/**
+	 * Decode a snapshot packet.
+	 *
+	 * @param packet Positioned after the type and the match id.
+	 * @return True if the snapshot was decoded and should be acknowledged.
+	 */
+	public boolean decode(ByteBuffer packet) {
+		int seq = packet.getInt();
+		int baselineSeq = packet.getInt();
+		long tick = packet.getLong();
+		if (this.latest != null && seq <= this.latest.seq) {
+			return false;
+		}
+		Snapshot baseline = null;
+		if (baselineSeq >= 0) {
+			baseline = this.history[baselineSeq % Replicator.HISTORY];
+			if (baseline.seq != baselineSeq) {
+				return false;
+			}
+		}
+		int armor = packet.getInt();
+		int shield = packet.getInt();
+
+		Snapshot snapshot = this.history[seq % Replicator.HISTORY];
+		snapshot.clear(seq, tick);
+		for (int kind = 0; kind < Snapshot.KINDS; kind++) {
+			snapshot.beginKind(kind);
+			int count = packet.getShort() & 0xFFFF;
+			int previousId = -1;
+			int b = baseline != null ? baseline.kindStart(kind) : 0;
+			int bEnd = baseline != null ? baseline.kindEnd[kind] : 0;
+			for (int i = 0; i < count; i++) {
+				int id = previousId + 1 + Snapshot.getVarInt(packet);
+				previousId = id;
+				while (b < bEnd && baseline.ids[b] < id) {
+					b++;
+				}
+				if (b < bEnd && baseline.ids[b] == id) {
+					int mask = packet.get();
+					int x = baseline.xs[b];
+					int y = baseline.ys[b];
+					byte angle = baseline.angles[b];
+					byte flags = baseline.flags[b];
+					if ((mask & Replicator.CHANGED_X) != 0) {
+						x += Snapshot.getSignedVarInt(packet);
+					}
+					if ((mask & Replicator.CHANGED_Y) != 0) {
+						y += Snapshot.getSignedVarInt(packet);
+					}
+					if ((mask & Replicator.CHANGED_ANGLE) != 0) {
+						angle = packet.get();
+					}
+					if ((mask & Replicator.CHANGED_FLAGS) != 0) {
+						flags = packet.get();
+					}
+					snapshot.add(id, x, y, angle, flags);
+				} else {
+					int x = Snapshot.getSignedVarInt(packet);
+					int y = Snapshot.getSignedVarInt(packet);
+					snapshot.add(id, x, y, packet.get(), packet.get());
+				}
+			}
+		}
+		snapshot.end();
+		this.latest = snapshot;
+		this.armor = armor;
+		this.shield = shield;
+		return true;
+	}
+
+	/**
+	 * Returns the latest decoded snapshot, null before the first.
+	 *
+	 * @return
+	 */
+	public Snapshot getLatest() {
+		return this.latest;
+	}
+
+	public int getArmor() {
+		return this.armor;
+	}
+
+	public int getShield() {
+		return this.shield;
+	}
+
+}
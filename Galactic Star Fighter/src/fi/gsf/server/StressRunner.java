@@ -0,0 +1,505 @@
+package fi.gsf.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+import fi.gsf.World;
+import fi.gsf.graphics.TextureAtlas;
+import fi.gsf.objects.SpaceObject;
+import fi.gsf.objects.Turret;
+import fi.gsf.objects.WeaponType;
+import fi.gsf.objects.enemies.SwarmKernel;
+import fi.gsf.systems.ProjectileSystem;
+
+/**
+ * Finds the limits of the simulation: runs headless scenarios of heavy loads
+ * on one thread and reports the ticks per second, the 99th percentile of the
+ * tick time and the heap kept by each, compared to a baseline.
+ *
+ * A scenario is a match with a wave of swarmers and fighters and a number of
+ * auto-firing turrets spread over the world, spraying bullets in every
+ * direction. The turrets fire for the ship, so their bullets go through the
+ * collisions with the enemies. The match runs warmup ticks for the JIT and
+ * then the measured ticks.
+ *
+ * Scenario file: lines "<name> <setting>=<value>...", the settings are
+ * swarmers, fighters, turrets, reload (of the turrets, ms), kernel (false to
+ * steer each swarmer by itself instead of with the SwarmKernel), ticks,
+ * warmup and seed. Text after # is a comment.
+ *
+ * Baseline file: lines "<name> <ticks per second> <p99 ms> <heap MB>", as
+ * written with save=true. A scenario regresses if it's slower or keeps more
+ * heap than its baseline by more than the tolerance. The heap is what the
+ * scenario retains, the heap used after a GC at the end minus the heap used
+ * after a GC before the match was created, so the rest of the JVM doesn't
+ * count. It also has to grow by MIN_HEAP_INCREASE, a small heap moves by
+ * more than the tolerance from the GC alone. The p99 is only
+ * compared for scenarios of at least MIN_P99_TICKS measured ticks, with
+ * fewer it's just the slowest tick, one pause of the GC or the JIT. The
+ * baseline depends on the machine, save a new one before comparing on
+ * another machine.
+ *
+ * Before the scenarios the swarm kernel is checked against the steering of
+ * a single swarmer (SwarmKernel.compare()), in a normal and a deterministic
+ * world. A kernel that's off by more than its tolerance is a regression too.
+ *
+ * @author X455u
+ */
+public class StressRunner {
+
+	/** The scenarios of the game. */
+	public static final String DEFAULT_SCENARIOS = "data/stress.txt";
+
+	/** The baseline of the scenarios. */
+	public static final String DEFAULT_BASELINE = "data/stress-baseline.txt";
+
+	/** The length of a tick in milliseconds. */
+	public static final int TICK_MILLIS = MatchServer.TICK_MILLIS;
+
+	/** The amount of swarmers the swarm kernel is checked with. */
+	private static final int KERNEL_CHECK_SIZE = 500;
+
+	/** The measured ticks a scenario needs for its p99 to be compared to the baseline. */
+	public static final int MIN_P99_TICKS = 200;
+
+	/** How many megabytes the heap of a scenario has to grow by at least to be a regression. */
+	public static final double MIN_HEAP_INCREASE = 1.0;
+
+	/** How fast the turrets turn, radians per second. */
+	private static final double TURRET_TURN = 2.0;
+
+	//the settings of the run
+	private String scenarios = DEFAULT_SCENARIOS;
+	private String baseline = DEFAULT_BASELINE;
+	/** Write the results as the new baseline instead of comparing. */
+	private boolean save;
+	/** How much slower or bigger than the baseline is still fine, 0.2 = 20 %. */
+	private double tolerance = 0.2;
+	/** Run only the scenario of this name, null for all. */
+	private String only;
+	/** Check the swarm kernel against the steering of a single swarmer before the scenarios. */
+	private boolean checkKernel = true;
+
+
+	/**
+	 * Create a run with the default settings.
+	 */
+	public StressRunner() {
+		TextureAtlas.setHeadless(true);
+	}
+
+	/**
+	 * Change a setting: scenarios (file), baseline (file), save (true to
+	 * write the baseline), tolerance, only (the name of a scenario) or
+	 * checkkernel (false to skip the check of the swarm kernel).
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void set(String name, String value) {
+		if (name.equals("scenarios")) {
+			this.scenarios = value;
+		} else if (name.equals("baseline")) {
+			this.baseline = value;
+		} else if (name.equals("save")) {
+			this.save = Boolean.parseBoolean(value);
+		} else if (name.equals("tolerance")) {
+			this.tolerance = Double.parseDouble(value);
+		} else if (name.equals("only")) {
+			this.only = value;
+		} else if (name.equals("checkkernel")) {
+			this.checkKernel = Boolean.parseBoolean(value);
+		} else {
+			throw new IllegalArgumentException("Unknown setting: " + name);
+		}
+	}
+
+	/**
+	 * Read the scenarios from a file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException If the file can't be read or has an error.
+	 */
+	public static ArrayList<Scenario> readScenarios(File file) throws IOException {
+		ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				String[] words = words(line);
+				if (words == null) {
+					continue;
+				}
+				try {
+					Scenario scenario = new Scenario(words[0]);
+					for (int i = 1; i < words.length; i++) {
+						int split = words[i].indexOf('=');
+						if (split < 0) {
+							throw new IllegalArgumentException("expected <setting>=<value>: " + words[i]);
+						}
+						scenario.set(words[i].substring(0, split), words[i].substring(split + 1));
+					}
+					scenarios.add(scenario);
+				} catch (IllegalArgumentException e) {
+					//NumberFormatException is one too
+					throw new IOException(file.getName() + ":" + number + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return scenarios;
+	}
+
+	/**
+	 * Read a baseline file. A missing file is an empty baseline.
+	 *
+	 * @param file
+	 * @return The results by the name of the scenario, in the order of the file.
+	 * @throws IOException If the file can't be read or has an error.
+	 */
+	public static HashMap<String, Result> readBaseline(File file) throws IOException {
+		HashMap<String, Result> results = new LinkedHashMap<String, Result>();
+		if (!file.exists()) {
+			return results;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				String[] words = words(line);
+				if (words == null) {
+					continue;
+				}
+				try {
+					if (words.length != 4) {
+						throw new IllegalArgumentException("expected <name> <ticks per second> <p99 ms> <heap MB>");
+					}
+					Result result = new Result(words[0]);
+					result.ticksPerSecond = Double.parseDouble(words[1]);
+					result.p99 = Double.parseDouble(words[2]);
+					result.heap = Double.parseDouble(words[3]);
+					results.put(result.name, result);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file.getName() + ":" + number + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	/** Returns the words of a line without the comment, null if there are none. */
+	private static String[] words(String line) {
+		int comment = line.indexOf('#');
+		if (comment >= 0) {
+			line = line.substring(0, comment);
+		}
+		line = line.trim();
+		return line.isEmpty() ? null : line.split("\\s+");
+	}
+
+	/**
+	 * Write the results as a baseline file.
+	 *
+	 * @param file
+	 * @param results
+	 * @throws IOException
+	 */
+	public static void writeBaseline(File file, Collection<Result> results) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# The baseline of the stress scenarios, written by StressRunner save=true.");
+			out.println("# <name> <ticks per second> <p99 ms> <heap MB>");
+			for (Result result : results) {
+				out.println(String.format(Locale.ROOT, "%s\t%.2f\t%.2f\t%.1f", result.name, result.ticksPerSecond, result.p99, result.heap));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Run a scenario.
+	 *
+	 * @param scenario
+	 * @return
+	 */
+	public static Result run(Scenario scenario) {
+		double heapBefore = usedHeap();
+		World world = new World(scenario.seed);
+		Match match = new Match(0, world, new WeaponType(null));
+		match.setWave(scenario.swarmers, scenario.fighters);
+		match.getEnemies().setSwarmKernel(scenario.kernel);
+
+		//the turrets in a grid over the world, each pointing a different way
+		WeaponType weapon = new WeaponType(null, 5, scenario.reload, 0.10, 300, 1, ProjectileSystem.TYPE_BULLET, 0, 250);
+		Turret[] turrets = new Turret[scenario.turrets];
+		int columns = (int) Math.ceil(Math.sqrt(scenario.turrets));
+		for (int i = 0; i < turrets.length; i++) {
+			turrets[i] = new Turret(weapon);
+			turrets[i].position(world.getWidth() * (2.0 * (i % columns) + 1) / columns - world.getWidth(),
+					world.getHeight() * (2.0 * (i / columns) + 1) / columns - world.getHeight());
+			turrets[i].rotateTo(2 * Math.PI * i / turrets.length);
+		}
+
+		for (int i = 0; i < scenario.warmup; i++) {
+			tick(match, turrets);
+		}
+		TickStats stats = new TickStats(Math.max(1, scenario.ticks));
+		long projectiles = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < scenario.ticks; i++) {
+			long tickStart = System.nanoTime();
+			tick(match, turrets);
+			stats.record(System.nanoTime() - tickStart);
+			projectiles += match.getProjectiles().getSize();
+		}
+		long nanos = System.nanoTime() - start;
+
+		Result result = new Result(scenario.name);
+		result.ticksPerSecond = scenario.ticks * 1e9 / Math.max(nanos, 1);
+		result.p99 = stats.getPercentile(0.99) / 1e6;
+		result.ticks = scenario.ticks;
+		result.projectiles = scenario.ticks == 0 ? 0 : (double) projectiles / scenario.ticks;
+		//what the scenario keeps, the match is used below so it's still alive
+		result.heap = Math.max(0, usedHeap() - heapBefore);
+		result.enemies = match.getEnemies().getSwarmers().size() + match.getEnemies().getFighters().size();
+		return result;
+	}
+
+	/** Returns the heap used after a GC in megabytes. */
+	private static double usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024.0 * 1024.0);
+	}
+
+	/** Compare the swarm kernel to the steering of a single swarmer and print the result. Returns 1 if it's off by more than the tolerance. */
+	private static int checkKernel(boolean deterministic, double tolerance) {
+		double difference = SwarmKernel.compare(KERNEL_CHECK_SIZE, 1, deterministic);
+		boolean off = !(difference <= tolerance);
+		System.out.println(String.format(Locale.ROOT, "%-16s %.3g m/s^2 from the steering of a swarmer, tolerance %.3g", deterministic ? "kernel-fixed" : "kernel",
+				difference, tolerance) + (off ? "\tREGRESSION: the kernel is off" : ""));
+		return off ? 1 : 0;
+	}
+
+	/** Fire the turrets that are ready and tick the match. */
+	private static void tick(Match match, Turret[] turrets) {
+		for (Turret turret : turrets) {
+			turret.update(TICK_MILLIS);
+			turret.turn(TURRET_TURN * TICK_MILLIS / 1000);
+			if (turret.isReloaded()) {
+				turret.shoot(match.getProjectiles(), 0, 0, SpaceObject.FRIENDLY);
+			}
+		}
+		match.tick(TICK_MILLIS);
+	}
+
+	/**
+	 * Run the scenarios, print the results and compare them to the baseline
+	 * or save them as the baseline. Saving only some of the scenarios keeps
+	 * the baseline of the others.
+	 *
+	 * @return The amount of regressions.
+	 * @throws IOException
+	 */
+	public int run() throws IOException {
+		ArrayList<Scenario> scenarios = readScenarios(new File(this.scenarios));
+		HashMap<String, Result> baseline = readBaseline(new File(this.baseline));
+		int regressions = 0;
+		if (this.checkKernel) {
+			regressions += checkKernel(false, SwarmKernel.TOLERANCE) + checkKernel(true, SwarmKernel.DETERMINISTIC_TOLERANCE);
+		}
+		for (Scenario scenario : scenarios) {
+			if (this.only != null && !this.only.equals(scenario.name)) {
+				continue;
+			}
+			Result result = run(scenario);
+			String regression = this.save ? null : result.compareTo(baseline.get(scenario.name), this.tolerance);
+			baseline.put(scenario.name, result);
+			if (regression != null) {
+				regressions++;
+			}
+			System.out.println(result + (regression != null ? "\tREGRESSION: " + regression : ""));
+		}
+		if (this.save) {
+			writeBaseline(new File(this.baseline), baseline.values());
+			System.out.println("Saved the baseline to " + this.baseline);
+		}
+		return regressions;
+	}
+
+
+	/** The load of a stress run. */
+	public static class Scenario {
+
+		private String name;
+		private int swarmers;
+		private int fighters;
+		private int turrets;
+		private int reload = 100;
+		private boolean kernel = true;
+		private int ticks = 600;
+		private int warmup = 60;
+		private long seed = 1;
+
+		public Scenario(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Change a setting: swarmers, fighters, turrets, reload, kernel, ticks, warmup or seed.
+		 *
+		 * @param name
+		 * @param value
+		 */
+		public void set(String name, String value) {
+			if (name.equals("swarmers")) {
+				this.swarmers = Integer.parseInt(value);
+			} else if (name.equals("fighters")) {
+				this.fighters = Integer.parseInt(value);
+			} else if (name.equals("turrets")) {
+				this.turrets = Integer.parseInt(value);
+			} else if (name.equals("reload")) {
+				this.reload = Integer.parseInt(value);
+			} else if (name.equals("kernel")) {
+				this.kernel = Boolean.parseBoolean(value);
+			} else if (name.equals("ticks")) {
+				this.ticks = Integer.parseInt(value);
+			} else if (name.equals("warmup")) {
+				this.warmup = Integer.parseInt(value);
+			} else if (name.equals("seed")) {
+				this.seed = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("unknown setting " + name);
+			}
+		}
+
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	/** What a scenario measured. */
+	public static class Result {
+
+		private String name;
+		private double ticksPerSecond;
+		/** The 99th percentile of the tick time in milliseconds. */
+		private double p99;
+		/** The heap the scenario retained at the end in megabytes. */
+		private double heap;
+
+		//the load, not in the baseline
+		/** The mean amount of projectiles. */
+		private double projectiles;
+		/** The enemies left at the end. */
+		private int enemies;
+		/** The measured ticks. */
+		private int ticks;
+
+		private Result(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns what got worse than the baseline by more than the tolerance,
+		 * null if nothing did or there's no baseline.
+		 *
+		 * @param baseline
+		 * @param tolerance 0.2 = 20 %.
+		 * @return
+		 */
+		public String compareTo(Result baseline, double tolerance) {
+			if (baseline == null) {
+				return null;
+			}
+			StringBuilder regression = new StringBuilder();
+			if (this.ticksPerSecond < baseline.ticksPerSecond * (1 - tolerance)) {
+				regression.append(String.format(Locale.ROOT, " ticks/s %.1f < %.1f", this.ticksPerSecond, baseline.ticksPerSecond));
+			}
+			if (this.ticks >= MIN_P99_TICKS && this.p99 > baseline.p99 * (1 + tolerance)) {
+				regression.append(String.format(Locale.ROOT, " p99 %.2f > %.2f ms", this.p99, baseline.p99));
+			}
+			if (this.heap > baseline.heap * (1 + tolerance) && this.heap - baseline.heap >= MIN_HEAP_INCREASE) {
+				regression.append(String.format(Locale.ROOT, " heap %.1f > %.1f MB", this.heap, baseline.heap));
+			}
+			return regression.length() == 0 ? null : regression.toString().trim();
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public double getTicksPerSecond() {
+			return this.ticksPerSecond;
+		}
+
+		/**
+		 * Returns the 99th percentile of the tick time in milliseconds.
+		 *
+		 * @return
+		 */
+		public double getP99() {
+			return this.p99;
+		}
+
+		/**
+		 * Returns the heap the scenario retained at the end in megabytes.
+		 *
+		 * @return
+		 */
+		public double getHeap() {
+			return this.heap;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%-16s %9.2f ticks/s  p99 %7.2f ms  heap %6.1f MB  (%d ticks, %.0f projectiles, %d enemies left)",
+					this.name, this.ticksPerSecond, this.p99, this.heap, this.ticks, this.projectiles, this.enemies);
+		}
+	}
+
+
+	/**
+	 * Run the stress scenarios. Exits with 1 if any of them regressed.
+	 *
+	 * Arguments: setting=value pairs, see set(). For example
+	 * only=swarmers-10k or save=true
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		StressRunner runner = new StressRunner();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				throw new IllegalArgumentException("Expected setting=value: " + arg);
+			}
+			runner.set(arg.substring(0, split), arg.substring(split + 1));
+		}
+		int regressions = runner.run();
+		if (regressions > 0) {
+			System.out.println(regressions + " scenarios regressed");
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package fi.gsf.server;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of how long the ticks of a simulation take.
+ *
+ * The durations of the latest ticks are kept for percentiles. Not thread-safe:
+ * record() and the getters should be called by the thread running the ticks,
+ * or the caller has to synchronize.
+ *
+ * @author X455u
+ */
+public class TickStats {
+
+	/** The durations of the latest ticks in nanoseconds. A ring buffer. */
+	private long[] latest;
+
+	/** The amount of recorded ticks. */
+	private long ticks;
+
+	/** The sum of all the tick durations in nanoseconds. */
+	private long total;
+
+	/** The longest tick in nanoseconds. */
+	private long max;
+
+
+	/**
+	 * Create new statistics.
+	 *
+	 * @param window How many of the latest ticks are kept for the percentiles.
+	 */
+	public TickStats(int window) {
+		this.latest = new long[window];
+	}
+
+	/**
+	 * Record the duration of a tick.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		this.latest[(int) (this.ticks % this.latest.length)] = nanos;
+		this.ticks++;
+		this.total += nanos;
+		this.max = Math.max(this.max, nanos);
+	}
+
+	/**
+	 * Add the statistics of another simulation to these.
+	 *
+	 * @param other
+	 */
+	public void add(TickStats other) {
+		int n = (int) Math.min(other.ticks, other.latest.length);
+		for (int i = 0; i < n; i++) {
+			this.latest[(int) (this.ticks % this.latest.length)] = other.latest[i];
+			this.ticks++;
+		}
+		//the loop counted the kept ticks, count all of them
+		this.ticks += other.ticks - n;
+		this.total += other.total;
+		this.max = Math.max(this.max, other.max);
+	}
+
+	public long getTicks() {
+		return this.ticks;
+	}
+
+	/**
+	 * Returns the sum of all the tick durations in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * Returns the mean tick duration in nanoseconds.
+	 *
+	 * @return
+	 */
+	public double getMean() {
+		return this.ticks == 0 ? 0 : (double) this.total / this.ticks;
+	}
+
+	/**
+	 * Returns the longest tick in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getMax() {
+		return this.max;
+	}
+
+	/**
+	 * Returns a percentile of the latest tick durations in nanoseconds.
+	 *
+	 * @param percentile Between 0 and 1, for example 0.99.
+	 * @return
+	 */
+	public long getPercentile(double percentile) {
+		int n = (int) Math.min(this.ticks, this.latest.length);
+		if (n == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(this.latest, n);
+		Arrays.sort(sorted);
+		return sorted[Math.min(n - 1, (int) (percentile * n))];
+	}
+
+}
@@ -0,0 +1,358 @@
+package fi.gsf.systems;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import fi.gsf.EventRecorder;
+import fi.gsf.objects.SpaceObject;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.enemies.Fighter;
+import fi.gsf.objects.enemies.Swarmer;
+import fi.gsf.systems.ProjectileSystem.Projectile;
+
+/**
+ * Finds all the hits of a tick and applies them.
+ *
+ * Runs once per tick after everything has moved. First all the contacts
+ * (projectile hits, beams, plasma blasts, swarmers bouncing
+ * from the player's shield) are collected into a hit buffer, then the damage
+ * is applied in one pass in the order the hits were found. Nothing is damaged while the objects are
+ * being updated.
+ *
+ * @author X455u
+ */
+public class CollisionSystem {
+
+	/** A projectile hit the target. */
+	public static final int HIT_PROJECTILE = 0;
+
+	/** A swarmer touched the active shield of the target. */
+	public static final int HIT_SHIELD_BOUNCE = 2;
+
+	/** A beam hit the target. */
+	public static final int HIT_BEAM = 3;
+
+	/** The target was in the blast of plasma. */
+	public static final int HIT_SPLASH = 4;
+
+	/** The width and height of a cell of the spatial grid in pixels. */
+	private static final int CELL_SIZE = 64;
+
+	/** The player's spacecraft. */
+	private Spacecraft player;
+
+	/** The enemies of the game. */
+	private EnemySystem enemies;
+
+	/** The projectiles of the game. */
+	private ProjectileSystem projectiles;
+
+	/** Shows sparks and explosions. Optional. */
+	private ParticleEngine particles;
+
+	/** All the space objects that can be hit, sorted by location. */
+	private SpatialGrid grid;
+
+	/** The objects in the blast being handled. */
+	private ArrayList<SpaceObject> blast = new ArrayList<SpaceObject>();
+
+	//The hit buffer. Hits 0..hits-1 are valid.
+	private int hits;
+	private int[] hitType;
+	private SpaceObject[] hitTarget;
+	/** The swarmer of a bounce hit. */
+	private SpaceObject[] hitSource;
+	private int[] hitDamage;
+	private float[] hitX;
+	private float[] hitY;
+
+	/** The amount of projectile-object pairs tested during the last update. */
+	private int pairsTested;
+
+	//totals since the start, for the statistics of a game
+	/** Enemies destroyed. */
+	private int kills;
+	/** Projectiles of the player that hit an enemy. */
+	private int shotsLanded;
+	/** Damage done to the player. */
+	private long damageTaken;
+
+
+	/**
+	 * Create a new collision system.
+	 *
+	 * @param player
+	 * @param enemies
+	 * @param projectiles
+	 */
+	public CollisionSystem(Spacecraft player, EnemySystem enemies, ProjectileSystem projectiles) {
+		this.player = player;
+		this.enemies = enemies;
+		this.projectiles = projectiles;
+		this.grid = new SpatialGrid(CELL_SIZE);
+
+		int capacity = 256;
+		this.hitType = new int[capacity];
+		this.hitTarget = new SpaceObject[capacity];
+		this.hitSource = new SpaceObject[capacity];
+		this.hitDamage = new int[capacity];
+		this.hitX = new float[capacity];
+		this.hitY = new float[capacity];
+	}
+
+	/**
+	 * Set the particle engine showing the sparks of the hits and the explosions.
+	 *
+	 * @param particles
+	 */
+	public void setParticles(ParticleEngine particles) {
+		this.particles = particles;
+	}
+
+	/**
+	 * Find all the hits and apply them.
+	 */
+	public void update() {
+		EventRecorder recorder = this.projectiles.getWorld().getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
+		this.hits = 0;
+		this.pairsTested = 0;
+		this.detect();
+		int hits = this.hits;
+		this.apply();
+		if (recorder.isEnabled()) {
+			recorder.collisions(start, this.grid.getSize(), this.projectiles.getSize(), this.pairsTested, hits);
+		}
+	}
+
+	/** Collect all the hits of this tick into the hit buffer. */
+	private void detect() {
+		ArrayList<Swarmer> swarmers = this.enemies.getSwarmers();
+		ArrayList<Fighter> fighters = this.enemies.getFighters();
+
+		//the player first, then the enemies: that's the order the projectiles are tested in
+		this.grid.clear();
+		this.grid.add(this.player);
+		for (int i = 0; i < swarmers.size(); i++) {
+			if (!swarmers.get(i).isDeletable()) {
+				this.grid.add(swarmers.get(i));
+			}
+		}
+		for (int i = 0; i < fighters.size(); i++) {
+			if (!fighters.get(i).isDeletable()) {
+				this.grid.add(fighters.get(i));
+			}
+		}
+		this.grid.build();
+
+		//projectiles against everything they can hit
+		for (int i = 0; i < this.projectiles.getSize(); i++) {
+			Projectile p = this.projectiles.getProjectile(i);
+			if (p.isFinished()) {
+				continue;
+			}
+			if (p.getType() == ProjectileSystem.TYPE_BEAM) {
+				if (p.needsTrace()) {
+					this.trace(p);
+				}
+				continue;
+			}
+			if (p.isExpired()) {
+				p.hit();
+				this.detonate(p);
+				continue;
+			}
+			int cell = this.grid.getCell(p.getX(), p.getY());
+			if (cell < 0) {
+				continue;
+			}
+			for (int e = this.grid.getCellStart(cell); e < this.grid.getCellEnd(cell); e++) {
+				SpaceObject object = this.grid.getObject(e);
+				if (p.getSide() == object.getSide()) {
+					continue;
+				}
+				this.pairsTested++;
+				if (object.bulletOverlaps(p.getX(), p.getY())) {
+					p.hit();
+					if (p.getType() == ProjectileSystem.TYPE_PLASMA) {
+						this.detonate(p);
+					} else {
+						this.add(HIT_PROJECTILE, object, null, p.getDamage(), p.getX(), p.getY());
+					}
+					break;
+				}
+			}
+		}
+
+		//swarmers against the player
+		for (int i = 0; i < swarmers.size(); i++) {
+			Swarmer s = swarmers.get(i);
+			if (s.isDeletable()) {
+				continue;
+			}
+			if (s.touchesShield(this.player)) {
+				this.add(HIT_SHIELD_BOUNCE, this.player, s, 0, s.getX(), s.getY());
+			}
+		}
+	}
+
+	/**
+	 * Add a hit for everything in the blast of plasma, the damage falling
+	 * linearly from the center to the edge of the blast.
+	 */
+	private void detonate(Projectile plasma) {
+		double x = plasma.getExactX();
+		double y = plasma.getExactY();
+		this.grid.findWithin(x, y, ProjectileSystem.PLASMA_RADIUS, plasma.getSide(), this.blast);
+		boolean landed = false;
+		for (int i = 0; i < this.blast.size(); i++) {
+			SpaceObject target = this.blast.get(i);
+			double distance = Math.max(0, this.projectiles.getWorld().hypot(target.getX() - x, target.getY() - y) - target.getShieldRadius());
+			int damage = (int) Math.round(plasma.getDamage() * (1 - distance / ProjectileSystem.PLASMA_RADIUS));
+			if (damage > 0) {
+				this.add(HIT_SPLASH, target, null, damage, target.getX(), target.getY());
+				landed = true;
+			}
+		}
+		this.blast.clear();
+		//one blast is one shot landed, however many it hits
+		if (landed && plasma.getSide() == this.player.getSide()) {
+			this.shotsLanded++;
+		}
+		if (this.particles != null) {
+			this.particles.explode(x, y, ProjectileSystem.PLASMA_RADIUS / 2);
+		}
+	}
+
+	/** Find what a new beam hits first. */
+	private void trace(Projectile beam) {
+		double angle = beam.getAngle();
+		double directionX = this.projectiles.getWorld().cos(angle);
+		double directionY = this.projectiles.getWorld().sin(angle);
+		SpaceObject target = this.grid.raycast(beam.getExactX(), beam.getExactY(), directionX, directionY, beam.getRange(), beam.getSide());
+		double length = this.grid.getRayLength();
+		beam.trace(length);
+		if (target != null) {
+			this.add(HIT_BEAM, target, null, beam.getDamage(), beam.getExactX() + length * directionX, beam.getExactY() + length * directionY);
+		}
+	}
+
+	/** Apply the hits in the order they were found. */
+	private void apply() {
+		for (int i = 0; i < this.hits; i++) {
+			SpaceObject target = this.hitTarget[i];
+			boolean wasDestroyed = target.isDestroyed();
+
+			switch (this.hitType[i]) {
+			case HIT_PROJECTILE:
+			case HIT_BEAM:
+			case HIT_SPLASH:
+				target.damage(this.hitDamage[i]);
+				if (this.particles != null) {
+					this.particles.sparks(this.hitX[i], this.hitY[i]);
+				}
+				break;
+			case HIT_SHIELD_BOUNCE:
+				((Swarmer) this.hitSource[i]).bounceFrom((Spacecraft) target);
+				//flash the shield
+				target.damage(0);
+				break;
+			}
+
+			if (target == this.player) {
+				this.damageTaken += this.hitDamage[i];
+			} else if (this.hitType[i] == HIT_PROJECTILE || this.hitType[i] == HIT_BEAM) {
+				this.shotsLanded++;
+			}
+			if (!wasDestroyed && target.isDestroyed()) {
+				if (target != this.player) {
+					this.kills++;
+				}
+				if (this.particles != null) {
+					this.particles.explode(target.getX(), target.getY(), Math.max(20, target.getShieldRadius()));
+				}
+			}
+		}
+		this.projectiles.removeHits();
+
+		//don't keep the objects alive through the buffer
+		Arrays.fill(this.hitTarget, 0, this.hits, null);
+		Arrays.fill(this.hitSource, 0, this.hits, null);
+	}
+
+	/** Add a hit to the hit buffer. */
+	private void add(int type, SpaceObject target, SpaceObject source, int damage, double x, double y) {
+		if (this.hits == this.hitType.length) {
+			int capacity = this.hits * 2;
+			this.hitType = Arrays.copyOf(this.hitType, capacity);
+			this.hitTarget = Arrays.copyOf(this.hitTarget, capacity);
+			this.hitSource = Arrays.copyOf(this.hitSource, capacity);
+			this.hitDamage = Arrays.copyOf(this.hitDamage, capacity);
+			this.hitX = Arrays.copyOf(this.hitX, capacity);
+			this.hitY = Arrays.copyOf(this.hitY, capacity);
+		}
+		int i = this.hits++;
+		this.hitType[i] = type;
+		this.hitTarget[i] = target;
+		this.hitSource[i] = source;
+		this.hitDamage[i] = damage;
+		this.hitX[i] = (float) x;
+		this.hitY[i] = (float) y;
+	}
+
+	/**
+	 * Returns the grid of the player and the enemies built during the last
+	 * update. The homing projectiles find their targets from it.
+	 *
+	 * @return
+	 */
+	public SpatialGrid getGrid() {
+		return this.grid;
+	}
+
+	/**
+	 * Returns the amount of hits found during the last update.
+	 *
+	 * @return
+	 */
+	public int getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * Returns the amount of projectile-object pairs tested during the last update.
+	 *
+	 * @return
+	 */
+	public int getPairsTested() {
+		return this.pairsTested;
+	}
+
+	/**
+	 * Returns the amount of enemies destroyed since the start.
+	 *
+	 * @return
+	 */
+	public int getKills() {
+		return this.kills;
+	}
+
+	/**
+	 * Returns the amount of the player's projectiles that have hit an enemy since the start.
+	 *
+	 * @return
+	 */
+	public int getShotsLanded() {
+		return this.shotsLanded;
+	}
+
+	/**
+	 * Returns the damage done to the player since the start.
+	 *
+	 * @return
+	 */
+	public long getDamageTaken() {
+		return this.damageTaken;
+	}
+
+}
@@ -1,12 +1,17 @@
 package fi.gsf.systems;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Random;
 
+import org.newdawn.slick.Color;
 import org.newdawn.slick.Graphics;
 
 import fi.gsf.Camera;
-import fi.gsf.GSFGame;
+import fi.gsf.EventRecorder;
+import fi.gsf.World;
+import fi.gsf.graphics.ImpostorGrid;
 import fi.gsf.objects.Spacecraft;
 import fi.gsf.objects.enemies.*;
 
@@ -19,10 +24,22 @@ public class EnemySystem {
 	
 	/** How far from the world edge the enemies should respawn.
 	 * 
-	 * Enemy_y = GSFGame.GetWorldHeight() + RESPAWN_LINE;.
+	 * Enemy_y = world.getHeight() + RESPAWN_LINE;.
 	 */
 	private final int RESPAWN_LINE = 100;
 	
+	/** The size of a cell of the swarm impostors on the screen in pixels. */
+	private static final int IMPOSTOR_CELL = 6;
+	
+	/** How many swarmers in a cell of the impostors make it opaque. */
+	private static final int IMPOSTOR_FULL = 4;
+	
+	/** The color of the swarm in the tactical view. */
+	private static final Color SWARM_COLOR = new Color(0.4f, 1f, 0.4f);
+	
+	/** The world the enemies fly in. */
+	private World world;
+	
 	/** The player's spacecraft. */
 	private Spacecraft player;
 	
@@ -35,8 +52,31 @@ public class EnemySystem {
 	/** The fighters. */
 	private ArrayList<Fighter> fighters;
 	
+	/** Shows the engine trails of the enemies. Optional. */
+	private ParticleEngine particles;
+	
+	/** Streams the sectors of an open world. Optional. */
+	private SectorSystem sectors;
+	
+	/** Removes the deletable enemies when there's time. Optional, without it they're removed at once. */
+	private WorkScheduler scheduler;
+	
+	/** Draws the swarm in the tactical view. */
+	private ImpostorGrid impostors = new ImpostorGrid(IMPOSTOR_CELL);
+	
+	/** Steers the whole swarm at once. Null if every swarmer steers itself. */
+	private SwarmKernel kernel = new SwarmKernel();
+	
+	/** Removes the deletable enemies from the lists. */
+	private WorkScheduler.Task compact = new WorkScheduler.Task() {
+		public void run() {
+			removeDeletable();
+		}
+	};
+	
 	/** Create a new enemy system. */
-	public EnemySystem(Spacecraft spaceship, ProjectileSystem projectiles) {
+	public EnemySystem(World world, Spacecraft spaceship, ProjectileSystem projectiles) {
+		this.world = world;
 		this.player = spaceship;
 		this.projectiles = projectiles;
 		
@@ -44,17 +84,71 @@ public class EnemySystem {
 		this.fighters = new ArrayList<Fighter>();
 	}
 	
+	/**
+	 * Choose how the swarmers are steered: all at once by a SwarmKernel, the
+	 * default, or each by itself like before. The two differ by rounding, so
+	 * the peers of a lockstep game have to use the same one.
+	 * 
+	 * @param kernel
+	 */
+	public void setSwarmKernel(boolean kernel) {
+		this.kernel = kernel ? new SwarmKernel() : null;
+	}
+	
+	/**
+	 * Set the particle engine showing the engine trails of the enemies.
+	 * 
+	 * @param particles
+	 */
+	public void setParticles(ParticleEngine particles) {
+		this.particles = particles;
+	}
+	
+	/**
+	 * Set the sector system of an open world. Only the enemies of the active
+	 * sectors are in the system, the rest are dormant in their sectors.
+	 * 
+	 * @param sectors
+	 */
+	public void setSectors(SectorSystem sectors) {
+		this.sectors = sectors;
+	}
+	
+	/**
+	 * Set the scheduler that removes the deletable enemies when there's time.
+	 * Until then they stay in the lists, skipped by the systems.
+	 * 
+	 * @param scheduler
+	 */
+	public void setScheduler(WorkScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+	
+	public SectorSystem getSectors() {
+		return this.sectors;
+	}
+	
+	public ProjectileSystem getProjectiles() {
+		return this.projectiles;
+	}
+	
 	/**
 	 * Respawn Swarmers in a group outside the world.
 	 * @param amount
 	 */
 	public void respawnSwarmers(int amount) {
+		EventRecorder recorder = this.world.getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
 		int swarmerArea = 300;
+		Random random = this.world.getRandom();
 		//radius of group
 		for (int i = 0; i < amount; i++) {
-			double angle = 2 * Math.PI * Math.random(); 
-			double radius = Math.sqrt(swarmerArea * amount / Math.PI) * Math.random();
-			this.swarmers.add(new Swarmer((int) Math.cos(angle) * radius, GSFGame.getWorldHeight() + RESPAWN_LINE + radius + (int) Math.sin(angle) * radius));
+			double angle = 2 * Math.PI * random.nextDouble(); 
+			double radius = Math.sqrt(swarmerArea * amount / Math.PI) * random.nextDouble();
+			this.swarmers.add(new Swarmer(this.world, (int) this.world.cos(angle) * radius, this.world.getHeight() + RESPAWN_LINE + radius + (int) this.world.sin(angle) * radius, this.projectiles));
+		}
+		if (recorder.isEnabled()) {
+			recorder.spawn(start, EventRecorder.SWARMERS, amount, this.swarmers.size(), this.fighters.size());
 		}
 	}
 	
@@ -63,8 +157,88 @@ public class EnemySystem {
 	 * @param amount
 	 */
 	public void respawnFighters(int amount) {
+		EventRecorder recorder = this.world.getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
+		for (int i = 0; i < amount; i++) {
+			Fighter fighter = new Fighter(this.world, (1000 / amount) * (i+1) - 500, this.world.getHeight() - RESPAWN_LINE, projectiles);
+			this.fighters.add(fighter);
+			if (this.particles != null) {
+				this.particles.addEmitter(new IonEmitter(fighter, 15));
+			}
+		}
+		if (recorder.isEnabled()) {
+			recorder.spawn(start, EventRecorder.FIGHTERS, amount, this.swarmers.size(), this.fighters.size());
+		}
+	}
+	
+	
+	/**
+	 * Spawn a group of swarmers around a point.
+	 * 
+	 * @param amount
+	 * @param x
+	 * @param y
+	 */
+	public void spawnSwarmers(int amount, double x, double y) {
+		EventRecorder recorder = this.world.getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
+		int swarmerArea = 300;
+		Random random = this.world.getRandom();
+		double groupRadius = Math.sqrt(swarmerArea * amount / Math.PI);
+		for (int i = 0; i < amount; i++) {
+			double angle = 2 * Math.PI * random.nextDouble(); 
+			double radius = groupRadius * random.nextDouble();
+			this.swarmers.add(new Swarmer(this.world, x + this.world.cos(angle) * radius, y + this.world.sin(angle) * radius, this.projectiles));
+		}
+		if (recorder.isEnabled()) {
+			recorder.spawn(start, EventRecorder.SWARMERS, amount, this.swarmers.size(), this.fighters.size());
+		}
+	}
+	
+	/**
+	 * Spawn fighters in a line centered at a point.
+	 * 
+	 * @param amount
+	 * @param x
+	 * @param y
+	 */
+	public void spawnFighters(int amount, double x, double y) {
+		EventRecorder recorder = this.world.getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
 		for (int i = 0; i < amount; i++) {
-			this.fighters.add(new Fighter((1000 / amount) * (i+1) - 500, GSFGame.getWorldHeight() - RESPAWN_LINE, projectiles));
+			this.addFighter(new Fighter(this.world, x + (1000 / amount) * (i+1) - 500, y, projectiles));
+		}
+		if (recorder.isEnabled()) {
+			recorder.spawn(start, EventRecorder.FIGHTERS, amount, this.swarmers.size(), this.fighters.size());
+		}
+	}
+	
+	/**
+	 * Add a swarmer, for example one woken up from a dormant sector. The swarmers are kept in the order of their ids.
+	 * 
+	 * @param swarmer
+	 */
+	public void addSwarmer(Swarmer swarmer) {
+		int i = this.swarmers.size();
+		while (i > 0 && this.swarmers.get(i - 1).getId() > swarmer.getId()) {
+			i--;
+		}
+		this.swarmers.add(i, swarmer);
+	}
+	
+	/**
+	 * Add a fighter and its engine trail. The fighters are kept in the order of their ids.
+	 * 
+	 * @param fighter
+	 */
+	public void addFighter(Fighter fighter) {
+		int i = this.fighters.size();
+		while (i > 0 && this.fighters.get(i - 1).getId() > fighter.getId()) {
+			i--;
+		}
+		this.fighters.add(i, fighter);
+		if (this.particles != null) {
+			this.particles.addEmitter(new IonEmitter(fighter, 15));
 		}
 	}
 	
@@ -75,37 +249,204 @@ public class EnemySystem {
 	 */
 	public void update(int delta) {
 		
+		if (this.sectors != null) {
+			this.sectors.update(delta, this.player, this);
+		}
+		
 		//calculate group center
 		double groupX = 0;
 		double groupY = 0;
+		int group = 0;
 		for (Swarmer s : swarmers) {
-			groupX += s.getX();
-			groupY += s.getY();
+			if (!s.isDeletable()) {
+				groupX += s.getX();
+				groupY += s.getY();
+				group++;
+			}
 		}
-		groupX /= swarmers.size();
-		groupY /= swarmers.size();
+		groupX /= group;
+		groupY /= group;
 		
-		//update swarmers
+		//steer all the enemies from where they are, then move them together and let them act
+		//the deletable ones are removed at once or when the scheduler has time
+		Kinematics kinematics = this.world.getKinematics();
+		kinematics.begin(delta);
+		boolean deletable = false;
+		if (this.kernel != null) {
+			this.kernel.begin();
+			for (int i = 0; i < swarmers.size(); i++) {
+				Swarmer s = swarmers.get(i);
+				if (!s.isDeletable()) {
+					this.kernel.add(s.getX(), s.getY());
+				}
+			}
+			this.kernel.compute(groupX, groupY, swarmers.size(), player.getX(), player.getY());
+		}
+		int index = 0;
 		Iterator<Swarmer> swarmerIterator = swarmers.iterator();
 		while (swarmerIterator.hasNext()) {
 			Swarmer s = swarmerIterator.next();
-			s.update(delta, player, groupX, groupY, swarmers);
-			projectiles.checkObject(s);
 			if (s.isDeletable()) {
-				swarmerIterator.remove();
+				continue;
+			}
+			if (this.kernel != null) {
+				s.steer(delta, this.kernel.getAccelerationX(index), this.kernel.getAccelerationY(index), kinematics);
+				index++;
+			} else {
+				s.steer(delta, player, groupX, groupY, swarmers, kinematics);
+			}
+			if (s.isDeletable()) {
+				if (this.scheduler == null) {
+					swarmerIterator.remove();
+				}
+				deletable = true;
 			}
 		}
-		
-		//update fighters
 		Iterator<Fighter> fighterIterator = fighters.iterator();
 		while (fighterIterator.hasNext()) {
 			Fighter f = fighterIterator.next();
-			f.update(delta, player);
-			projectiles.checkObject(f);
 			if (f.isDeletable()) {
-				fighterIterator.remove();
+				continue;
+			}
+			f.steer(delta, player, kinematics);
+			if (f.isDeletable()) {
+				if (this.scheduler == null) {
+					fighterIterator.remove();
+				}
+				deletable = true;
+			}
+		}
+		kinematics.integrate();
+		for (int i = 0; i < swarmers.size(); i++) {
+			if (!swarmers.get(i).isDeletable()) {
+				swarmers.get(i).act(delta, player);
+			}
+		}
+		for (int i = 0; i < fighters.size(); i++) {
+			if (!fighters.get(i).isDeletable()) {
+				fighters.get(i).act(delta, player);
+			}
+		}
+		
+		if (deletable && this.scheduler != null) {
+			this.scheduler.submit(this.compact, WorkScheduler.NORMAL);
+		}
+	}
+	
+	/**
+	 * Remove the deletable enemies from the lists.
+	 */
+	public void removeDeletable() {
+		int kept = 0;
+		for (int i = 0; i < this.swarmers.size(); i++) {
+			if (!this.swarmers.get(i).isDeletable()) {
+				this.swarmers.set(kept++, this.swarmers.get(i));
+			}
+		}
+		this.swarmers.subList(kept, this.swarmers.size()).clear();
+		kept = 0;
+		for (int i = 0; i < this.fighters.size(); i++) {
+			if (!this.fighters.get(i).isDeletable()) {
+				this.fighters.set(kept++, this.fighters.get(i));
+			}
+		}
+		this.fighters.subList(kept, this.fighters.size()).clear();
+	}
+	
+	/**
+	 * Returns the swarmers. The list is updated by the system. With a
+	 * scheduler it can have deletable swarmers, they should be skipped.
+	 * 
+	 * @return
+	 */
+	public ArrayList<Swarmer> getSwarmers() {
+		return this.swarmers;
+	}
+	
+	/**
+	 * Returns the fighters. The list is updated by the system. With a
+	 * scheduler it can have deletable fighters, they should be skipped.
+	 * 
+	 * @return
+	 */
+	public ArrayList<Fighter> getFighters() {
+		return this.fighters;
+	}
+	
+	/**
+	 * Write all the enemies to a save.
+	 * 
+	 * @param buffer
+	 */
+	public void save(ByteBuffer buffer) {
+		buffer.putInt(this.swarmers.size());
+		for (int i = 0; i < this.swarmers.size(); i++) {
+			this.swarmers.get(i).save(buffer);
+		}
+		buffer.putInt(this.fighters.size());
+		for (int i = 0; i < this.fighters.size(); i++) {
+			this.fighters.get(i).save(buffer);
+		}
+		buffer.putInt(this.sectors != null ? this.sectors.getSaveSize() : 0);
+		if (this.sectors != null) {
+			this.sectors.save(buffer);
+		}
+	}
+	
+	/**
+	 * Replace all the enemies with the ones written by save().
+	 * 
+	 * @param buffer
+	 */
+	public void load(ByteBuffer buffer) {
+		//the engine trails of the old enemies end with them
+		for (Swarmer s : this.swarmers) {
+			s.delete();
+		}
+		for (Fighter f : this.fighters) {
+			f.delete();
+		}
+		this.swarmers.clear();
+		this.fighters.clear();
+		
+		int swarmers = buffer.getInt();
+		this.swarmers.ensureCapacity(swarmers);
+		for (int i = 0; i < swarmers; i++) {
+			Swarmer swarmer = new Swarmer(this.world, 0, 0, this.projectiles);
+			swarmer.load(buffer);
+			this.swarmers.add(swarmer);
+		}
+		int fighters = buffer.getInt();
+		for (int i = 0; i < fighters; i++) {
+			Fighter fighter = new Fighter(this.world, 0, 0, this.projectiles);
+			fighter.load(buffer);
+			this.fighters.add(fighter);
+			if (this.particles != null) {
+				this.particles.addEmitter(new IonEmitter(fighter, 15));
 			}
 		}
+		int sectors = buffer.getInt();
+		if (this.sectors != null && sectors > 0) {
+			this.sectors.load(buffer);
+		} else {
+			buffer.position(buffer.position() + sectors);
+		}
+	}
+	
+	/**
+	 * Returns the amount of bytes save() writes.
+	 * 
+	 * @return
+	 */
+	public int getSaveSize() {
+		int size = 3 * 4 + (this.sectors != null ? this.sectors.getSaveSize() : 0);
+		for (int i = 0; i < this.swarmers.size(); i++) {
+			size += this.swarmers.get(i).getSaveSize();
+		}
+		for (int i = 0; i < this.fighters.size(); i++) {
+			size += this.fighters.get(i).getSaveSize();
+		}
+		return size;
 	}
 	
 	/**
@@ -116,14 +457,29 @@ public class EnemySystem {
 	 */
 	public void render(Camera camera, Graphics g) {
 		
-		//draw swarmers
-		for (Swarmer s : swarmers) {
-			s.draw(camera, g);
+		//draw swarmers, in the tactical view the swarm as a whole
+		if (camera.isTactical()) {
+			this.impostors.begin(camera, this.world.getScreenWidth(), this.world.getScreenHeight());
+			for (int i = 0; i < swarmers.size(); i++) {
+				Swarmer s = swarmers.get(i);
+				if (!s.isDeletable()) {
+					this.impostors.add(s.getX(), s.getY());
+				}
+			}
+			this.impostors.render(g, SWARM_COLOR, IMPOSTOR_FULL);
+		} else {
+			for (Swarmer s : swarmers) {
+				if (!s.isDeletable()) {
+					s.draw(camera, g);
+				}
+			}
 		}
 		
 		//draw fighters
 		for (Fighter f : fighters) {
-			f.draw(camera, g);
+			if (!f.isDeletable()) {
+				f.draw(camera, g);
+			}
 		}
 		
 	}
@@ -1,29 +1,33 @@
 package fi.gsf.systems;
 
-import org.newdawn.slick.Image;
-import org.newdawn.slick.particles.Particle;
-import org.newdawn.slick.particles.ParticleEmitter;
-import org.newdawn.slick.particles.ParticleSystem;
+import org.newdawn.slick.Color;
 
-import fi.gsf.Camera;
-import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.SpaceObject;
 
-
-public class IonEmitter implements ParticleEmitter {
+/**
+ * Emits the ion trail of an engine behind a space object.
+ * 
+ * The particles are emitted in world coordinates, so they stay in place
+ * when the camera moves.
+ */
+public class IonEmitter implements ParticleEngine.Emitter {
+	
+	/** The color of new particles. */
+	private static final Color ION_COLOR = new Color(0.5f, 0.5f, 1, 0.5f);
+	
+	/** How long a particle lives (milliseconds). */
+	private static final int LIFE = 1000;
 	
-	/** The spacecraft emitting the particles */
-	private Spacecraft ship;
-	/** The camera of the game */
-	private Camera camera;
+	/** The particles grow until they have this much life left, then they shrink. */
+	private static final int TURN = 600;
 	
-	/** The previous x-coordinate of the camera. */
-	private double cameraX;
-	/** The previous y-coordinate of the camera. */
-	private double cameraY;
-	/** How much the camera coordinate has changed in relation to the x-axis. */ 
-	private double cameraDx;
-	/** How much the camera coordinate has changed in relation to the y-axis. */ 
-	private double cameraDy;
+	/** The space object emitting the particles */
+	private SpaceObject source;
+	
+	/** The x-coordinate of the source on the previous update. */
+	private double sourceX;
+	/** The y-coordinate of the source on the previous update. */
+	private double sourceY;
 	
 	/** The particle emission rate */
 	private int interval = 50;
@@ -34,106 +38,44 @@ public class IonEmitter implements ParticleEmitter {
 	
 
 
-	public IonEmitter(Spacecraft craft, Camera cam, int size) {
-		this.ship = craft;
-		this.camera = cam;
+	public IonEmitter(SpaceObject source, int size) {
+		this.source = source;
 		this.size = size;
+		this.sourceX = source.getX();
+		this.sourceY = source.getY();
 	}
 
 	
 	/**
-	 * Update the ParticleSystem.
+	 * Emit new particles.
 	 */
-	public void update(ParticleSystem system, int delta) {
+	public void update(ParticleEngine engine, int delta) {
+		//the velocity of the source in pixels per millisecond
+		double sourceVx = delta > 0 ? (this.source.getX() - this.sourceX) / delta : 0;
+		double sourceVy = delta > 0 ? (this.source.getY() - this.sourceY) / delta : 0;
+		this.sourceX = this.source.getX();
+		this.sourceY = this.source.getY();
+		
+		if (this.source.isDestroyed()) {
+			return;
+		}
+		
 		timer -= delta;
-		if (timer <= 0) {
-			timer = interval;
-			Particle p = system.getNewParticle(this, 1000);
-			p.setColor(0.5f, 0.5f, 1, 0.5f);
-			p.setPosition( (int) camera.getScreenX(ship.getX()), (int) camera.getScreenY(ship.getY()) );
-			p.setSize(size);
+		while (timer <= 0) {
+			timer += interval;
 			double v = 0.3;
-			float vx = (float) (ship.getXVelocity() * 0.7 - v * Math.cos(ship.getAngle()) );
-			float vy = (float) (- ship.getYVelocity() * 0.7 + v * Math.sin(ship.getAngle()) );
-			p.setVelocity(vx,vy);
+			double vx = sourceVx * 0.7 - v * Math.cos(this.source.getAngle());
+			double vy = sourceVy * 0.7 - v * Math.sin(this.source.getAngle());
+			float c = 0.002f;
+			engine.emit(this.sourceX, this.sourceY, vx, vy, LIFE, size, 0.07f, TURN, 0.04f * (size / 40.0f),
+							ION_COLOR, c/8, c/8, 0, -c/2);
 		}
-		this.cameraDx = this.cameraX - this.camera.getX();
-		this.cameraDy = this.camera.getY() - this.cameraY;
-		this.cameraX = this.camera.getX();
-		this.cameraY = this.camera.getY();
-	}
-
-	/**
-	 * Update the particles.
-	 */
-	public void updateParticle(Particle particle, int delta) {
-		if (particle.getLife() > 600) {
-			particle.adjustSize(0.07f * delta);
-		} else {
-			particle.adjustSize(-0.04f * delta * (size / 40.0f));
-		}
-		float c = 0.002f * delta;
-		particle.adjustColor(c/8, c/8, 0,-c/2);
-		particle.adjustPosition( (float) this.cameraDx, (float) this.cameraDy);
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#isEnabled()
-	 */
-	public boolean isEnabled() {
-		return true;
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#setEnabled(boolean)
-	 */
-	public void setEnabled(boolean enabled) {
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#completed()
-	 */
-	public boolean completed() {
-		return false;
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#useAdditive()
-	 */
-	public boolean useAdditive() {
-		return false;
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#getImage()
-	 */
-	public Image getImage() {
-		return null;
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#usePoints(org.newdawn.slick.particles.ParticleSystem)
-	 */
-	public boolean usePoints(ParticleSystem system) {
-		return false;
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#isOriented()
-	 */
-	public boolean isOriented() {
-		return false;
-	}
-
-	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#wrapUp()
-	 */
-	public void wrapUp() {
 	}
 
 	/**
-	 * @see org.newdawn.slick.particles.ParticleEmitter#resetState()
+	 * The trail ends when the source has been deleted.
 	 */
-	public void resetState() {
+	public boolean isFinished() {
+		return this.source.isDeletable();
 	}
 }
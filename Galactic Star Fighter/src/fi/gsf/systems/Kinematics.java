@@ -0,0 +1,262 @@
+package fi.gsf.systems;
+
+import java.util.Arrays;
+
+import fi.gsf.FixedMath;
+import fi.gsf.World;
+
+/**
+ * Moves the bodies of the world: drag, acceleration, the speed limit and the
+ * new position, the same way for the ship, the enemies and the projectiles.
+ *
+ * A system starts a batch with begin(), adds its bodies with their position,
+ * velocity and the acceleration they want, and integrate() moves them all in
+ * one loop over plain arrays. The bodies only decide their acceleration. The
+ * drag factor of a drag value, a Math.pow(), is computed once and shared by
+ * every body and batch with the same drag until delta changes.
+ *
+ * Drag is applied first, then the acceleration, then the speed limit.
+ *
+ * In a deterministic world the motion is integrated in fixed point (see
+ * FixedMath) and every body is folded into a checksum of the motion, so
+ * two peers can compare one number per tick to find a desync.
+ *
+ * @author X455u
+ */
+public class Kinematics {
+
+	/** No speed limit. */
+	public static final double UNLIMITED = Double.MAX_VALUE;
+
+	/** The world the bodies move in. */
+	private World world;
+
+	/** The delta of the batch and of the drag factors. */
+	private int delta = -1;
+
+	//the drag values seen with this delta and their factors for one delta
+	private double[] drags = new double[4];
+	private double[] dragFactors = new double[4];
+	private long[] fixedDragFactors = new long[4];
+	private int dragCount;
+
+	/** The motion of the deterministic batches since resetChecksum(). */
+	private long checksum;
+
+	/** The bodies of the batch, told of their new motion after integrate(). */
+	private Body[] bodies = new Body[64];
+	private int size;
+
+	//the motion of the bodies of the batch
+	private double[] x = new double[64];
+	private double[] y = new double[64];
+	private double[] velocityX = new double[64];
+	private double[] velocityY = new double[64];
+	private double[] accelerationX = new double[64];
+	private double[] accelerationY = new double[64];
+	private double[] maxVelocity = new double[64];
+	/** The index of the drag factor of each body. */
+	private int[] drag = new int[64];
+
+
+	/**
+	 * Create the kinematics of a world.
+	 *
+	 * @param world
+	 */
+	public Kinematics(World world) {
+		this.world = world;
+	}
+
+	/**
+	 * Start a new batch.
+	 *
+	 * @param delta The milliseconds the bodies move.
+	 */
+	public void begin(int delta) {
+		Arrays.fill(this.bodies, 0, this.size, null);
+		this.size = 0;
+		if (delta != this.delta) {
+			this.delta = delta;
+			this.dragCount = 0;
+		}
+	}
+
+	/**
+	 * Add a body to the batch.
+	 *
+	 * @param body Told of its new motion after integrate().
+	 * @param x
+	 * @param y
+	 * @param velocityX m/s
+	 * @param velocityY m/s
+	 * @param accelerationX m/s^2
+	 * @param accelerationY m/s^2
+	 * @param drag How much of the velocity is left after a second, 1 for no drag.
+	 * @param maxVelocity The speed limit in m/s, UNLIMITED for none.
+	 */
+	public void add(Body body, double x, double y, double velocityX, double velocityY, double accelerationX, double accelerationY, double drag, double maxVelocity) {
+		if (this.size == this.bodies.length) {
+			int capacity = this.size * 2;
+			this.bodies = Arrays.copyOf(this.bodies, capacity);
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.velocityX = Arrays.copyOf(this.velocityX, capacity);
+			this.velocityY = Arrays.copyOf(this.velocityY, capacity);
+			this.accelerationX = Arrays.copyOf(this.accelerationX, capacity);
+			this.accelerationY = Arrays.copyOf(this.accelerationY, capacity);
+			this.maxVelocity = Arrays.copyOf(this.maxVelocity, capacity);
+			this.drag = Arrays.copyOf(this.drag, capacity);
+		}
+		int i = this.size++;
+		this.bodies[i] = body;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.velocityX[i] = velocityX;
+		this.velocityY[i] = velocityY;
+		this.accelerationX[i] = accelerationX;
+		this.accelerationY[i] = accelerationY;
+		this.maxVelocity[i] = maxVelocity;
+		this.drag[i] = this.dragIndex(drag);
+	}
+
+	/** Returns the index of the factor of a drag value, computing it the first time. */
+	private int dragIndex(double drag) {
+		for (int i = 0; i < this.dragCount; i++) {
+			if (this.drags[i] == drag) {
+				return i;
+			}
+		}
+		if (this.dragCount == this.drags.length) {
+			this.drags = Arrays.copyOf(this.drags, this.dragCount * 2);
+			this.dragFactors = Arrays.copyOf(this.dragFactors, this.dragCount * 2);
+			this.fixedDragFactors = Arrays.copyOf(this.fixedDragFactors, this.dragCount * 2);
+		}
+		this.drags[this.dragCount] = drag;
+		this.dragFactors[this.dragCount] = Math.pow(drag, this.delta / 1000.0);
+		this.fixedDragFactors[this.dragCount] = FixedMath.toFixed(StrictMath.pow(drag, this.delta / 1000.0));
+		return this.dragCount++;
+	}
+
+	/**
+	 * Move all the bodies of the batch and tell them their new motion, in the
+	 * order they were added.
+	 */
+	public void integrate() {
+		if (this.world.isDeterministic()) {
+			this.integrateFixed();
+		} else {
+			this.integrateDouble();
+		}
+		for (int i = 0; i < this.size; i++) {
+			this.bodies[i].moved(this.x[i], this.y[i], this.velocityX[i], this.velocityY[i]);
+		}
+	}
+
+	private void integrateDouble() {
+		double pixelRatio = this.world.getPixelRatio();
+		int delta = this.delta;
+		for (int i = 0; i < this.size; i++) {
+			double factor = this.dragFactors[this.drag[i]];
+			double vx = this.velocityX[i] * factor + this.accelerationX[i] * delta / 1000.0;
+			double vy = this.velocityY[i] * factor + this.accelerationY[i] * delta / 1000.0;
+			double max = this.maxVelocity[i];
+			double speed = vx * vx + vy * vy;
+			if (speed > max * max) {
+				double scale = max / Math.sqrt(speed);
+				vx *= scale;
+				vy *= scale;
+			}
+			this.velocityX[i] = vx;
+			this.velocityY[i] = vy;
+			this.x[i] += vx * pixelRatio * delta / 1000.0;
+			this.y[i] += vy * pixelRatio * delta / 1000.0;
+		}
+	}
+
+	/** The same steps in fixed point, only integer math. The results are exact doubles. */
+	private void integrateFixed() {
+		long pixelRatio = FixedMath.toFixed(this.world.getPixelRatio());
+		int delta = this.delta;
+		long checksum = this.checksum;
+		for (int i = 0; i < this.size; i++) {
+			long factor = this.fixedDragFactors[this.drag[i]];
+			long vx = FixedMath.multiply(FixedMath.toFixed(this.velocityX[i]), factor) + FixedMath.toFixed(this.accelerationX[i]) * delta / 1000;
+			long vy = FixedMath.multiply(FixedMath.toFixed(this.velocityY[i]), factor) + FixedMath.toFixed(this.accelerationY[i]) * delta / 1000;
+			if (this.maxVelocity[i] != UNLIMITED) {
+				long max = FixedMath.toFixed(this.maxVelocity[i]);
+				long speed = vx * vx + vy * vy;
+				if (speed > max * max) {
+					long root = FixedMath.sqrt(speed);
+					vx = vx * max / root;
+					vy = vy * max / root;
+				}
+			}
+			long x = FixedMath.toFixed(this.x[i]) + FixedMath.multiply(vx, pixelRatio) * delta / 1000;
+			long y = FixedMath.toFixed(this.y[i]) + FixedMath.multiply(vy, pixelRatio) * delta / 1000;
+			checksum = mix(mix(mix(mix(checksum, x), y), vx), vy);
+			this.velocityX[i] = FixedMath.toDouble(vx);
+			this.velocityY[i] = FixedMath.toDouble(vy);
+			this.x[i] = FixedMath.toDouble(x);
+			this.y[i] = FixedMath.toDouble(y);
+		}
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Fold a value into a checksum, in order.
+	 *
+	 * @param checksum
+	 * @param value
+	 * @return
+	 */
+	public static long mix(long checksum, long value) {
+		//FNV-1a on whole longs with a final scramble of the high bits
+		long h = (checksum ^ value) * 0x100000001B3L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * Returns the checksum of the motion of the deterministic batches since
+	 * the last resetChecksum(). 0 in a world that isn't deterministic.
+	 *
+	 * @return
+	 */
+	public long getChecksum() {
+		return this.checksum;
+	}
+
+	/**
+	 * Start a new checksum, usually at the start of a tick.
+	 */
+	public void resetChecksum() {
+		this.checksum = 0;
+	}
+
+	/**
+	 * Returns the amount of bodies in the batch.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+
+	/**
+	 * Something moved by the kinematics.
+	 */
+	public interface Body {
+
+		/**
+		 * Take the motion after integrate().
+		 *
+		 * @param x
+		 * @param y
+		 * @param velocityX m/s
+		 * @param velocityY m/s
+		 */
+		public void moved(double x, double y, double velocityX, double velocityY);
+	}
+
+}
@@ -0,0 +1,330 @@
+package fi.gsf.systems;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.newdawn.slick.Color;
+import org.newdawn.slick.Image;
+
+import fi.gsf.Camera;
+
+/**
+ * The particle system of the game.
+ *
+ * The particles live in world coordinates so moving the camera costs nothing.
+ * All particle data is kept in preallocated arrays and the amount of particles
+ * is limited to a fixed budget. New particles are dropped when the budget is full.
+ *
+ * @author X455u
+ */
+public class ParticleEngine {
+
+	/** The default maximum amount of live particles. */
+	public static final int DEFAULT_BUDGET = 8192;
+
+	/** The image of one particle. */
+	private Image image;
+
+	/** The emitters creating particles continuously. */
+	private ArrayList<Emitter> emitters;
+
+	/** Random numbers for the bursts. */
+	private Random random;
+
+	/** The maximum amount of live particles. */
+	private int budget;
+
+	/** The amount of live particles. Live particles are at indices 0..count-1. */
+	private int count;
+
+	//particle data (world coordinates, pixels and milliseconds)
+	private float[] x;
+	private float[] y;
+	private float[] velocityX;
+	private float[] velocityY;
+	/** Milliseconds left to live. */
+	private float[] life;
+	/** The particle grows while it has more life left than this, after that it shrinks. */
+	private float[] turn;
+	private float[] size;
+	/** Growth in pixels per millisecond. */
+	private float[] grow;
+	/** Shrinking in pixels per millisecond. */
+	private float[] shrink;
+	private float[] red;
+	private float[] green;
+	private float[] blue;
+	private float[] alpha;
+	/** Color change per millisecond. */
+	private float[] dRed;
+	private float[] dGreen;
+	private float[] dBlue;
+	private float[] dAlpha;
+
+	/** Reused when drawing to avoid creating colors. */
+	private Color color;
+
+
+	/**
+	 * Create a new particle engine with the default budget.
+	 *
+	 * @param image
+	 */
+	public ParticleEngine(Image image) {
+		this(image, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Create a new particle engine.
+	 *
+	 * @param image The image of one particle.
+	 * @param budget The maximum amount of live particles.
+	 */
+	public ParticleEngine(Image image, int budget) {
+		this.image = image;
+		this.budget = budget;
+		this.emitters = new ArrayList<Emitter>();
+		this.random = new Random();
+		this.color = new Color(1f, 1f, 1f, 1f);
+
+		this.x = new float[budget];
+		this.y = new float[budget];
+		this.velocityX = new float[budget];
+		this.velocityY = new float[budget];
+		this.life = new float[budget];
+		this.turn = new float[budget];
+		this.size = new float[budget];
+		this.grow = new float[budget];
+		this.shrink = new float[budget];
+		this.red = new float[budget];
+		this.green = new float[budget];
+		this.blue = new float[budget];
+		this.alpha = new float[budget];
+		this.dRed = new float[budget];
+		this.dGreen = new float[budget];
+		this.dBlue = new float[budget];
+		this.dAlpha = new float[budget];
+	}
+
+	/**
+	 * Add an emitter. It's removed automatically when it's finished.
+	 *
+	 * @param emitter
+	 */
+	public void addEmitter(Emitter emitter) {
+		this.emitters.add(emitter);
+	}
+
+	/**
+	 * Emit a particle.
+	 *
+	 * @param x World x-coordinate.
+	 * @param y World y-coordinate.
+	 * @param velocityX Pixels per millisecond.
+	 * @param velocityY Pixels per millisecond.
+	 * @param life Milliseconds.
+	 * @param size Initial size in pixels.
+	 * @param grow Growth in pixels per millisecond while life is above turn.
+	 * @param turn
+	 * @param shrink Shrinking in pixels per millisecond after turn.
+	 * @param color Initial color.
+	 * @param dRed Color change per millisecond.
+	 * @param dGreen
+	 * @param dBlue
+	 * @param dAlpha
+	 * @return False if the budget was full and the particle was dropped.
+	 */
+	public boolean emit(double x, double y, double velocityX, double velocityY, float life, float size, float grow, float turn, float shrink,
+							Color color, float dRed, float dGreen, float dBlue, float dAlpha) {
+		if (this.count == this.budget) {
+			return false;
+		}
+		int i = this.count++;
+		this.x[i] = (float) x;
+		this.y[i] = (float) y;
+		this.velocityX[i] = (float) velocityX;
+		this.velocityY[i] = (float) velocityY;
+		this.life[i] = life;
+		this.turn[i] = turn;
+		this.size[i] = size;
+		this.grow[i] = grow;
+		this.shrink[i] = shrink;
+		this.red[i] = color.r;
+		this.green[i] = color.g;
+		this.blue[i] = color.b;
+		this.alpha[i] = color.a;
+		this.dRed[i] = dRed;
+		this.dGreen[i] = dGreen;
+		this.dBlue[i] = dBlue;
+		this.dAlpha[i] = dAlpha;
+		return true;
+	}
+
+	/**
+	 * Emit an explosion. Used when a space object is destroyed.
+	 *
+	 * @param x
+	 * @param y
+	 * @param radius Roughly how far the debris flies (pixels).
+	 */
+	public void explode(double x, double y, double radius) {
+		int amount = (int) Math.max(8, radius * 1.5);
+		for (int i = 0; i < amount; i++) {
+			double angle = 2 * Math.PI * this.random.nextDouble();
+			double speed = radius / 500.0 * (0.3 + 0.7 * this.random.nextDouble());
+			float life = 400 + 300 * this.random.nextFloat();
+			this.color.r = 1f;
+			this.color.g = 0.5f + 0.4f * this.random.nextFloat();
+			this.color.b = 0.2f;
+			this.color.a = 0.9f;
+			if (!this.emit(x, y, speed * Math.cos(angle), speed * Math.sin(angle), life, 8, 0.04f, life - 150, 0.02f,
+							this.color, 0, -0.0015f, -0.0005f, -0.9f / life)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Emit sparks. Used when a projectile hits something.
+	 *
+	 * @param x
+	 * @param y
+	 */
+	public void sparks(double x, double y) {
+		for (int i = 0; i < 6; i++) {
+			double angle = 2 * Math.PI * this.random.nextDouble();
+			double speed = 0.1 + 0.2 * this.random.nextDouble();
+			this.color.r = 1f;
+			this.color.g = 0.9f;
+			this.color.b = 0.5f;
+			this.color.a = 1f;
+			if (!this.emit(x, y, speed * Math.cos(angle), speed * Math.sin(angle), 150, 4, 0, 150, 0.02f,
+							this.color, 0, -0.004f, -0.003f, -1 / 150f)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Update the emitters and the particles.
+	 *
+	 * @param delta
+	 */
+	public void update(int delta) {
+		Iterator<Emitter> iterator = this.emitters.iterator();
+		while (iterator.hasNext()) {
+			Emitter emitter = iterator.next();
+			emitter.update(this, delta);
+			if (emitter.isFinished()) {
+				iterator.remove();
+			}
+		}
+
+		int i = 0;
+		while (i < this.count) {
+			this.life[i] -= delta;
+			if (this.life[i] <= 0) {
+				this.kill(i);
+				continue; //the last particle was moved to i
+			}
+			this.x[i] += this.velocityX[i] * delta;
+			this.y[i] += this.velocityY[i] * delta;
+			if (this.life[i] > this.turn[i]) {
+				this.size[i] += this.grow[i] * delta;
+			} else {
+				this.size[i] = Math.max(0, this.size[i] - this.shrink[i] * delta);
+			}
+			this.red[i] += this.dRed[i] * delta;
+			this.green[i] += this.dGreen[i] * delta;
+			this.blue[i] += this.dBlue[i] * delta;
+			this.alpha[i] += this.dAlpha[i] * delta;
+			i++;
+		}
+	}
+
+	/**
+	 * Render all particles. The particle image is bound only once.
+	 *
+	 * @param camera
+	 */
+	public void render(Camera camera) {
+		if (this.count == 0) {
+			return;
+		}
+		this.image.startUse();
+		for (int i = 0; i < this.count; i++) {
+			float size = this.size[i];
+			this.color.r = this.red[i];
+			this.color.g = this.green[i];
+			this.color.b = this.blue[i];
+			this.color.a = this.alpha[i];
+			this.color.bind();
+			this.image.drawEmbedded((float) camera.getScreenX(this.x[i]) - size / 2, (float) camera.getScreenY(this.y[i]) - size / 2, size, size);
+		}
+		this.image.endUse();
+	}
+
+	/**
+	 * Returns the amount of live particles.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return this.count;
+	}
+
+	/**
+	 * Returns the maximum amount of live particles.
+	 *
+	 * @return
+	 */
+	public int getBudget() {
+		return this.budget;
+	}
+
+	/** Remove a particle by moving the last live particle in its place. */
+	private void kill(int i) {
+		int last = --this.count;
+		this.x[i] = this.x[last];
+		this.y[i] = this.y[last];
+		this.velocityX[i] = this.velocityX[last];
+		this.velocityY[i] = this.velocityY[last];
+		this.life[i] = this.life[last];
+		this.turn[i] = this.turn[last];
+		this.size[i] = this.size[last];
+		this.grow[i] = this.grow[last];
+		this.shrink[i] = this.shrink[last];
+		this.red[i] = this.red[last];
+		this.green[i] = this.green[last];
+		this.blue[i] = this.blue[last];
+		this.alpha[i] = this.alpha[last];
+		this.dRed[i] = this.dRed[last];
+		this.dGreen[i] = this.dGreen[last];
+		this.dBlue[i] = this.dBlue[last];
+		this.dAlpha[i] = this.dAlpha[last];
+	}
+
+
+	/**
+	 * Something that creates particles continuously, like an engine trail.
+	 */
+	public interface Emitter {
+
+		/**
+		 * Emit the particles for this update.
+		 *
+		 * @param engine
+		 * @param delta
+		 */
+		public void update(ParticleEngine engine, int delta);
+
+		/**
+		 * Returns true when the emitter won't emit anymore and can be removed.
+		 *
+		 * @return
+		 */
+		public boolean isFinished();
+	}
+
+}
@@ -1,13 +1,17 @@
 package fi.gsf.systems;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.newdawn.slick.Color;
+import org.newdawn.slick.Graphics;
 import org.newdawn.slick.Image;
 
 import fi.gsf.Camera;
-import fi.gsf.GSFGame;
+import fi.gsf.EventRecorder;
+import fi.gsf.World;
+import fi.gsf.graphics.ImpostorGrid;
 import fi.gsf.objects.SpaceObject;
 
 public class ProjectileSystem {
@@ -18,22 +22,118 @@ public class ProjectileSystem {
 	/** Plasma. */
 	public static final int TYPE_PLASMA = 1;
 	
+	/** A beam that hits the first target on its way at once. Its velocity is its direction and range. */
+	public static final int TYPE_BEAM = 2;
+	
+	/** How long a beam is shown in milliseconds. It does its damage only once. */
+	public static final int BEAM_DURATION = 50;
+	
+	/** Plasma detonates after this many milliseconds if it hasn't hit anything. */
+	public static final int PLASMA_LIFETIME = 1200;
+	
+	/** The radius of the blast of plasma in pixels. The damage falls to 0 at the edge. */
+	public static final double PLASMA_RADIUS = 80;
+	
+	/** How far a homing projectile sees its targets, in pixels. */
+	public static final double HOMING_RANGE = 600;
+	
+	/** The size of a cell of the projectile impostors on the screen in pixels. */
+	private static final int IMPOSTOR_CELL = 4;
+	
+	/** How many projectiles in a cell of the impostors make it opaque. */
+	private static final int IMPOSTOR_FULL = 8;
+	
+	/** How many projectiles the list has room for at the start. It doubles when it's full. */
+	private static final int INITIAL_CAPACITY = 64;
+	
+	/** The world the projectiles fly in. */
+	private World world;
+	
 	/** List of all the projectiles. */
 	private ArrayList<Projectile> projectiles;
 	
+	/** How many projectiles the list has room for. */
+	private int capacity = INITIAL_CAPACITY;
+	
+	/** The id of the next projectile. */
+	private int nextId;
+	
+	/** The amount of projectiles fired since the start by side (SpaceObject.FRIENDLY or ENEMY). */
+	private int[] fired = new int[2];
+	
 	/** Image of bullet. */
 	private Image bulletImage;
 	
+	/** The color of the beam being drawn. */
+	private Color beamColor = new Color(1f, 1f, 1f);
+	
+	//draw the bullet streams and the plasma of each side in the tactical view
+	private ImpostorGrid friendlyImpostors = new ImpostorGrid(IMPOSTOR_CELL);
+	private ImpostorGrid enemyImpostors = new ImpostorGrid(IMPOSTOR_CELL);
+	
+	/** The sectors of an open world. Optional. */
+	private SectorSystem sectors;
+	
+	/** The targets of the homing projectiles, rebuilt every tick by the collision system. Optional. */
+	private SpatialGrid targets;
+	
+	/** Removes the finished projectiles when there's time. Optional, without it they're removed at once. */
+	private WorkScheduler scheduler;
+	
+	/** Removes the finished projectiles from the list. */
+	private WorkScheduler.Task compact = new WorkScheduler.Task() {
+		public void run() {
+			removeFinished();
+		}
+	};
+	
+	/** True when a projectile has hit something since the last removeHits(). */
+	private boolean hit;
+	
+	
 	/**
 	 * Create a new projectile system.
 	 * 
+	 * @param world
 	 * @param bulletImage
 	 */
-	public ProjectileSystem(Image bulletImage) {
-		this.projectiles = new ArrayList<Projectile>();
+	public ProjectileSystem(World world, Image bulletImage) {
+		this.world = world;
+		this.projectiles = new ArrayList<Projectile>(INITIAL_CAPACITY);
 		this.bulletImage = bulletImage;
 	}
 	
+	/**
+	 * Set the sector system of an open world. The projectiles that leave the
+	 * active sectors are deleted instead of the ones leaving the world.
+	 * 
+	 * @param sectors
+	 */
+	public void setSectors(SectorSystem sectors) {
+		this.sectors = sectors;
+	}
+	
+	/**
+	 * Set the index the homing projectiles find the nearest target from,
+	 * usually CollisionSystem.getGrid(). Without it no projectile homes in.
+	 * 
+	 * @param targets
+	 */
+	public void setTargets(SpatialGrid targets) {
+		this.targets = targets;
+	}
+	
+	/**
+	 * Set the scheduler that removes the finished projectiles when there's
+	 * time. Until then they stay in the system, skipped by update(), render()
+	 * and the collisions.
+	 * 
+	 * @param scheduler
+	 */
+	public void setScheduler(WorkScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+	
 	/**
 	 * Add a new projectile to the system.
 	 * 
@@ -47,7 +147,42 @@ public class ProjectileSystem {
 	 * @param side
 	 */
 	public void addProjectile(double x, double y, double velocityX, double velocityY, double retardation, int type, int damage, int side) {
-		projectiles.add(new Projectile(x, y, velocityX, velocityY, retardation, type, damage, side));
+		this.addProjectile(x, y, velocityX, velocityY, retardation, type, damage, side, 0);
+	}
+	
+	/**
+	 * Add a new projectile that homes in to the nearest target of the other side.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param velocityX
+	 * @param velocityY
+	 * @param retardation
+	 * @param type
+	 * @param damage
+	 * @param side
+	 * @param homing How fast the projectile turns toward its target in radians per second, 0 for none.
+	 */
+	public void addProjectile(double x, double y, double velocityX, double velocityY, double retardation, int type, int damage, int side, double homing) {
+		Projectile projectile = new Projectile(nextId++, x, y, velocityX, velocityY, retardation, type, damage, side);
+		projectile.homing = homing;
+		if (projectiles.size() >= this.capacity) {
+			this.grow();
+		}
+		projectiles.add(projectile);
+		fired[side]++;
+	}
+	
+	/** Double the room of the list of projectiles. */
+	private void grow() {
+		EventRecorder recorder = this.world.getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
+		int oldCapacity = this.capacity;
+		this.capacity *= 2;
+		this.projectiles.ensureCapacity(this.capacity);
+		if (recorder.isEnabled()) {
+			recorder.poolGrowth(start, oldCapacity, this.capacity);
+		}
 	}
 	
 	/**
@@ -55,54 +190,200 @@ public class ProjectileSystem {
 	 * @param delta
 	 */
 	public void update(int delta) {
+		Kinematics kinematics = this.world.getKinematics();
+		kinematics.begin(delta);
+		for (int i = 0; i < this.projectiles.size(); i++) {
+			Projectile projectile = this.projectiles.get(i);
+			if (!projectile.isFinished()) {
+				projectile.update(delta, kinematics);
+			}
+		}
+		kinematics.integrate();
+		
+		boolean finished = false;
 		Iterator<Projectile> iterator = projectiles.iterator();
 		while (iterator.hasNext()) {
 			Projectile projectile = iterator.next();
-			projectile.update(delta);
+			if (projectile.isFinished()) {
+				continue;
+			}
 			if (projectile.isDeletable()) {
-				iterator.remove();
+				if (this.scheduler == null) {
+					iterator.remove();
+				} else {
+					projectile.left = true;
+					finished = true;
+				}
 			}
 		}
+		if (finished && this.scheduler != null) {
+			this.scheduler.submit(this.compact, WorkScheduler.NORMAL);
+		}
 	}
 	
 	/**
-	 * Render projectiles.
+	 * Render projectiles. In the tactical view only the beams are drawn one by
+	 * one, the rest as the streams of each side.
 	 * @param camera
+	 * @param g
 	 */
-	public void render(Camera camera) {
-		for (Projectile projectile : projectiles) {
-			projectile.render(camera);
+	public void render(Camera camera, Graphics g) {
+		if (!camera.isTactical()) {
+			for (Projectile projectile : projectiles) {
+				if (!projectile.isFinished()) {
+					projectile.render(camera, g);
+				}
+			}
+			return;
 		}
+		this.friendlyImpostors.begin(camera, this.world.getScreenWidth(), this.world.getScreenHeight());
+		this.enemyImpostors.begin(camera, this.world.getScreenWidth(), this.world.getScreenHeight());
+		for (int i = 0; i < this.projectiles.size(); i++) {
+			Projectile projectile = this.projectiles.get(i);
+			if (projectile.isFinished()) {
+				continue;
+			}
+			if (projectile.type == TYPE_BEAM) {
+				projectile.render(camera, g);
+			} else if (projectile.side == SpaceObject.FRIENDLY) {
+				this.friendlyImpostors.add(projectile.x, projectile.y);
+			} else {
+				this.enemyImpostors.add(projectile.x, projectile.y);
+			}
+		}
+		this.friendlyImpostors.render(g, Color.orange, IMPOSTOR_FULL);
+		this.enemyImpostors.render(g, Color.red, IMPOSTOR_FULL);
 	}
 	
 	/**
-	 * Check if one of the projectiles overlap the object.
-	 * If a projectile overlaps the object the projectile is deleted
-	 * and damage is done to the object.
+	 * Returns a projectile.
 	 * 
-	 * @param object
+	 * @param index Between 0 and getSize() - 1.
+	 * @return
 	 */
-	public void checkObject(SpaceObject object) {
+	public Projectile getProjectile(int index) {
+		return this.projectiles.get(index);
+	}
+	
+	/**
+	 * Delete the projectiles that have hit something. Nothing is done if none has.
+	 */
+	public void removeHits() {
+		if (!this.hit) {
+			return;
+		}
+		this.hit = false;
+		if (this.scheduler != null) {
+			this.scheduler.submit(this.compact, WorkScheduler.NORMAL);
+			return;
+		}
 		Iterator<Projectile> iterator = this.projectiles.iterator();
 		while (iterator.hasNext()) {
-			Projectile p = iterator.next();
-			if (p.side != object.getSide() && object.bulletOverlaps(p.getX(), p.getY())) {
-				object.damage(p.damage);
+			if (iterator.next().hasHit) {
 				iterator.remove();
 			}
 		}
 	}
 	
 	/**
-	 * Returns the amount of projectiles in the system.
+	 * Remove the projectiles that have hit or left the world.
+	 */
+	public void removeFinished() {
+		int kept = 0;
+		for (int i = 0; i < this.projectiles.size(); i++) {
+			if (!this.projectiles.get(i).isFinished()) {
+				this.projectiles.set(kept++, this.projectiles.get(i));
+			}
+		}
+		this.projectiles.subList(kept, this.projectiles.size()).clear();
+	}
+	
+	/**
+	 * Returns the amount of projectiles a side has fired since the start.
+	 * 
+	 * @param side SpaceObject.FRIENDLY or SpaceObject.ENEMY.
+	 * @return
+	 */
+	public int getFired(int side) {
+		return this.fired[side];
+	}
+	
+	public World getWorld() {
+		return this.world;
+	}
+	
+	/**
+	 * Returns the amount of projectiles in the system. With a scheduler some
+	 * of them can be finished, see Projectile.isFinished().
 	 * @return
 	 */
 	public int getSize() {
 		return this.projectiles.size();
 	}
 	
+	/**
+	 * Write all the projectiles to a save.
+	 * 
+	 * @param buffer
+	 */
+	public void save(ByteBuffer buffer) {
+		buffer.putInt(this.nextId).putInt(this.fired[0]).putInt(this.fired[1]);
+		buffer.putInt(this.projectiles.size());
+		for (int i = 0; i < this.projectiles.size(); i++) {
+			Projectile p = this.projectiles.get(i);
+			buffer.putInt(p.id).putDouble(p.x).putDouble(p.y).putDouble(p.velocityX).putDouble(p.velocityY);
+			buffer.putDouble(p.retardationFactor).putInt(p.type).putInt(p.damage).putInt(p.side);
+			buffer.putDouble(p.homing).putDouble(p.beamLength).putInt(p.age);
+			buffer.put((byte) (p.hasHit ? 1 : 0));
+		}
+	}
+	
+	/**
+	 * Replace all the projectiles with the ones written by save().
+	 * 
+	 * @param buffer
+	 */
+	public void load(ByteBuffer buffer) {
+		this.nextId = buffer.getInt();
+		this.fired[0] = buffer.getInt();
+		this.fired[1] = buffer.getInt();
+		int size = buffer.getInt();
+		this.projectiles.clear();
+		this.capacity = Math.max(this.capacity, size);
+		this.projectiles.ensureCapacity(this.capacity);
+		for (int i = 0; i < size; i++) {
+			int id = buffer.getInt();
+			double x = buffer.getDouble();
+			double y = buffer.getDouble();
+			double velocityX = buffer.getDouble();
+			double velocityY = buffer.getDouble();
+			double retardation = buffer.getDouble();
+			Projectile p = new Projectile(id, x, y, velocityX, velocityY, retardation, buffer.getInt(), buffer.getInt(), buffer.getInt());
+			p.homing = buffer.getDouble();
+			p.beamLength = buffer.getDouble();
+			p.age = buffer.getInt();
+			p.hasHit = buffer.get() != 0;
+			this.projectiles.add(p);
+		}
+	}
+	
+	/**
+	 * Returns the amount of bytes save() writes.
+	 * 
+	 * @return
+	 */
+	public int getSaveSize() {
+		return 4 * 4 + this.projectiles.size() * Projectile.SAVE_SIZE;
+	}
+	
 	
-	public class Projectile {
+	public class Projectile implements Kinematics.Body {
+		
+		/** The bytes of a projectile in a save. */
+		public static final int SAVE_SIZE = 4 + 5 * 8 + 3 * 4 + 2 * 8 + 4 + 1;
+		
+		/** Identifies the projectile in its system. Grows with every new projectile. */
+		private int id;
 		
 		private double x;
 		private double y;
@@ -118,10 +399,26 @@ public class ProjectileSystem {
 		private int damage;
 		
 		private int side;
+		
+		/** How fast the projectile turns toward its target in radians per second, 0 if it doesn't home in. */
+		private double homing;
+		
+		/** The length of a beam up to what it hit, -1 until the collision system has traced it. */
+		private double beamLength = -1;
+		
+		/** How many milliseconds the projectile has flown, or a beam has been shown. */
+		private int age;
+		
+		/** True when the projectile has hit something and will be deleted. */
+		private boolean hasHit;
+		
+		/** True when the projectile has left the world and waits for the scheduler to remove it. */
+		private boolean left;
 				
 		/**
 		 * Create a new projectile.
 		 * 
+		 * @param id
 		 * @param x
 		 * @param y
 		 * @param direction Angle in radians.
@@ -132,7 +429,8 @@ public class ProjectileSystem {
 		 * @param damage
 		 * @param side
 		 */
-		public Projectile(double x, double y, double velocityX, double velocityY, double retardation, int type, int damage, int side) {
+		public Projectile(int id, double x, double y, double velocityX, double velocityY, double retardation, int type, int damage, int side) {
+			this.id = id;
 			this.x = x;
 			this.y = y;
 			this.velocityX = velocityX;
@@ -145,24 +443,72 @@ public class ProjectileSystem {
 
 		
 		/**
-		 * Update the velocity and position of the projectile.
+		 * Age the projectile, turn a homing one and add it to the batch of the
+		 * kinematics, which moves it.
 		 * 
 		 * @param delta
+		 * @param kinematics
 		 */
-		public void update(int delta) {
-			//update velocity
-			this.velocityX *= Math.pow(this.retardationFactor,  delta / 1000.0);
-			this.velocityY *= Math.pow(this.retardationFactor,  delta / 1000.0);
-			
-			//update position
-			this.x += this.velocityX * GSFGame.getPixelRatio() * delta / 1000.0;
-			this.y += this.velocityY * GSFGame.getPixelRatio() * delta / 1000.0;
+		public void update(int delta, Kinematics kinematics) {
+			this.age += delta;
+			if (this.type == ProjectileSystem.TYPE_BEAM) {
+				//a beam doesn't move
+				return;
+			}
+			if (this.homing > 0 && targets != null) {
+				this.steer(delta);
+			}
+			kinematics.add(this, this.x, this.y, this.velocityX, this.velocityY, 0, 0, this.retardationFactor, Kinematics.UNLIMITED);
+		}
+		
+		public void moved(double x, double y, double velocityX, double velocityY) {
+			this.x = x;
+			this.y = y;
+			this.velocityX = velocityX;
+			this.velocityY = velocityY;
+		}
+		
+		/** Turn toward the nearest target, at most homing radians per second. The speed stays. */
+		private void steer(int delta) {
+			SpaceObject target = targets.nearest(this.x, this.y, this.side, HOMING_RANGE);
+			if (target == null) {
+				return;
+			}
+			double angle = world.atan2(this.velocityY, this.velocityX);
+			double turn = world.atan2(target.getY() - this.y, target.getX() - this.x) - angle;
+			//the shorter way around
+			if (turn > Math.PI) {
+				turn -= 2 * Math.PI;
+			} else if (turn < -Math.PI) {
+				turn += 2 * Math.PI;
+			}
+			double maxTurn = this.homing * delta / 1000.0;
+			angle += Math.max(-maxTurn, Math.min(maxTurn, turn));
+			double speed = world.hypot(this.velocityX, this.velocityY);
+			this.velocityX = speed * world.cos(angle);
+			this.velocityY = speed * world.sin(angle);
 		}
 		
 		/**
 		 * Render a projectile.
 		 */
-		public void render(Camera camera) {
+		public void render(Camera camera, Graphics g) {
+			if (this.type == ProjectileSystem.TYPE_BEAM) {
+				if (this.beamLength >= 0) {
+					double angle = this.getAngle();
+					Color color = this.side == SpaceObject.FRIENDLY ? Color.cyan : Color.red;
+					beamColor.r = color.r;
+					beamColor.g = color.g;
+					beamColor.b = color.b;
+					beamColor.a = 1 - (float) this.age / BEAM_DURATION;
+					g.setColor(beamColor);
+					g.drawLine((float) camera.getScreenX(this.x), (float) camera.getScreenY(this.y),
+							(float) camera.getScreenX(this.x + this.beamLength * Math.cos(angle)),
+							(float) camera.getScreenY(this.y + this.beamLength * Math.sin(angle)));
+				}
+				return;
+			}
+
 			double angle = - Math.atan2(velocityY, velocityX); //IMPORTANT! MINUS!!!
 			
 			if (this.type == ProjectileSystem.TYPE_BULLET) {
@@ -178,7 +524,14 @@ public class ProjectileSystem {
 //				bulletImage.setAlpha(alpha);
 				bulletImage.draw((float)camera.getScreenX(this.x) - bulletImage.getWidth() / 2, (float)camera.getScreenY(this.y) - bulletImage.getHeight() / 2, color);
 			} else if (this.type == ProjectileSystem.TYPE_PLASMA) {
-				//TODO Draw plasma projetile.
+				//a glowing ball that fades toward its detonation
+				float size = 6;
+				beamColor.r = 0.8f;
+				beamColor.g = 0.3f;
+				beamColor.b = 1f;
+				beamColor.a = 1 - 0.5f * this.age / PLASMA_LIFETIME;
+				g.setColor(beamColor);
+				g.fillOval((float) camera.getScreenX(this.x) - size / 2, (float) camera.getScreenY(this.y) - size / 2, size, size);
 			}
 		}
 		
@@ -186,17 +539,113 @@ public class ProjectileSystem {
 			return (int) this.x;
 		}
 		
+		public double getExactX() {
+			return this.x;
+		}
+		
+		public double getExactY() {
+			return this.y;
+		}
+		
 		public int getY() {
 			return (int) this.y;
 		}
 		
+		public int getId() {
+			return this.id;
+		}
+		
+		public int getSide() {
+			return this.side;
+		}
+		
+		/**
+		 * Returns the direction of flight in radians.
+		 * 
+		 * @return
+		 */
+		public double getAngle() {
+			return world.atan2(this.velocityY, this.velocityX);
+		}
+		
+		public int getDamage() {
+			return this.damage;
+		}
+		
+		public int getType() {
+			return this.type;
+		}
+		
+		/**
+		 * Returns how far a beam reaches if it hits nothing: its velocity as meters.
+		 * 
+		 * @return Pixels.
+		 */
+		public double getRange() {
+			return world.hypot(this.velocityX, this.velocityY) * world.getPixelRatio();
+		}
+		
+		/**
+		 * Returns true if this is plasma that has flown its lifetime and detonates.
+		 * 
+		 * @return
+		 */
+		public boolean isExpired() {
+			return this.type == ProjectileSystem.TYPE_PLASMA && this.age >= PLASMA_LIFETIME;
+		}
+		
+		/**
+		 * Returns true if this is a beam the collision system hasn't traced yet.
+		 * 
+		 * @return
+		 */
+		public boolean needsTrace() {
+			return this.type == ProjectileSystem.TYPE_BEAM && this.beamLength < 0;
+		}
+		
+		/**
+		 * Set how far a beam reaches, up to what it hit.
+		 * 
+		 * @param length
+		 */
+		public void trace(double length) {
+			this.beamLength = length;
+		}
+		
+		/**
+		 * Mark the projectile as hit. It's deleted by removeHits().
+		 */
+		public void hit() {
+			this.hasHit = true;
+			ProjectileSystem.this.hit = true;
+		}
+		
+		public boolean hasHit() {
+			return this.hasHit;
+		}
+		
+		/**
+		 * Returns true if the projectile has hit or left the world and waits to be removed.
+		 * 
+		 * @return
+		 */
+		public boolean isFinished() {
+			return this.hasHit || this.left;
+		}
+		
 		/**
 		 * Can the projectile be deleted?
 		 * 
-		 * @return returns true if the projectile is outside of the world.
+		 * @return returns true if the projectile is outside of the world or the active sectors.
 		 */
 		public boolean isDeletable() {
-			return Math.abs(this.x) >= GSFGame.getWorldWidth() + 50 || Math.abs(this.y) >= GSFGame.getWorldHeight() + 50;// || Math.hypot(velocityX, velocityY) < 5 ;
+			if (this.type == ProjectileSystem.TYPE_BEAM) {
+				return this.beamLength >= 0 && this.age >= BEAM_DURATION;
+			}
+			if (sectors != null) {
+				return !sectors.isActive(this.x, this.y);
+			}
+			return Math.abs(this.x) >= world.getWidth() + 50 || Math.abs(this.y) >= world.getHeight() + 50;// || Math.hypot(velocityX, velocityY) < 5 ;
 		}
 	}
 	
@@ -0,0 +1,380 @@
+package fi.gsf.systems;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import fi.gsf.EventRecorder;
+import fi.gsf.World;
+import fi.gsf.objects.SpaceObject;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.enemies.Fighter;
+import fi.gsf.objects.enemies.Swarmer;
+
+/**
+ * Streams the sectors of an open world (see World.setSectorSize()) in and out
+ * around the player's ship.
+ *
+ * Only the sectors at most radius sectors away from the ship's sector are
+ * active: their enemies are in the enemy system and simulated every update.
+ * An enemy that ends up in an inactive sector is frozen into it as its save
+ * record and removed. When the sector is streamed in again the enemies are
+ * loaded back and coast to where they would have drifted in the meantime,
+ * so the dormant sectors cost nothing per update and the size of the world
+ * doesn't matter. A sector is populated from a seed of its own the first
+ * time it's streamed in.
+ *
+ * @author X455u
+ */
+public class SectorSystem {
+
+	/** The active sectors are the 3x3 sectors around the ship. */
+	public static final int DEFAULT_RADIUS = 1;
+
+	//the kinds of the frozen records
+	private static final byte SWARMER = 0;
+	private static final byte FIGHTER = 1;
+
+	/** The world the sectors divide. */
+	private World world;
+
+	/** The width and the height of a sector in pixels. */
+	private int size;
+
+	/** How many sectors away from the ship's sector are active. */
+	private int radius;
+
+	/** The sectors that have been streamed in or have dormant enemies, by key(). */
+	private TreeMap<Long, Sector> sectors = new TreeMap<Long, Sector>();
+
+	//the sector of the ship, the center of the active sectors
+	private int centerX;
+	private int centerY;
+	/** False until the first update and after a load: all the sectors around the ship are streamed in. */
+	private boolean centered;
+
+	/** The milliseconds simulated since the start. */
+	private long time;
+
+	/** The amount of enemies in the dormant sectors. */
+	private int dormant;
+
+	//the population of a new sector
+	private double swarmerChance;
+	private int swarmers;
+	private double fighterChance;
+	private int fighters;
+
+
+	/**
+	 * Create a new sector system with the default radius.
+	 *
+	 * @param world An open world.
+	 */
+	public SectorSystem(World world) {
+		this(world, DEFAULT_RADIUS);
+	}
+
+	/**
+	 * Create a new sector system.
+	 *
+	 * @param world An open world.
+	 * @param radius How many sectors away from the ship's sector are active.
+	 */
+	public SectorSystem(World world, int radius) {
+		if (!world.isOpen()) {
+			throw new IllegalArgumentException("The world has no sectors");
+		}
+		this.world = world;
+		this.size = world.getSectorSize();
+		this.radius = radius;
+	}
+
+	/**
+	 * Set the enemies of a new sector. The sector of the origin, where the
+	 * game starts, stays empty.
+	 *
+	 * @param swarmerChance The chance of a group of swarmers, between 0 and 1.
+	 * @param swarmers The size of a group of swarmers.
+	 * @param fighterChance The chance of fighters, between 0 and 1.
+	 * @param fighters The amount of fighters.
+	 */
+	public void setPopulation(double swarmerChance, int swarmers, double fighterChance, int fighters) {
+		this.swarmerChance = swarmerChance;
+		this.swarmers = swarmers;
+		this.fighterChance = fighterChance;
+		this.fighters = fighters;
+	}
+
+	/**
+	 * Stream the sectors around the ship in and freeze the enemies that have
+	 * left the active sectors. Called by the enemy system before it updates
+	 * the enemies.
+	 *
+	 * @param delta
+	 * @param ship
+	 * @param enemies
+	 */
+	public void update(int delta, Spacecraft ship, EnemySystem enemies) {
+		this.time += delta;
+
+		int x = this.sector(ship.getX());
+		int y = this.sector(ship.getY());
+		if (!this.centered || x != this.centerX || y != this.centerY) {
+			int oldX = this.centerX;
+			int oldY = this.centerY;
+			boolean wasCentered = this.centered;
+			this.centerX = x;
+			this.centerY = y;
+			this.centered = true;
+			for (int sx = x - this.radius; sx <= x + this.radius; sx++) {
+				for (int sy = y - this.radius; sy <= y + this.radius; sy++) {
+					if (!wasCentered || Math.abs(sx - oldX) > this.radius || Math.abs(sy - oldY) > this.radius) {
+						this.streamIn(sx, sy, enemies);
+					}
+				}
+			}
+		}
+
+		//freeze the enemies outside the active sectors, the exploding ones are let to finish
+		Iterator<Swarmer> swarmerIterator = enemies.getSwarmers().iterator();
+		while (swarmerIterator.hasNext()) {
+			Swarmer s = swarmerIterator.next();
+			if (!s.isDestroyed() && !this.isActive(s.getX(), s.getY())) {
+				this.freeze(SWARMER, s);
+				swarmerIterator.remove();
+			}
+		}
+		Iterator<Fighter> fighterIterator = enemies.getFighters().iterator();
+		while (fighterIterator.hasNext()) {
+			Fighter f = fighterIterator.next();
+			if (!f.isDestroyed() && !this.isActive(f.getX(), f.getY())) {
+				this.freeze(FIGHTER, f);
+				fighterIterator.remove();
+			}
+		}
+	}
+
+	/** Write an enemy to the record of its sector. The enemy is deleted, its engine trail ends. */
+	private void freeze(byte kind, SpaceObject enemy) {
+		Sector sector = this.getSector(this.sector(enemy.getX()), this.sector(enemy.getY()));
+		int length = 1 + 8 + enemy.getSaveSize();
+		if (sector.data.length < sector.length + length) {
+			byte[] data = new byte[Math.max(sector.length + length, sector.data.length * 2)];
+			System.arraycopy(sector.data, 0, data, 0, sector.length);
+			sector.data = data;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(sector.data, sector.length, length);
+		buffer.put(kind).putLong(this.time);
+		enemy.save(buffer);
+		enemy.delete();
+		sector.length += length;
+		sector.count++;
+		this.dormant++;
+	}
+
+	/** Populate a new sector or wake up the enemies of a dormant one. */
+	private void streamIn(int x, int y, EnemySystem enemies) {
+		Sector sector = this.getSector(x, y);
+		if (!sector.populated) {
+			sector.populated = true;
+			if (x != 0 || y != 0) {
+				Random random = new Random(hash(this.world.getSeed(), x, y));
+				if (random.nextDouble() < this.swarmerChance) {
+					enemies.spawnSwarmers(this.swarmers, (x + random.nextDouble()) * this.size, (y + random.nextDouble()) * this.size);
+				}
+				if (random.nextDouble() < this.fighterChance) {
+					enemies.spawnFighters(this.fighters, (x + random.nextDouble()) * this.size, (y + random.nextDouble()) * this.size);
+				}
+			}
+		}
+
+		EventRecorder recorder = this.world.getRecorder();
+		long start = recorder.isEnabled() ? System.nanoTime() : 0;
+		int swarmers = 0;
+		ByteBuffer buffer = ByteBuffer.wrap(sector.data, 0, sector.length);
+		for (int i = 0; i < sector.count; i++) {
+			byte kind = buffer.get();
+			long since = buffer.getLong();
+			if (kind == SWARMER) {
+				Swarmer swarmer = new Swarmer(this.world, 0, 0, enemies.getProjectiles());
+				swarmer.load(buffer);
+				swarmer.coast(this.time - since);
+				enemies.addSwarmer(swarmer);
+				swarmers++;
+			} else {
+				Fighter fighter = new Fighter(this.world, 0, 0, enemies.getProjectiles());
+				fighter.load(buffer);
+				fighter.coast(this.time - since);
+				enemies.addFighter(fighter);
+			}
+		}
+		//a thawed sector is one event for each kind, they are woken up together
+		if (recorder.isEnabled()) {
+			if (swarmers > 0) {
+				recorder.spawn(start, EventRecorder.SWARMERS, swarmers, enemies.getSwarmers().size(), enemies.getFighters().size());
+			}
+			if (sector.count > swarmers) {
+				recorder.spawn(start, EventRecorder.FIGHTERS, sector.count - swarmers, enemies.getSwarmers().size(), enemies.getFighters().size());
+			}
+		}
+		this.dormant -= sector.count;
+		sector.count = 0;
+		sector.length = 0;
+	}
+
+	private Sector getSector(int x, int y) {
+		Long key = key(x, y);
+		Sector sector = this.sectors.get(key);
+		if (sector == null) {
+			sector = new Sector(x, y);
+			this.sectors.put(key, sector);
+		}
+		return sector;
+	}
+
+	/**
+	 * Returns true if the point is in an active sector. Everything is active
+	 * before the first update.
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean isActive(double x, double y) {
+		return !this.centered || (Math.abs(this.sector(x) - this.centerX) <= this.radius && Math.abs(this.sector(y) - this.centerY) <= this.radius);
+	}
+
+	/**
+	 * Returns how far from the ship the world is always active in pixels.
+	 * The ship can be anywhere in its own sector, so only the sectors around
+	 * it count.
+	 *
+	 * @return
+	 */
+	public double getActiveDistance() {
+		return this.radius * this.size;
+	}
+
+	/**
+	 * Returns the sector of a world coordinate.
+	 *
+	 * @param coordinate
+	 * @return
+	 */
+	public int sector(double coordinate) {
+		return (int) Math.floor(coordinate / this.size);
+	}
+
+	/**
+	 * Returns the amount of sectors that have been streamed in or have enemies.
+	 *
+	 * @return
+	 */
+	public int getSectors() {
+		return this.sectors.size();
+	}
+
+	/**
+	 * Returns the amount of enemies in the dormant sectors.
+	 *
+	 * @return
+	 */
+	public int getDormant() {
+		return this.dormant;
+	}
+
+	/**
+	 * Write the sectors and their dormant enemies to a save.
+	 *
+	 * @param buffer
+	 */
+	public void save(ByteBuffer buffer) {
+		buffer.putLong(this.time).putInt(this.sectors.size());
+		for (Sector sector : this.sectors.values()) {
+			buffer.putInt(sector.x).putInt(sector.y).put((byte) (sector.populated ? 1 : 0));
+			buffer.putInt(sector.count).putInt(sector.length).put(sector.data, 0, sector.length);
+		}
+	}
+
+	/**
+	 * Replace the sectors with the ones written by save(). The active sectors
+	 * are streamed in again on the next update.
+	 *
+	 * @param buffer
+	 */
+	public void load(ByteBuffer buffer) {
+		this.sectors.clear();
+		this.dormant = 0;
+		this.centered = false;
+		this.time = buffer.getLong();
+		int sectors = buffer.getInt();
+		for (int i = 0; i < sectors; i++) {
+			Sector sector = new Sector(buffer.getInt(), buffer.getInt());
+			sector.populated = buffer.get() != 0;
+			sector.count = buffer.getInt();
+			sector.length = buffer.getInt();
+			sector.data = new byte[sector.length];
+			buffer.get(sector.data);
+			this.sectors.put(key(sector.x, sector.y), sector);
+			this.dormant += sector.count;
+		}
+	}
+
+	/**
+	 * Returns the amount of bytes save() writes.
+	 *
+	 * @return
+	 */
+	public int getSaveSize() {
+		int size = 8 + 4;
+		for (Sector sector : this.sectors.values()) {
+			size += 3 * 4 + 1 + 4 + sector.length;
+		}
+		return size;
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns a well mixed seed for the random numbers of a sector, the same for
+	 * the same world seed and sector every time.
+	 *
+	 * @param seed The seed of the world.
+	 * @param x The sector x.
+	 * @param y The sector y.
+	 * @return
+	 */
+	public static long hash(long seed, int x, int y) {
+		//the finalizer of SplitMix64
+		long h = seed + key(x, y) * 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+
+
+	/** A sector and its dormant enemies. */
+	private static class Sector {
+
+		private int x;
+		private int y;
+
+		/** True if the sector has got its enemies. */
+		private boolean populated;
+
+		/** The frozen enemies: byte kind, long time frozen and the save record. */
+		private byte[] data = new byte[0];
+		private int length;
+		private int count;
+
+		private Sector(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+}
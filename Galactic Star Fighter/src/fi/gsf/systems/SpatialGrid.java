@@ -0,0 +1,457 @@
+package fi.gsf.systems;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import fi.gsf.objects.SpaceObject;
+
+/**
+ * A uniform grid of space objects for finding the objects near a point quickly.
+ *
+ * The grid is rebuilt every tick: clear(), add() all the objects and build().
+ * An object is stored in every cell its bounding circle (shield radius) touches.
+ * The objects of one cell are kept in the order they were added, so queries
+ * always find them in the same order.
+ *
+ * @author X455u
+ */
+public class SpatialGrid {
+
+	/** The grid never has more cells than this on one axis. Cells are made bigger instead. */
+	private static final int MAX_CELLS_PER_AXIS = 256;
+
+	/** The preferred width and height of a cell in pixels. */
+	private double cellSize;
+
+	/** The width and height of a cell after the last build. */
+	private double actualCellSize;
+
+	/** The objects in the order they were added. */
+	private SpaceObject[] objects;
+
+	/** The amount of objects added. */
+	private int size;
+
+	/** World coordinates of the corner of the grid with the smallest coordinates. */
+	private double minX;
+	private double minY;
+
+	private int columns;
+	private int rows;
+
+	/** The objects of cell c are entries[cellStart[c]] ... entries[cellStart[c + 1] - 1]. */
+	private int[] cellStart;
+
+	/** Indices of objects, grouped by cell. */
+	private int[] entries;
+
+	/** marks[i] == mark when object i has been found by the current findWithin(). */
+	private int[] marks = new int[64];
+	private int mark;
+
+	/** The length of the last raycast() up to its hit. */
+	private double rayLength;
+
+	/** The cells the last raycast() walked through. */
+	private int rayCells;
+
+
+	/**
+	 * Create a new empty grid.
+	 *
+	 * @param cellSize The preferred width and height of a cell in pixels.
+	 */
+	public SpatialGrid(double cellSize) {
+		this.cellSize = cellSize;
+		this.actualCellSize = cellSize;
+		this.objects = new SpaceObject[64];
+		this.cellStart = new int[2];
+		this.entries = new int[64];
+	}
+
+	/**
+	 * Remove all the objects.
+	 */
+	public void clear() {
+		Arrays.fill(this.objects, 0, this.size, null);
+		this.size = 0;
+		this.columns = 0;
+		this.rows = 0;
+	}
+
+	/**
+	 * Add an object. It can be found after the next build().
+	 *
+	 * @param object
+	 */
+	public void add(SpaceObject object) {
+		if (this.size == this.objects.length) {
+			this.objects = Arrays.copyOf(this.objects, this.size * 2);
+		}
+		this.objects[this.size++] = object;
+	}
+
+	/**
+	 * Sort the added objects into cells.
+	 */
+	public void build() {
+		if (this.size == 0) {
+			return;
+		}
+
+		//bounds of all the objects
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < this.size; i++) {
+			SpaceObject o = this.objects[i];
+			int r = o.getShieldRadius();
+			minX = Math.min(minX, o.getX() - r);
+			minY = Math.min(minY, o.getY() - r);
+			maxX = Math.max(maxX, o.getX() + r);
+			maxY = Math.max(maxY, o.getY() + r);
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.actualCellSize = Math.max(this.cellSize, Math.max(maxX - minX, maxY - minY) / MAX_CELLS_PER_AXIS);
+		this.columns = (int) ((maxX - minX) / this.actualCellSize) + 1;
+		this.rows = (int) ((maxY - minY) / this.actualCellSize) + 1;
+
+		int cells = this.columns * this.rows;
+		if (this.cellStart.length < cells + 1) {
+			this.cellStart = new int[cells + 1];
+		} else {
+			Arrays.fill(this.cellStart, 0, cells + 1, 0);
+		}
+
+		//count the objects of each cell
+		int total = 0;
+		for (int i = 0; i < this.size; i++) {
+			SpaceObject o = this.objects[i];
+			int r = o.getShieldRadius();
+			int x0 = this.column(o.getX() - r), x1 = this.column(o.getX() + r);
+			int y0 = this.row(o.getY() - r), y1 = this.row(o.getY() + r);
+			for (int y = y0; y <= y1; y++) {
+				for (int x = x0; x <= x1; x++) {
+					this.cellStart[y * this.columns + x + 1]++;
+					total++;
+				}
+			}
+		}
+		for (int c = 0; c < cells; c++) {
+			this.cellStart[c + 1] += this.cellStart[c];
+		}
+
+		//fill the cells, using the start of each cell as its cursor
+		if (this.entries.length < total) {
+			this.entries = new int[total];
+		}
+		for (int i = 0; i < this.size; i++) {
+			SpaceObject o = this.objects[i];
+			int r = o.getShieldRadius();
+			int x0 = this.column(o.getX() - r), x1 = this.column(o.getX() + r);
+			int y0 = this.row(o.getY() - r), y1 = this.row(o.getY() + r);
+			for (int y = y0; y <= y1; y++) {
+				for (int x = x0; x <= x1; x++) {
+					this.entries[this.cellStart[y * this.columns + x]++] = i;
+				}
+			}
+		}
+		//the cursors ended at the start of the following cell, shift them back
+		for (int c = cells; c > 0; c--) {
+			this.cellStart[c] = this.cellStart[c - 1];
+		}
+		this.cellStart[0] = 0;
+	}
+
+	/**
+	 * Returns the cell at the given world coordinates.
+	 *
+	 * @param x
+	 * @param y
+	 * @return -1 if the point is outside the grid.
+	 */
+	public int getCell(double x, double y) {
+		if (this.columns == 0 || x < this.minX || y < this.minY) {
+			return -1;
+		}
+		int column = (int) ((x - this.minX) / this.actualCellSize);
+		int row = (int) ((y - this.minY) / this.actualCellSize);
+		if (column >= this.columns || row >= this.rows) {
+			return -1;
+		}
+		return row * this.columns + column;
+	}
+
+	/**
+	 * Returns the nearest object to a point that isn't on the given side and
+	 * hasn't been destroyed. The cells are searched in rings around the point,
+	 * the nearest ring first, so near a target only a few cells are looked at.
+	 *
+	 * @param x
+	 * @param y
+	 * @param side The objects of this side are skipped.
+	 * @param maxDistance Farther objects aren't found.
+	 * @return null if there's no such object.
+	 */
+	public SpaceObject nearest(double x, double y, int side, double maxDistance) {
+		if (this.columns == 0) {
+			return null;
+		}
+		//the cell of the point, can be outside the grid
+		int column = (int) Math.floor((x - this.minX) / this.actualCellSize);
+		int row = (int) Math.floor((y - this.minY) / this.actualCellSize);
+		//an object within maxDistance has its center at most this many rings away
+		int rings = (int) Math.ceil(maxDistance / this.actualCellSize);
+		rings = Math.min(rings, Math.max(Math.max(column, this.columns - 1 - column), Math.max(row, this.rows - 1 - row)));
+
+		SpaceObject best = null;
+		double bestDistance = maxDistance * maxDistance;
+		for (int ring = 0; ring <= rings; ring++) {
+			for (int r = Math.max(0, row - ring); r <= Math.min(this.rows - 1, row + ring); r++) {
+				//the top and the bottom row of the ring are whole, the others only have their ends
+				boolean edge = r == row - ring || r == row + ring;
+				int step = edge || ring == 0 ? 1 : 2 * ring;
+				for (int c = column - ring; c <= column + ring; c += step) {
+					if (c < 0 || c >= this.columns) {
+						continue;
+					}
+					int cell = r * this.columns + c;
+					for (int e = this.cellStart[cell]; e < this.cellStart[cell + 1]; e++) {
+						SpaceObject o = this.objects[this.entries[e]];
+						if (o.getSide() == side || o.isDestroyed() || o.isDeletable()) {
+							continue;
+						}
+						double dx = o.getX() - x;
+						double dy = o.getY() - y;
+						double distance = dx * dx + dy * dy;
+						if (distance < bestDistance) {
+							best = o;
+							bestDistance = distance;
+						}
+					}
+				}
+			}
+			//the centers in the next rings are at least this far
+			double next = ring * this.actualCellSize;
+			if (best != null && bestDistance <= next * next) {
+				break;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find the objects not on the given side whose bounding circle (shield
+	 * radius) reaches into a circle. Only the cells under the circle are
+	 * looked at, so the cost follows the crowd in the circle, not the amount
+	 * of objects. Each object is found once, in a repeatable order.
+	 *
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @param side The objects of this side are skipped.
+	 * @param result Cleared and filled with the objects found.
+	 * @return The amount of objects found.
+	 */
+	public int findWithin(double x, double y, double radius, int side, ArrayList<SpaceObject> result) {
+		result.clear();
+		if (this.columns == 0) {
+			return 0;
+		}
+		if (this.marks.length < this.size) {
+			this.marks = new int[this.objects.length];
+			this.mark = 0;
+		}
+		if (this.mark == Integer.MAX_VALUE) {
+			Arrays.fill(this.marks, 0);
+			this.mark = 0;
+		}
+		this.mark++;
+		int x0 = this.column(x - radius), x1 = this.column(x + radius);
+		int y0 = this.row(y - radius), y1 = this.row(y + radius);
+		for (int r = y0; r <= y1; r++) {
+			for (int c = x0; c <= x1; c++) {
+				int cell = r * this.columns + c;
+				for (int e = this.cellStart[cell]; e < this.cellStart[cell + 1]; e++) {
+					int i = this.entries[e];
+					if (this.marks[i] == this.mark) {
+						continue;
+					}
+					this.marks[i] = this.mark;
+					SpaceObject o = this.objects[i];
+					if (o.getSide() == side || o.isDestroyed() || o.isDeletable()) {
+						continue;
+					}
+					double dx = o.getX() - x;
+					double dy = o.getY() - y;
+					if (Math.sqrt(dx * dx + dy * dy) - o.getShieldRadius() <= radius) {
+						result.add(o);
+					}
+				}
+			}
+		}
+		return result.size();
+	}
+
+	/**
+	 * Returns the first object not on the given side that a beam hits. The
+	 * beam walks the cells it passes through in order (DDA) and only the
+	 * objects in those cells are tested with SpaceObject.beamHit(), so the
+	 * cost grows with the length of the beam, not the amount of objects.
+	 * getRayLength() is the distance to the hit afterwards.
+	 *
+	 * @param x The start of the beam.
+	 * @param y
+	 * @param directionX The direction of the beam, a unit vector.
+	 * @param directionY
+	 * @param length
+	 * @param side The objects of this side are skipped.
+	 * @return null if the beam hits nothing.
+	 */
+	public SpaceObject raycast(double x, double y, double directionX, double directionY, double length, int side) {
+		this.rayLength = length;
+		this.rayCells = 0;
+		if (this.columns == 0) {
+			return null;
+		}
+		double size = this.actualCellSize;
+
+		//clip the beam to the grid
+		double enter = 0;
+		double exit = length;
+		if (directionX != 0) {
+			double t0 = (this.minX - x) / directionX;
+			double t1 = (this.minX + this.columns * size - x) / directionX;
+			enter = Math.max(enter, Math.min(t0, t1));
+			exit = Math.min(exit, Math.max(t0, t1));
+		} else if (x < this.minX || x >= this.minX + this.columns * size) {
+			return null;
+		}
+		if (directionY != 0) {
+			double t0 = (this.minY - y) / directionY;
+			double t1 = (this.minY + this.rows * size - y) / directionY;
+			enter = Math.max(enter, Math.min(t0, t1));
+			exit = Math.min(exit, Math.max(t0, t1));
+		} else if (y < this.minY || y >= this.minY + this.rows * size) {
+			return null;
+		}
+		if (enter > exit) {
+			return null;
+		}
+
+		//the first cell and where the beam crosses the next column and row
+		int column = this.column(x + enter * directionX);
+		int row = this.row(y + enter * directionY);
+		int stepX = directionX > 0 ? 1 : -1;
+		int stepY = directionY > 0 ? 1 : -1;
+		double nextX = directionX == 0 ? Double.MAX_VALUE : (this.minX + (column + (stepX > 0 ? 1 : 0)) * size - x) / directionX;
+		double nextY = directionY == 0 ? Double.MAX_VALUE : (this.minY + (row + (stepY > 0 ? 1 : 0)) * size - y) / directionY;
+		double deltaX = directionX == 0 ? Double.MAX_VALUE : size / Math.abs(directionX);
+		double deltaY = directionY == 0 ? Double.MAX_VALUE : size / Math.abs(directionY);
+
+		SpaceObject best = null;
+		double bestLength = length;
+		while (true) {
+			this.rayCells++;
+			int cell = row * this.columns + column;
+			for (int e = this.cellStart[cell]; e < this.cellStart[cell + 1]; e++) {
+				SpaceObject o = this.objects[this.entries[e]];
+				if (o.getSide() == side || o.isDestroyed() || o.isDeletable()) {
+					continue;
+				}
+				double t = o.beamHit(x, y, directionX, directionY, bestLength);
+				if (t >= 0 && (best == null || t < bestLength)) {
+					best = o;
+					bestLength = t;
+				}
+			}
+			//an object is in every cell it touches, a hit before the end of this cell is the first
+			double cellExit = Math.min(nextX, nextY);
+			if ((best != null && bestLength <= cellExit) || cellExit > exit) {
+				break;
+			}
+			if (nextX < nextY) {
+				column += stepX;
+				nextX += deltaX;
+				if (column < 0 || column >= this.columns) {
+					break;
+				}
+			} else {
+				row += stepY;
+				nextY += deltaY;
+				if (row < 0 || row >= this.rows) {
+					break;
+				}
+			}
+		}
+		this.rayLength = bestLength;
+		return best;
+	}
+
+	/**
+	 * Returns the distance from the start of the last raycast() to its hit,
+	 * or its whole length if it missed.
+	 *
+	 * @return
+	 */
+	public double getRayLength() {
+		return this.rayLength;
+	}
+
+	/**
+	 * Returns the amount of cells the last raycast() walked through.
+	 *
+	 * @return
+	 */
+	public int getRayCells() {
+		return this.rayCells;
+	}
+
+	/**
+	 * Returns the index of the first entry of a cell.
+	 *
+	 * @param cell
+	 * @return
+	 */
+	public int getCellStart(int cell) {
+		return this.cellStart[cell];
+	}
+
+	/**
+	 * Returns the index after the last entry of a cell.
+	 *
+	 * @param cell
+	 * @return
+	 */
+	public int getCellEnd(int cell) {
+		return this.cellStart[cell + 1];
+	}
+
+	/**
+	 * Returns the object of an entry.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public SpaceObject getObject(int entry) {
+		return this.objects[this.entries[entry]];
+	}
+
+	/**
+	 * Returns the amount of objects in the grid.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	private int column(double x) {
+		return Math.min(this.columns - 1, Math.max(0, (int) ((x - this.minX) / this.actualCellSize)));
+	}
+
+	private int row(double y) {
+		return Math.min(this.rows - 1, Math.max(0, (int) ((y - this.minY) / this.actualCellSize)));
+	}
+
+}
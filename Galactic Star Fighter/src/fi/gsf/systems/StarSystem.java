@@ -1,105 +1,177 @@
 package fi.gsf.systems;
 
-import java.util.ArrayList;
-
 import org.newdawn.slick.Color;
 import org.newdawn.slick.Image;
 import org.newdawn.slick.SlickException;
 
 import fi.gsf.Camera;
-import fi.gsf.GSFGame;
+import fi.gsf.World;
+import fi.gsf.graphics.TextureAtlas;
 
+/**
+ * The parallax star field behind the game.
+ *
+ * No stars are stored: every parallax layer is divided into cells and the
+ * stars of a cell are made from a hash of the cell, the layer and the seed
+ * each time the cell is drawn. The field covers any size of world in the
+ * same memory and looks the same on every run and every client.
+ *
+ * @author X455u
+ */
 public class StarSystem {
-	
+
+	/** The seed of the sky if none is given. */
+	public static final long DEFAULT_SEED = 0x5A7E11A7EL;
+
+	/** The amount of parallax layers. */
+	private static final int LAYERS = 8;
+
+	//the nearest and the farthest layers move this much compared to the camera
+	private static final float MIN_SCALE = 0.3f;
+	private static final float MAX_SCALE = 0.8f;
+
+	/** The width and the height of a cell of a layer in pixels. */
+	private static final int CELL = 256;
+
+	/** The world the stars are drawn behind. */
+	private World world;
+
 	/** The master image of a star */
 	private Image image;
-	
+
 	/** The velocity of the nearest/closest stars. */
 	private float velocity;
-	
+
 	/** The amount of stars */
 	private int amount;
-	
-	/** A list of all the stars. */
-	private ArrayList<Star> stars;
-	
-	
-	public StarSystem(String ref) throws SlickException {
-		this(ref, 0.2f);
+
+	/** The seed the stars are made from. */
+	private long seed = DEFAULT_SEED;
+
+	/** How far the stars of a layer of scale 1 have flown since the start. */
+	private double scroll;
+
+	/** The mean amount of stars in a cell of each layer. */
+	private float[] density = new float[LAYERS];
+
+	/** The color of the star being drawn. */
+	private Color color = new Color(1f, 1f, 1f);
+
+
+	public StarSystem(World world, String ref) throws SlickException {
+		this(world, ref, 0.2f);
 	}
-	
-	public StarSystem(String ref, float velocity) throws SlickException {
-		this(ref, velocity, 500);
+
+	public StarSystem(World world, String ref, float velocity) throws SlickException {
+		this(world, ref, velocity, 200);
 	}
-	
-	public StarSystem(String ref, float velocity, int amount) throws SlickException {
-		this.image = new Image(ref);
-		
+
+	/**
+	 * Create a new star field.
+	 *
+	 * @param world
+	 * @param ref The image of a star.
+	 * @param velocity The velocity of the nearest stars in pixels per millisecond.
+	 * @param amount About the amount of stars on the screen.
+	 * @throws SlickException
+	 */
+	public StarSystem(World world, String ref, float velocity, int amount) throws SlickException {
+		this.world = world;
+		this.image = TextureAtlas.get().getImage(ref);
+
 		this.velocity = Math.abs(velocity);
 		this.amount = Math.abs(amount);
-		
-		this.stars = new ArrayList<Star>(this.amount);
-		
-		for (int i = 0; i < this.amount; i++) {
-			//weighted rng that produces numbers between 0.3 and 0.8, so that it's more likely for them to be smaller.
-			float scale = (float) (- Math.log(0.489682 - 0.34* Math.random()) / 2.38);
-			float x = (float) (2 * (Math.random() - 0.5) * ( (GSFGame.getWorldWidth() - GSFGame.getScreenWidth() / 2) * scale + GSFGame.getScreenWidth() / 2));
-			float y = (float) (2 * (Math.random() - 0.5) * ( GSFGame.getScreenHeight() / 2 + (GSFGame.getWorldHeight() - GSFGame.getScreenHeight() / 2) * scale));
-			Color color = new Color((float) (1 - 0.3 * Math.random()), (float) (1 - 0.3 * Math.random()), (float) (1 - 0.3 * Math.random()));
-			color = color.darker(0.8f - scale);
-			this.stars.add(new Star(x, y, scale, color));
+
+		//the farther layers have more stars, most of the stars are small
+		float total = 0;
+		for (int layer = 0; layer < LAYERS; layer++) {
+			this.density[layer] = (float) Math.exp(-2.38 * scale(layer));
+			total += this.density[layer];
 		}
+		float cellsOnScreen = (float) world.getScreenWidth() * world.getScreenHeight() / (CELL * CELL);
+		for (int layer = 0; layer < LAYERS; layer++) {
+			this.density[layer] *= this.amount / total / cellsOnScreen;
+		}
+	}
+
+	/**
+	 * Change the seed of the stars. The same seed gives the same sky.
+	 *
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
 	}
-	
-	
+
 	public void update(int delta) {
-		for (Star star : stars) {
-			star.update(delta);
-		}
+		this.scroll += this.velocity * delta;
 	}
-	
+
 	public void render(Camera camera) {
-		for (Star star : stars) {
-			star.render(camera);
-		}
-	}
-	
-
-	private class Star {
-		
-		private float x;
-		private float y;
-		
-		private float scale;
-		
-		private Color color;
-				
-		
-		public Star (float x, float y, float scale, Color color) {
-			this.x = x;
-			this.y = y;
-			this.scale = scale;
-			this.color = color;
+		if (this.image == null) {
+			return;
 		}
-		
-		public void render(Camera camera) {
-			image.draw((float) (GSFGame.getScreenWidth() / 2 + this.x - camera.getX() * scale), (float) (GSFGame.getScreenHeight() / 2 - this.y + camera.getY() * scale), (float) scale, color);
+		int halfWidth = this.world.getScreenWidth() / 2;
+		int halfHeight = this.world.getScreenHeight() / 2;
+		for (int layer = 0; layer < LAYERS; layer++) {
+			float scale = scale(layer);
+			//the center of the view in the coordinates of the layer
+			double centerX = camera.getX() * scale;
+			double centerY = camera.getY() * scale + this.scroll * scale;
+			//a star is drawn from its top left corner, a star left or above the view can reach into it
+			int firstX = (int) Math.floor((centerX - halfWidth - this.image.getWidth()) / CELL);
+			int lastX = (int) Math.floor((centerX + halfWidth) / CELL);
+			int firstY = (int) Math.floor((centerY - halfHeight) / CELL);
+			int lastY = (int) Math.floor((centerY + halfHeight + this.image.getHeight()) / CELL);
+			for (int cellX = firstX; cellX <= lastX; cellX++) {
+				for (int cellY = firstY; cellY <= lastY; cellY++) {
+					this.renderCell(layer, scale, cellX, cellY, halfWidth - centerX, halfHeight + centerY);
+				}
+			}
 		}
+	}
 
-		public void update(int delta) {
-			this.y -= velocity * this.scale * delta;
-			
-			if (this.y < - GSFGame.getScreenHeight() / 2 + (- GSFGame.getWorldHeight() + GSFGame.getScreenHeight() / 2) * this.scale) {
-				//replace, resize and recolor
-				this.scale = (float) (- Math.log(0.489682 - 0.34* Math.random()) / 2.38);
-				this.x = (float) (2 * (Math.random() - 0.5) * ( (GSFGame.getWorldWidth() - GSFGame.getScreenWidth() / 2) * this.scale + GSFGame.getScreenWidth() / 2));
-				this.y = GSFGame.getScreenHeight() / 2 + (GSFGame.getWorldHeight() - GSFGame.getScreenHeight() / 2) * this.scale + 10;
-				this.color = new Color((float) (1 - 0.3 * Math.random()), (float) (1 - 0.3 * Math.random()), (float) (1 - 0.3 * Math.random()));
-				this.color = this.color.darker(0.8f - scale);
-			}
+	/** Draw the stars of a cell. The offsets turn layer coordinates to screen coordinates. */
+	private void renderCell(int layer, float scale, int cellX, int cellY, double offsetX, double offsetY) {
+		long state = SectorSystem.hash(this.seed + layer, cellX, cellY);
+		//a fraction of a star is a chance of one more
+		state = next(state);
+		int stars = (int) (this.density[layer] + toFloat(state));
+		for (int i = 0; i < stars; i++) {
+			state = next(state);
+			double x = (cellX + toFloat(state)) * CELL;
+			state = next(state);
+			double y = (cellY + toFloat(state)) * CELL;
+			//the size of the star varies inside the layer
+			state = next(state);
+			float size = scale + (toFloat(state) - 0.5f) * (MAX_SCALE - MIN_SCALE) / LAYERS;
+			float darker = 1 - (0.8f - size);
+			state = next(state);
+			this.color.r = (1 - 0.3f * toFloat(state)) * darker;
+			state = next(state);
+			this.color.g = (1 - 0.3f * toFloat(state)) * darker;
+			state = next(state);
+			this.color.b = (1 - 0.3f * toFloat(state)) * darker;
+			this.image.draw((float) (offsetX + x), (float) (offsetY - y), size, this.color);
 		}
-		
-		
 	}
-	
+
+	/** Returns how much a layer moves compared to the camera. */
+	private static float scale(int layer) {
+		return MIN_SCALE + (MAX_SCALE - MIN_SCALE) * (layer + 0.5f) / LAYERS;
+	}
+
+	/** Returns the next state of the generator, a SplitMix64 step. */
+	private static long next(long state) {
+		long z = state + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/** Returns a float between 0 and 1 from the high bits of a state. */
+	private static float toFloat(long state) {
+		return (state >>> 40) / (float) (1 << 24);
+	}
+
 }
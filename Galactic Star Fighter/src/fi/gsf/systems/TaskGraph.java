@@ -0,0 +1,372 @@
+package fi.gsf.systems;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the stages of an update, like the systems of the game, in parallel
+ * where they don't depend on each other.
+ *
+ * A stage declares the resources it reads and writes, names like "enemies"
+ * or "particles". The stages are added in the order they'd run one by one,
+ * and a stage waits for every earlier stage it conflicts with: one writes
+ * what the other reads or writes. So the result is the same as running them
+ * in order, and the stages that share nothing run at the same time on the
+ * worker threads. Everything a stage touches has to be declared, also the
+ * shared helpers like the kinematics and the random numbers of the world.
+ *
+ * A stage that needs the calling thread, like one reading the pixels of an
+ * image from OpenGL, is marked with onCaller(). The calling thread runs it
+ * when its dependencies are done, while the workers go on with the rest.
+ *
+ * run() returns when all the stages are done. The durations of the stages,
+ * the critical path (the longest chain of dependent stages) and the wall
+ * time of the last run are kept for the statistics.
+ *
+ * @author X455u
+ */
+public class TaskGraph {
+
+	/** The stages in the order they were added. */
+	private ArrayList<Stage> stages = new ArrayList<Stage>();
+
+	/** True when the dependencies are up to date with the stages. */
+	private boolean built;
+
+	/** Runs the stages, null to run them in order on the calling thread. */
+	private ExecutorService pool;
+
+	//the state of a run, guarded by the lock
+	private final Object lock = new Object();
+	private int remaining;
+	private Throwable failure;
+	/** The stages ready to run on the calling thread. */
+	private ArrayList<Stage> callerReady = new ArrayList<Stage>();
+	/** The milliseconds of the run. */
+	private int delta;
+
+	//the statistics of the last run, nanoseconds
+	private long wallTime;
+	private long criticalPath;
+	private long work;
+
+
+	/**
+	 * Create a new graph.
+	 *
+	 * @param threads The worker threads, 1 or less to run the stages in order on the calling thread.
+	 */
+	public TaskGraph(int threads) {
+		if (threads > 1) {
+			this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "TaskGraph worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Add a stage after the ones added before. Declare what it reads and
+	 * writes before the first run().
+	 *
+	 * @param name
+	 * @param task
+	 * @return The stage.
+	 */
+	public Stage add(String name, Task task) {
+		Stage stage = new Stage(name, task);
+		this.stages.add(stage);
+		this.built = false;
+		return stage;
+	}
+
+	/** Find the dependencies of every stage: the earlier stages it conflicts with. */
+	private void build() {
+		for (int i = 0; i < this.stages.size(); i++) {
+			Stage stage = this.stages.get(i);
+			stage.dependencies.clear();
+			stage.dependents.clear();
+			for (int j = 0; j < i; j++) {
+				Stage earlier = this.stages.get(j);
+				if (!Collections.disjoint(earlier.writes, stage.reads) || !Collections.disjoint(earlier.writes, stage.writes)
+						|| !Collections.disjoint(earlier.reads, stage.writes)) {
+					stage.dependencies.add(earlier);
+					earlier.dependents.add(stage);
+				}
+			}
+		}
+		this.built = true;
+	}
+
+	/**
+	 * Run all the stages and wait until they are done.
+	 *
+	 * @param delta The milliseconds of the update, given to the stages.
+	 * @throws RuntimeException If a stage failed. The stages that depend on it aren't run.
+	 */
+	public void run(int delta) {
+		if (!this.built) {
+			this.build();
+		}
+		long start = System.nanoTime();
+		this.delta = delta;
+		this.failure = null;
+		if (this.pool == null) {
+			for (Stage stage : this.stages) {
+				this.execute(stage);
+			}
+		} else {
+			synchronized (this.lock) {
+				this.remaining = this.stages.size();
+				for (Stage stage : this.stages) {
+					stage.waiting = stage.dependencies.size();
+				}
+				for (Stage stage : this.stages) {
+					if (stage.waiting == 0) {
+						this.schedule(stage);
+					}
+				}
+			}
+			boolean interrupted = false;
+			while (true) {
+				Stage next;
+				synchronized (this.lock) {
+					while (this.remaining > 0 && this.callerReady.isEmpty()) {
+						try {
+							this.lock.wait();
+						} catch (InterruptedException e) {
+							//the stages have to finish before the next update, try again
+							interrupted = true;
+						}
+					}
+					if (this.remaining == 0) {
+						break;
+					}
+					next = this.callerReady.remove(this.callerReady.size() - 1);
+				}
+				this.execute(next);
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.wallTime = System.nanoTime() - start;
+
+		//the stages are in an order where the dependencies come first
+		this.criticalPath = 0;
+		this.work = 0;
+		for (Stage stage : this.stages) {
+			long before = 0;
+			for (Stage dependency : stage.dependencies) {
+				before = Math.max(before, dependency.path);
+			}
+			stage.path = before + stage.duration;
+			this.criticalPath = Math.max(this.criticalPath, stage.path);
+			this.work += stage.duration;
+		}
+
+		if (this.failure != null) {
+			throw new RuntimeException("A stage of the update failed", this.failure);
+		}
+	}
+
+	/** Run a stage, then the stages waiting only for it. */
+	private void execute(Stage stage) {
+		long start = System.nanoTime();
+		if (this.failure == null) {
+			try {
+				stage.task.run(this.delta);
+			} catch (Throwable t) {
+				synchronized (this.lock) {
+					if (this.failure == null) {
+						this.failure = t;
+					}
+				}
+			}
+		}
+		stage.duration = System.nanoTime() - start;
+		if (this.pool == null) {
+			return;
+		}
+		synchronized (this.lock) {
+			for (Stage dependent : stage.dependents) {
+				if (--dependent.waiting == 0) {
+					this.schedule(dependent);
+				}
+			}
+			if (--this.remaining == 0) {
+				this.lock.notifyAll();
+			}
+		}
+	}
+
+	/** Hand a ready stage to a worker or to the calling thread. Call with the lock held. */
+	private void schedule(Stage stage) {
+		if (stage.onCaller) {
+			this.callerReady.add(stage);
+			this.lock.notifyAll();
+		} else {
+			this.pool.execute(stage.runner);
+		}
+	}
+
+	/**
+	 * Returns a stage by its name.
+	 *
+	 * @param name
+	 * @return Null if there's no such stage.
+	 */
+	public Stage getStage(String name) {
+		for (Stage stage : this.stages) {
+			if (stage.name.equals(name)) {
+				return stage;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns how long the last run took in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getWallTime() {
+		return this.wallTime;
+	}
+
+	/**
+	 * Returns the duration of the longest chain of dependent stages of the
+	 * last run in nanoseconds, the shortest the run could take with enough
+	 * threads.
+	 *
+	 * @return
+	 */
+	public long getCriticalPath() {
+		return this.criticalPath;
+	}
+
+	/**
+	 * Returns the durations of all the stages of the last run added
+	 * together in nanoseconds, what a run takes on one thread.
+	 *
+	 * @return
+	 */
+	public long getWork() {
+		return this.work;
+	}
+
+	/**
+	 * Stop the worker threads. The graph runs its stages in order after this.
+	 */
+	public void shutdown() {
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+
+
+	/**
+	 * The work of a stage.
+	 */
+	public interface Task {
+
+		/**
+		 * @param delta The milliseconds of the update.
+		 */
+		public void run(int delta);
+	}
+
+	/**
+	 * A stage of the graph and what it reads and writes.
+	 */
+	public class Stage {
+
+		private String name;
+		private Task task;
+		private HashSet<String> reads = new HashSet<String>();
+		private HashSet<String> writes = new HashSet<String>();
+		/** True if the stage runs on the calling thread of run(). */
+		private boolean onCaller;
+
+		/** The earlier stages this one waits for and the later ones waiting for it. */
+		private ArrayList<Stage> dependencies = new ArrayList<Stage>();
+		private ArrayList<Stage> dependents = new ArrayList<Stage>();
+
+		/** The dependencies not done yet in this run. Guarded by the lock of the graph. */
+		private int waiting;
+
+		/** How long the stage took in the last run and the critical path up to its end, nanoseconds. */
+		private long duration;
+		private long path;
+
+		/** Runs the stage on a worker. */
+		private Runnable runner = new Runnable() {
+			public void run() {
+				execute(Stage.this);
+			}
+		};
+
+		private Stage(String name, Task task) {
+			this.name = name;
+			this.task = task;
+		}
+
+		/**
+		 * Declare resources the stage reads.
+		 *
+		 * @param resources
+		 * @return The stage.
+		 */
+		public Stage reads(String... resources) {
+			Collections.addAll(this.reads, resources);
+			TaskGraph.this.built = false;
+			return this;
+		}
+
+		/**
+		 * Declare resources the stage writes. Writing includes reading.
+		 *
+		 * @param resources
+		 * @return The stage.
+		 */
+		public Stage writes(String... resources) {
+			Collections.addAll(this.writes, resources);
+			TaskGraph.this.built = false;
+			return this;
+		}
+
+		/**
+		 * Run the stage on the thread that calls run(), never on a worker.
+		 * For the work that can't move to another thread, like reading the
+		 * pixels of an image from OpenGL.
+		 *
+		 * @return The stage.
+		 */
+		public Stage onCaller() {
+			this.onCaller = true;
+			return this;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * Returns how long the stage took in the last run in nanoseconds.
+		 *
+		 * @return
+		 */
+		public long getDuration() {
+			return this.duration;
+		}
+	}
+
+}
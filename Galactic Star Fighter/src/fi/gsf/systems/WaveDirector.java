@@ -0,0 +1,422 @@
+package fi.gsf.systems;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Random;
+
+import fi.gsf.EventRecorder;
+import fi.gsf.World;
+import fi.gsf.objects.SpaceObject;
+import fi.gsf.objects.Spacecraft;
+import fi.gsf.objects.enemies.Fighter;
+import fi.gsf.objects.enemies.Swarmer;
+
+/**
+ * Spawns the waves of enemies defined in a file, a few enemies per update.
+ *
+ * A wave is groups of enemies, each with a delay from the start of the wave,
+ * a type, a count, a formation and a place relative to the ship. A wave is
+ * started by start() or at its time since the start of the director. The
+ * enemies of a group are built ahead of time, lookahead milliseconds before
+ * the group is due, and released when it's due, both within a budget of
+ * enemies and of time per update. So a big wave is spread over frames and
+ * no frame of spawning takes longer than the budget.
+ *
+ * File: lines "wave <name> [at <seconds>]" start a wave, the groups of the
+ * wave follow as lines "<delay in ms> <swarmer|fighter> <count>
+ * <group|line|ring> <x> <y>". Text after # is a comment.
+ *
+ * @author X455u
+ */
+public class WaveDirector {
+
+	/** The file of the waves of the game. */
+	public static final String DEFAULT_FILE = "data/waves.txt";
+
+	//the types of enemies, in the order of the words of the file
+	private static final int SWARMER = 0;
+	private static final int FIGHTER = 1;
+
+	//the formations
+	private static final int GROUP = 0;
+	private static final int LINE = 1;
+	private static final int RING = 2;
+
+	/** How much room a swarmer of a group takes. */
+	private static final int SWARMER_AREA = 300;
+
+	/** The width of a line of enemies. */
+	private static final int LINE_WIDTH = 1000;
+
+	/** The space between the enemies of a ring. */
+	private static final int RING_SPACING = 150;
+
+	/** A ring is at least this big, so that it's around the ship. */
+	private static final int MIN_RING_RADIUS = 500;
+
+	/** The world the enemies are spawned to. */
+	private World world;
+
+	/** The enemies are spawned relative to the ship. */
+	private Spacecraft ship;
+
+	private EnemySystem enemies;
+
+	/** The waves read from the file. */
+	private ArrayList<Wave> waves = new ArrayList<Wave>();
+
+	/** The groups of the started waves that haven't been released yet, in the order they are due. */
+	private ArrayList<Pending> pending = new ArrayList<Pending>();
+
+	/** The milliseconds since the start of the director. */
+	private long time;
+
+	/** The most enemies built and released per update. */
+	private int countBudget = 10;
+
+	/** The most nanoseconds spent per update, 0 for no limit. */
+	private long timeBudget = 1000000;
+
+	/** How many milliseconds before a group is due its enemies are built. */
+	private int lookahead = 2000;
+
+	/** Built but not released enemies. */
+	private int ready;
+
+
+	/**
+	 * Create a new wave director without waves.
+	 *
+	 * @param world
+	 * @param ship
+	 * @param enemies
+	 */
+	public WaveDirector(World world, Spacecraft ship, EnemySystem enemies) {
+		this.world = world;
+		this.ship = ship;
+		this.enemies = enemies;
+	}
+
+	/**
+	 * Set the work done per update. The time budget depends on the speed of
+	 * the machine, so a simulation that has to be repeatable leaves it at 0.
+	 *
+	 * @param countBudget The most enemies built and released per update.
+	 * @param timeBudget The most nanoseconds spent per update, 0 for no limit.
+	 * @param lookahead How many milliseconds before a group is due its enemies are built.
+	 */
+	public void setBudget(int countBudget, long timeBudget, int lookahead) {
+		this.countBudget = Math.max(1, countBudget);
+		this.timeBudget = timeBudget;
+		this.lookahead = lookahead;
+	}
+
+	/**
+	 * Read the waves from a file. The waves are added to the ones read before.
+	 *
+	 * @param file
+	 * @throws IOException If the file can't be read or has an error.
+	 */
+	public void load(File file) throws IOException {
+		FileReader reader = new FileReader(file);
+		try {
+			this.load(reader, file.getName());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read waves.
+	 *
+	 * @param reader
+	 * @param name The name of the source, for the error messages.
+	 * @throws IOException
+	 */
+	public void load(Reader reader, String name) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+		Wave wave = null;
+		String line;
+		int number = 0;
+		while ((line = in.readLine()) != null) {
+			number++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] words = line.split("\\s+");
+			try {
+				if (words[0].equals("wave")) {
+					if (words.length != 2 && !(words.length == 4 && words[2].equals("at"))) {
+						throw new IllegalArgumentException("expected wave <name> [at <seconds>]");
+					}
+					wave = new Wave(words[1], words.length == 4 ? Math.round(Double.parseDouble(words[3]) * 1000) : -1);
+					this.waves.add(wave);
+				} else {
+					if (wave == null) {
+						throw new IllegalArgumentException("a group before the first wave");
+					}
+					if (words.length != 6) {
+						throw new IllegalArgumentException("expected <delay> <type> <count> <formation> <x> <y>");
+					}
+					Group group = new Group();
+					group.delay = Integer.parseInt(words[0]);
+					group.type = parse(words[1], "swarmer", "fighter");
+					group.count = Integer.parseInt(words[2]);
+					group.formation = parse(words[3], "group", "line", "ring");
+					group.x = Double.parseDouble(words[4]);
+					group.y = Double.parseDouble(words[5]);
+					wave.groups.add(group);
+				}
+			} catch (IllegalArgumentException e) {
+				//NumberFormatException is one too
+				throw new IOException(name + ":" + number + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/** Returns the index of the word in the choices. */
+	private static int parse(String word, String... choices) {
+		for (int i = 0; i < choices.length; i++) {
+			if (choices[i].equals(word)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("unknown " + word);
+	}
+
+	/**
+	 * Start a wave now.
+	 *
+	 * @param name
+	 * @return False if there is no such wave.
+	 */
+	public boolean start(String name) {
+		for (int i = 0; i < this.waves.size(); i++) {
+			if (this.waves.get(i).name.equals(name)) {
+				this.schedule(i, this.time);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Queue the groups of a wave. */
+	private void schedule(int index, long start) {
+		Wave wave = this.waves.get(index);
+		for (int g = 0; g < wave.groups.size(); g++) {
+			Group group = wave.groups.get(g);
+			Pending p = new Pending();
+			p.group = group;
+			p.built = new SpaceObject[group.count];
+			p.due = start + group.delay;
+			//the formation is the same however the work is split between the updates
+			p.random = new Random(SectorSystem.hash(this.world.getSeed() + wave.started, index, g));
+			int i = this.pending.size();
+			while (i > 0 && this.pending.get(i - 1).due > p.due) {
+				i--;
+			}
+			this.pending.add(i, p);
+		}
+		wave.started++;
+	}
+
+	/**
+	 * Start the waves whose time has come, build the enemies of the groups
+	 * that are due soon and release the due ones, within the budget.
+	 *
+	 * @param delta
+	 */
+	public void update(int delta) {
+		this.time += delta;
+		for (int i = 0; i < this.waves.size(); i++) {
+			Wave wave = this.waves.get(i);
+			if (wave.at >= 0 && !wave.timeReached && wave.at <= this.time) {
+				wave.timeReached = true;
+				this.schedule(i, wave.at);
+			}
+		}
+
+		EventRecorder recorder = this.world.getRecorder();
+		long deadline = System.nanoTime() + this.timeBudget;
+		int budget = this.countBudget;
+		for (int i = 0; i < this.pending.size() && budget > 0; i++) {
+			Pending p = this.pending.get(i);
+			if (p.due - this.lookahead > this.time) {
+				break;
+			}
+			long start = recorder.isEnabled() ? System.nanoTime() : 0;
+			int released = p.released;
+			//release what's built, then build the rest
+			boolean due = p.due <= this.time;
+			if (due) {
+				while (p.released < p.builtCount && budget > 0 && this.inTime(deadline)) {
+					this.release(p, p.built[p.released]);
+					p.built[p.released++] = null;
+					this.ready--;
+					budget--;
+				}
+			}
+			while (p.builtCount < p.group.count && budget > 0 && this.inTime(deadline)) {
+				SpaceObject enemy = this.build(p.group, p.builtCount++, p.random);
+				budget--;
+				if (due) {
+					this.release(p, enemy);
+					p.released++;
+				} else {
+					p.built[p.builtCount - 1] = enemy;
+					this.ready++;
+				}
+			}
+			if (recorder.isEnabled() && p.released > released) {
+				recorder.spawn(start, p.group.type == SWARMER ? EventRecorder.SWARMERS : EventRecorder.FIGHTERS, p.released - released,
+						this.enemies.getSwarmers().size(), this.enemies.getFighters().size());
+			}
+			if (p.released == p.group.count) {
+				this.pending.remove(i--);
+			}
+			if (!this.inTime(deadline)) {
+				break;
+			}
+		}
+	}
+
+	private boolean inTime(long deadline) {
+		return this.timeBudget <= 0 || System.nanoTime() < deadline;
+	}
+
+	/** Build an enemy of a group in its place in the formation, relative to the origin. */
+	private SpaceObject build(Group group, int index, Random random) {
+		double x = 0;
+		double y = 0;
+		double angle;
+		double radius;
+		switch (group.formation) {
+		case GROUP:
+			angle = 2 * Math.PI * random.nextDouble();
+			radius = Math.sqrt(SWARMER_AREA * group.count / Math.PI) * random.nextDouble();
+			x = this.world.cos(angle) * radius;
+			y = this.world.sin(angle) * radius;
+			break;
+		case LINE:
+			x = (double) LINE_WIDTH / group.count * (index + 0.5) - LINE_WIDTH / 2;
+			break;
+		case RING:
+			angle = 2 * Math.PI * index / group.count;
+			radius = Math.max(MIN_RING_RADIUS, RING_SPACING * group.count / (2 * Math.PI));
+			x = this.world.cos(angle) * radius;
+			y = this.world.sin(angle) * radius;
+			break;
+		}
+		switch (group.type) {
+		case SWARMER:
+			return new Swarmer(this.world, x, y, this.enemies.getProjectiles());
+		case FIGHTER:
+			return new Fighter(this.world, x, y, this.enemies.getProjectiles());
+		}
+		throw new IllegalStateException("Unknown type " + group.type);
+	}
+
+	/** Move a built enemy to its place near the ship and add it to the enemy system. */
+	private void release(Pending p, SpaceObject enemy) {
+		if (!p.placed) {
+			p.placed = true;
+			p.originX = this.ship.getX() + p.group.x;
+			p.originY = this.ship.getY() + p.group.y;
+		}
+		enemy.position(enemy.getX() + p.originX, enemy.getY() + p.originY);
+		if (enemy instanceof Swarmer) {
+			this.enemies.addSwarmer((Swarmer) enemy);
+		} else {
+			this.enemies.addFighter((Fighter) enemy);
+		}
+	}
+
+	/**
+	 * Returns the amount of enemies started but not released yet.
+	 *
+	 * @return
+	 */
+	public int getPending() {
+		int count = 0;
+		for (Pending p : this.pending) {
+			count += p.group.count - p.released;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the amount of enemies built ahead and waiting for their group to be due.
+	 *
+	 * @return
+	 */
+	public int getReady() {
+		return this.ready;
+	}
+
+
+	/** A wave of the file. */
+	private static class Wave {
+
+		private String name;
+
+		/** Milliseconds from the start of the director, -1 if the wave is started by start(). */
+		private long at;
+
+		private ArrayList<Group> groups = new ArrayList<Group>();
+
+		/** How many times the wave has been started. */
+		private int started;
+
+		/** True when the wave has been started at its time. */
+		private boolean timeReached;
+
+		private Wave(String name, long at) {
+			this.name = name;
+			this.at = at;
+		}
+	}
+
+	/** A group of a wave. */
+	private static class Group {
+		private int delay;
+		private int type;
+		private int count;
+		private int formation;
+		private double x;
+		private double y;
+	}
+
+	/** A group of a started wave. */
+	private static class Pending {
+
+		private Group group;
+
+		/** When the group is released. */
+		private long due;
+
+		/** Places the enemies of a group formation. */
+		private Random random;
+
+		/** The enemies built ahead and not released yet, by their index in the group. */
+		private SpaceObject[] built;
+		private int builtCount;
+
+		/** How many of the enemies have been released. */
+		private int released;
+
+		//the center of the formation, fixed when the first enemy is released
+		private boolean placed;
+		private double originX;
+		private double originY;
+	}
+
+}
@@ -0,0 +1,152 @@
+package fi.gsf.systems;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/**
+ * Runs work that can wait, like compacting the lists of the systems, in the
+ * time that's left of a frame after the update and the render.
+ *
+ * The systems submit tasks with a priority and the game calls run() with the
+ * time left of the frame. The tasks are run in the order of their priority,
+ * the oldest first, until the time is used. At least one task is run every
+ * frame, so the queue always moves. A task that's already queued isn't queued
+ * again, so a system can submit the same task every tick.
+ *
+ * @author X455u
+ */
+public class WorkScheduler {
+
+	//the priorities, the smaller first
+	public static final int HIGH = 0;
+	public static final int NORMAL = 1;
+	public static final int LOW = 2;
+
+	/** The queued tasks, the highest priority and the oldest first. */
+	private PriorityQueue<Entry> queue = new PriorityQueue<Entry>(16, new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.priority != b.priority) {
+				return a.priority < b.priority ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+		}
+	});
+
+	/** The tasks in the queue. */
+	private HashSet<Task> queued = new HashSet<Task>();
+
+	/** Orders the tasks of the same priority. */
+	private long sequence;
+
+	//statistics
+	/** The tasks run during the last run(). */
+	private int lastRun;
+	private long tasksRun;
+	/** The nanoseconds the tasks waited in the queue, all together and the longest. */
+	private long totalLatency;
+	private long maxLatency;
+
+
+	/**
+	 * Queue a task, unless it's already queued.
+	 *
+	 * @param task
+	 * @param priority HIGH, NORMAL or LOW.
+	 */
+	public void submit(Task task, int priority) {
+		if (this.queued.add(task)) {
+			this.queue.add(new Entry(task, priority, this.sequence++, System.nanoTime()));
+		}
+	}
+
+	/**
+	 * Run queued tasks for about the given time. At least one task is run if
+	 * there are any, even if there's no time left.
+	 *
+	 * @param budget Nanoseconds.
+	 */
+	public void run(long budget) {
+		long start = System.nanoTime();
+		this.lastRun = 0;
+		while (!this.queue.isEmpty() && (this.lastRun == 0 || System.nanoTime() - start < budget)) {
+			Entry entry = this.queue.poll();
+			this.queued.remove(entry.task);
+			long latency = System.nanoTime() - entry.submitted;
+			this.totalLatency += latency;
+			this.maxLatency = Math.max(this.maxLatency, latency);
+			this.tasksRun++;
+			this.lastRun++;
+			entry.task.run();
+		}
+	}
+
+	/**
+	 * Run all the queued tasks now, for example before a save.
+	 */
+	public void flush() {
+		this.run(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the amount of tasks waiting.
+	 *
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Returns the amount of tasks run during the last run().
+	 *
+	 * @return
+	 */
+	public int getLastRun() {
+		return this.lastRun;
+	}
+
+	/**
+	 * Returns how long a task has waited in the queue on average, in milliseconds.
+	 *
+	 * @return
+	 */
+	public double getMeanLatency() {
+		return this.tasksRun == 0 ? 0 : this.totalLatency / 1e6 / this.tasksRun;
+	}
+
+	/**
+	 * Returns the longest a task has waited in the queue, in milliseconds.
+	 *
+	 * @return
+	 */
+	public double getMaxLatency() {
+		return this.maxLatency / 1e6;
+	}
+
+
+	/**
+	 * Work that can wait.
+	 */
+	public interface Task {
+
+		public void run();
+	}
+
+	private static class Entry {
+
+		private Task task;
+		private int priority;
+		private long sequence;
+		/** When the task was queued, System.nanoTime(). */
+		private long submitted;
+
+		private Entry(Task task, int priority, long sequence, long submitted) {
+			this.task = task;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.submitted = submitted;
+		}
+	}
+
+}